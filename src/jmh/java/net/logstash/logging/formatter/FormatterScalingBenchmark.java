@@ -0,0 +1,108 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how {@link LogstashUtilFormatter#format(ExtLogRecord)} scales with
+ * the number of threads. All threads share one formatter and one record, like
+ * handlers which share a formatter and receive the same record. The total
+ * throughput of a method should grow with its number of threads up to the
+ * number of available cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatterScalingBenchmark {
+
+  /** the format style of the shared record */
+  @Param({ "MESSAGE_FORMAT", "PRINTF" })
+  public FormatStyle style;
+
+  private final LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+  private ExtLogRecord record;
+
+  @Setup
+  public void setUp() {
+    String format = (style == FormatStyle.PRINTF) ? "User %s logged in from %s after %d attempts"
+        : "User {0} logged in from {1} after {2} attempts";
+    record = new ExtLogRecord(Level.INFO, format, style, FormatterScalingBenchmark.class.getName());
+    record.setParameters(new Object[] { "joe", "10.0.0.1", 3 });
+    record.setLoggerName("net.logstash.logging.benchmark");
+    record.setSourceClassName(FormatterScalingBenchmark.class.getName());
+    record.setSourceMethodName("format");
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String threads01() {
+    return formatter.format(record);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public String threads02() {
+    return formatter.format(record);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String threads04() {
+    return formatter.format(record);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String threads08() {
+    return formatter.format(record);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String threads16() {
+    return formatter.format(record);
+  }
+
+  @Benchmark
+  @Threads(32)
+  public String threads32() {
+    return formatter.format(record);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public String threads64() {
+    return formatter.format(record);
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.nio.ByteBuffer;
+import java.util.ListResourceBundle;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+import org.jboss.logmanager.MDC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LogstashUtilFormatter#format(ExtLogRecord)} for different
+ * record shapes. The record is created inside the benchmark method, so the
+ * cost of a new record is part of every measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogstashUtilFormatterBenchmark {
+
+  /** the shape of the formatted record */
+  public enum Shape {
+    PLAIN, MESSAGE_FORMAT, PRINTF, LARGE_MDC, EXCEPTION_CHAIN, RESOURCE_BUNDLE
+  }
+
+  @Param
+  public Shape shape;
+
+  private final LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+  private final ResourceBundle bundle = new Messages();
+  private Throwable thrown;
+
+  @Setup
+  public void setUp() {
+    System.setProperty(LogstashUtilFormatter.SYSTEM_PROPERTY_TAGS, "benchmark,jmh");
+    if (shape == Shape.LARGE_MDC) {
+      for (int i = 0; i < 32; i++) {
+        MDC.put("key" + i, "value of MDC entry " + i);
+      }
+    }
+    thrown = createExceptionChain(4, 40);
+  }
+
+  @TearDown
+  public void tearDown() {
+    MDC.clear();
+    System.clearProperty(LogstashUtilFormatter.SYSTEM_PROPERTY_TAGS);
+  }
+
+  @Benchmark
+  public String format() {
+    return formatter.format(createRecord());
+  }
+
+  @Benchmark
+  public ByteBuffer formatBytes() {
+    return formatter.formatBytes(createRecord());
+  }
+
+  private ExtLogRecord createRecord() {
+    ExtLogRecord record;
+    switch (shape) {
+    case MESSAGE_FORMAT:
+      record = new ExtLogRecord(Level.INFO, "User {0} logged in from {1} after {2} attempts",
+          FormatStyle.MESSAGE_FORMAT, LogstashUtilFormatterBenchmark.class.getName());
+      record.setParameters(new Object[] { "joe", "10.0.0.1", "3" });
+      break;
+    case PRINTF:
+      record = new ExtLogRecord(Level.INFO, "User %s logged in from %s after %d attempts", FormatStyle.PRINTF,
+          LogstashUtilFormatterBenchmark.class.getName());
+      record.setParameters(new Object[] { "joe", "10.0.0.1", 3 });
+      break;
+    case EXCEPTION_CHAIN:
+      record = new ExtLogRecord(Level.SEVERE, "Request failed", FormatStyle.NO_FORMAT,
+          LogstashUtilFormatterBenchmark.class.getName());
+      record.setThrown(thrown);
+      break;
+    case RESOURCE_BUNDLE:
+      record = new ExtLogRecord(Level.INFO, "login", FormatStyle.MESSAGE_FORMAT,
+          LogstashUtilFormatterBenchmark.class.getName());
+      record.setResourceBundle(bundle);
+      record.setParameters(new Object[] { "joe", "10.0.0.1" });
+      break;
+    case PLAIN:
+    case LARGE_MDC:
+    default:
+      record = new ExtLogRecord(Level.INFO, "Processed request in 42 ms", FormatStyle.NO_FORMAT,
+          LogstashUtilFormatterBenchmark.class.getName());
+      break;
+    }
+    record.setLoggerName("net.logstash.logging.benchmark");
+    record.setSourceClassName(LogstashUtilFormatterBenchmark.class.getName());
+    record.setSourceMethodName("format");
+    return record;
+  }
+
+  private static Throwable createExceptionChain(int causes, int depth) {
+    Throwable cause = null;
+    for (int i = 0; i <= causes; i++) {
+      cause = createException("failure " + i, cause, depth);
+    }
+    return cause;
+  }
+
+  private static Throwable createException(String message, Throwable cause, int depth) {
+    if (depth > 0) {
+      return createException(message, cause, depth - 1);
+    }
+    return new IllegalStateException(message, cause);
+  }
+
+  /** resource bundle with message templates */
+  public static class Messages extends ListResourceBundle {
+    @Override
+    protected Object[][] getContents() {
+      return new Object[][] { { "login", "User {0} logged in from {1}" } };
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cached timestamp rendering with a new {@link SimpleDateFormat}
+ * per record. The timestamp advances by {@code stepMillis} per operation, so
+ * {@code 1} is the steady state of a busy logger and {@code 1000} forces a new
+ * second on every record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampFormatterBenchmark {
+  private static final TimestampFormatter FORMATTER = new TimestampFormatter();
+
+  @Param({ "1", "1000" })
+  public long stepMillis;
+
+  private long millis = System.currentTimeMillis();
+  private final StringBuilder buffer = new StringBuilder(64);
+
+  @Benchmark
+  public String simpleDateFormat() {
+    millis += stepMillis;
+    return new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT).format(new Date(millis));
+  }
+
+  @Benchmark
+  public String cached() {
+    millis += stepMillis;
+    return FORMATTER.format(millis);
+  }
+
+  @Benchmark
+  public StringBuilder cachedAppend() {
+    millis += stepMillis;
+    buffer.setLength(0);
+    FORMATTER.formatTo(millis, buffer);
+    return buffer;
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.MDC;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter.WireFormat;
+
+/**
+ * Compares the {@linkplain LogstashUtilFormatter#setWireFormat(WireFormat) wire
+ * formats} of {@link LogstashUtilFormatter#formatBytes(ExtLogRecord)}. Besides
+ * the throughput the auxiliary counters {@code records} and {@code bytes} are
+ * reported; their quotient is the size of an encoded record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+  /** the shape of the encoded record */
+  public enum Shape {
+    PLAIN, LARGE_MDC, EXCEPTION
+  }
+
+  @Param
+  public WireFormat wireFormat;
+
+  @Param
+  public Shape shape;
+
+  private final LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+  private ExtLogRecord record;
+
+  /**
+   * Encoded bytes, counted per thread and iteration.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long records;
+    public long bytes;
+
+    @Setup(org.openjdk.jmh.annotations.Level.Iteration)
+    public void reset() {
+      records = 0;
+      bytes = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    formatter.setWireFormat(wireFormat);
+    formatter.setStaticFields("environment=benchmark,service=shop");
+    if (shape == Shape.LARGE_MDC) {
+      for (int i = 0; i < 32; i++) {
+        MDC.put("key" + i, "value of MDC entry " + i);
+      }
+    }
+    record = new ExtLogRecord(Level.INFO, "User joe logged in from 10.0.0.1 after 3 attempts",
+        WireFormatBenchmark.class.getName());
+    record.setLoggerName("net.logstash.logging.benchmark");
+    record.setSourceClassName(WireFormatBenchmark.class.getName());
+    record.setSourceMethodName("formatBytes");
+    if (shape == Shape.EXCEPTION) {
+      record.setThrown(new IllegalStateException("connection refused", new IllegalArgumentException("port")));
+    }
+    // the MDC is captured once, like a record passed to several handlers
+    record.copyMdc();
+  }
+
+  @TearDown
+  public void tearDown() {
+    MDC.clear();
+  }
+
+  @Benchmark
+  public ByteBuffer formatBytes(final Counters counters) {
+    ByteBuffer encoded = formatter.formatBytes(record);
+    counters.records++;
+    counters.bytes += encoded.remaining();
+    return encoded;
+  }
+}
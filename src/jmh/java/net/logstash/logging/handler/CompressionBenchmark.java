@@ -0,0 +1,112 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import net.logstash.logging.handler.SocketHandler.Compression;
+import net.logstash.logging.handler.SocketHandler.Protocol;
+
+/**
+ * Measures the CPU cost of {@linkplain SocketHandler#setCompression(Compression)
+ * compression} against the bytes it saves. Besides the throughput of
+ * {@link SocketHandler#doPublish(ExtLogRecord)} the auxiliary counters
+ * {@code records} and {@code bytesSent} are reported; their quotient is the
+ * number of bytes on the wire per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+  @Param({ "NONE", "GZIP", "DEFLATE" })
+  public Compression compression;
+
+  @Param({ "1", "6", "9" })
+  public int compressionLevel;
+
+  @Param({ "0", "65536" })
+  public int batchSize;
+
+  private LocalSink sink;
+  private SocketHandler handler;
+
+  /**
+   * Bytes on the wire, counted per thread and iteration.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long records;
+    public long bytesSent;
+
+    @Setup(org.openjdk.jmh.annotations.Level.Iteration)
+    public void reset() {
+      records = 0;
+      bytesSent = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    sink = new LocalSink(Protocol.TCP);
+    handler = new SocketHandler(Protocol.TCP, InetAddress.getLoopbackAddress(), sink.getPort());
+    handler.setFormatter(new LogstashUtilFormatter());
+    handler.setAutoFlush(true);
+    handler.setLevel(Level.ALL);
+    handler.setBatchSize(batchSize);
+    handler.setCompression(compression);
+    handler.setCompressionLevel(compressionLevel);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    handler.close();
+    sink.close();
+  }
+
+  @Benchmark
+  public void doPublish(Counters counters) {
+    ExtLogRecord record = new ExtLogRecord(Level.INFO, "Processed request in 42 ms", FormatStyle.NO_FORMAT,
+        CompressionBenchmark.class.getName());
+    record.setLoggerName("net.logstash.logging.benchmark");
+    long before = handler.getMetrics().getBytesSent();
+    handler.doPublish(record);
+    counters.records++;
+    counters.bytesSent += handler.getMetrics().getBytesSent() - before;
+  }
+}
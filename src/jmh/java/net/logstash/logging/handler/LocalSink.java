@@ -0,0 +1,110 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.logstash.logging.handler.SocketHandler.Protocol;
+
+/**
+ * In-process TCP or UDP endpoint which reads and discards everything it
+ * receives, counting the bytes.
+ */
+public final class LocalSink implements Closeable {
+  private final ServerSocket serverSocket;
+  private final DatagramSocket datagramSocket;
+  private final AtomicLong bytes = new AtomicLong();
+  private volatile boolean running = true;
+
+  public LocalSink(Protocol protocol) throws IOException {
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    if (protocol == Protocol.UDP) {
+      serverSocket = null;
+      datagramSocket = new DatagramSocket(0, loopback);
+      start(this::receive);
+    } else {
+      serverSocket = new ServerSocket(0, 50, loopback);
+      datagramSocket = null;
+      start(this::accept);
+    }
+  }
+
+  public int getPort() {
+    return (serverSocket != null) ? serverSocket.getLocalPort() : datagramSocket.getLocalPort();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  private void start(Runnable task) {
+    Thread thread = new Thread(task, "local-sink");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void accept() {
+    while (running) {
+      try {
+        Socket socket = serverSocket.accept();
+        start(() -> read(socket));
+      } catch (IOException e) {
+        // closed
+      }
+    }
+  }
+
+  private void read(Socket socket) {
+    byte[] buffer = new byte[65536];
+    try (InputStream in = socket.getInputStream()) {
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        bytes.addAndGet(n);
+      }
+    } catch (IOException e) {
+      // closed
+    }
+  }
+
+  private void receive() {
+    DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+    while (running) {
+      try {
+        datagramSocket.receive(packet);
+        bytes.addAndGet(packet.getLength());
+      } catch (IOException e) {
+        // closed
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    running = false;
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+    if (datagramSocket != null) {
+      datagramSocket.close();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import net.logstash.logging.handler.SocketHandler.Protocol;
+
+/**
+ * Measures {@link SocketHandler#doPublish(ExtLogRecord)} end-to-end, including
+ * formatting, against an in-process sink. Use {@code -t} to run with several
+ * publishing threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketHandlerBenchmark {
+
+  @Param({ "TCP", "UDP" })
+  public Protocol protocol;
+
+  @Param({ "true" })
+  public boolean autoFlush;
+
+  @Param({ "0", "8192" })
+  public int asyncCapacity;
+
+  @Param({ "0", "65536" })
+  public int batchSize;
+
+  private LocalSink sink;
+  private SocketHandler handler;
+
+  @Setup
+  public void setUp() throws IOException {
+    sink = new LocalSink(protocol);
+    handler = new SocketHandler(protocol, InetAddress.getLoopbackAddress(), sink.getPort());
+    handler.setFormatter(new LogstashUtilFormatter());
+    handler.setAutoFlush(autoFlush);
+    handler.setLevel(Level.ALL);
+    handler.setAsyncCapacity(asyncCapacity);
+    handler.setBatchSize(batchSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    handler.close();
+    sink.close();
+  }
+
+  @Benchmark
+  public void doPublish() {
+    ExtLogRecord record = new ExtLogRecord(Level.INFO, "Processed request in 42 ms", FormatStyle.NO_FORMAT,
+        SocketHandlerBenchmark.class.getName());
+    record.setLoggerName("net.logstash.logging.benchmark");
+    handler.doPublish(record);
+  }
+}
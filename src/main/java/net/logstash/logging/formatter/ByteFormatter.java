@@ -0,0 +1,48 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.nio.ByteBuffer;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * A formatter which encodes a record directly into bytes, without creating a
+ * {@link String} which has to be encoded again. A handler which finds this
+ * interface on its formatter may write the bytes straight to its stream.
+ */
+public interface ByteFormatter {
+
+  /**
+   * Formats a record into a buffer owned by the calling thread. The buffer is
+   * reused, its content is only valid until the next call on the same thread.
+   *
+   * @param record
+   *          the record to format
+   * @return the encoded record between position and limit (UTF-8 for text
+   *         formats), {@code null} if the record is not to be written
+   */
+  ByteBuffer formatBytes(ExtLogRecord record);
+
+  /**
+   * Indicates whether the bytes are a binary encoding instead of the UTF-8 of
+   * the formatted string. Records of a binary format can only be written as
+   * bytes, the handler has to frame them itself.
+   *
+   * @return {@code true} for a binary format, {@code false} by default
+   */
+  default boolean isBinary() {
+    return false;
+  }
+}
@@ -0,0 +1,236 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming CBOR (RFC 8949) writer which appends a document field by
+ * field into a reusable byte buffer. Objects are maps of indefinite length, so
+ * members can be appended without counting them first and members encoded in
+ * advance are simply copied. Strings are text strings in UTF-8; unpaired
+ * surrogates are replaced with {@code '?'} like in the JSON encoding.
+ */
+final class CborWriter implements DocumentWriter {
+  private static final int INITIAL_CAPACITY = 1024;
+  /**
+   * larger CBOR byte buffers are dropped after use, the limit matches the
+   * largest retained JSON buffer encoded in UTF-8
+   */
+  static final int MAX_RETAINED_CAPACITY = 3 * StreamingJsonWriter.MAX_RETAINED_CAPACITY;
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int INDEFINITE_MAP = 0xbf;
+  private static final int BREAK = 0xff;
+  private static final ThreadLocal<CborWriter> WRITERS = ThreadLocal.withInitial(CborWriter::new);
+
+  private byte[] buffer = new byte[INITIAL_CAPACITY];
+  private ByteBuffer view = ByteBuffer.wrap(buffer);
+  private char[] chars = new char[INITIAL_CAPACITY];
+  private int size;
+  private boolean inUse;
+
+  /**
+   * Get the writer of the current thread. If the writer is already in use
+   * (e.g. a recursive call while formatting) a new one is returned.
+   *
+   * @return an empty writer
+   */
+  static CborWriter acquire() {
+    CborWriter writer = WRITERS.get();
+    if (writer.inUse) {
+      writer = new CborWriter();
+    }
+    writer.inUse = true;
+    writer.reset();
+    return writer;
+  }
+
+  /**
+   * Hand the writer back so it can be used for the next record. Buffers which
+   * have grown beyond {@link #MAX_RETAINED_CAPACITY} are dropped.
+   */
+  void release() {
+    inUse = false;
+    if (buffer.length > MAX_RETAINED_CAPACITY) {
+      buffer = new byte[INITIAL_CAPACITY];
+      view = ByteBuffer.wrap(buffer);
+    }
+    if (chars.length > StreamingJsonWriter.MAX_RETAINED_CAPACITY) {
+      chars = new char[INITIAL_CAPACITY];
+    }
+  }
+
+  void reset() {
+    size = 0;
+  }
+
+  @Override
+  public CborWriter beginObject() {
+    ensure(1);
+    buffer[size++] = (byte) INDEFINITE_MAP;
+    return this;
+  }
+
+  @Override
+  public CborWriter beginObject(final String name) {
+    text(name);
+    return beginObject();
+  }
+
+  @Override
+  public CborWriter endObject() {
+    ensure(1);
+    buffer[size++] = (byte) BREAK;
+    return this;
+  }
+
+  /**
+   * Begin an array of a known size.
+   *
+   * @param name
+   *          the name of the member
+   * @param length
+   *          the number of values which follow
+   * @return this writer
+   */
+  CborWriter beginArray(final String name, final int length) {
+    text(name);
+    head(MAJOR_ARRAY, length);
+    return this;
+  }
+
+  CborWriter value(final String value) {
+    text(value);
+    return this;
+  }
+
+  @Override
+  public CborWriter field(final String name, final String value) {
+    text(name);
+    text(value);
+    return this;
+  }
+
+  @Override
+  public CborWriter field(final String name, final long value) {
+    text(name);
+    if (value >= 0) {
+      head(MAJOR_UNSIGNED, value);
+    } else {
+      head(MAJOR_NEGATIVE, ~value);
+    }
+    return this;
+  }
+
+  @Override
+  public CborWriter timestamp(final String name, final long millis, final TimestampFormatter formatter) {
+    return field(name, formatter.format(millis));
+  }
+
+  @Override
+  public CborWriter host(final ConstantMembers members) {
+    return raw(members.hostCbor());
+  }
+
+  @Override
+  public CborWriter trailer(final ConstantMembers members) {
+    return raw(members.trailerCbor());
+  }
+
+  /**
+   * Append members which were encoded in advance.
+   *
+   * @param members
+   *          the encoded members
+   * @return this writer
+   */
+  CborWriter raw(final byte[] members) {
+    ensure(members.length);
+    System.arraycopy(members, 0, buffer, size, members.length);
+    size += members.length;
+    return this;
+  }
+
+  /**
+   * @return a copy of the encoded bytes
+   */
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  /**
+   * Returns the encoded document, the buffer is reused for the next document.
+   *
+   * @return the buffer with the document between position and limit
+   */
+  ByteBuffer encode() {
+    // cast to Buffer so the calls link on Java 8, which lacks the covariant overrides
+    ((Buffer) view).clear();
+    ((Buffer) view).limit(size);
+    return view;
+  }
+
+  private void head(final int major, final long value) {
+    ensure(9);
+    final int type = major << 5;
+    if (value < 24) {
+      buffer[size++] = (byte) (type | value);
+    } else if (value < 0x100) {
+      buffer[size++] = (byte) (type | 24);
+      buffer[size++] = (byte) value;
+    } else if (value < 0x10000) {
+      buffer[size++] = (byte) (type | 25);
+      buffer[size++] = (byte) (value >> 8);
+      buffer[size++] = (byte) value;
+    } else if (value < 0x100000000L) {
+      buffer[size++] = (byte) (type | 26);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        buffer[size++] = (byte) (value >> shift);
+      }
+    } else {
+      buffer[size++] = (byte) (type | 27);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        buffer[size++] = (byte) (value >> shift);
+      }
+    }
+  }
+
+  private void text(final String value) {
+    if (value == null) {
+      throw new NullPointerException("CBOR name or value cannot be null");
+    }
+    final int length = value.length();
+    if (chars.length < length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    value.getChars(0, length, chars, 0);
+    // the length of the UTF-8 bytes precedes them
+    final int bytes = Utf8.length(chars, length);
+    head(MAJOR_TEXT, bytes);
+    ensure(bytes);
+    size = Utf8.encode(chars, length, buffer, size);
+  }
+
+  private void ensure(final int additional) {
+    if (size + additional > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(size + additional, buffer.length * 2));
+      view = ByteBuffer.wrap(buffer);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * The members of a document which are the same for every record: the host, the
+ * tags and the static fields. They are escaped and encoded as CBOR once, so the
+ * streaming writers only have to splice them into every record. The tags come from a system
+ * property, so the members are built again when its value changes.
+ */
+final class ConstantMembers {
+  /** the members of every document, a static field must not replace them */
+  static final Set<String> RESERVED_NAMES = Collections.unmodifiableSet(new HashSet<>(
+      Arrays.asList("@timestamp", "@message", "@source", "@source_host", "@fields", "@tags", "@mdc")));
+
+  private final String tagsProperty;
+  private final String staticFieldsProperty;
+  private final JsonArray tags;
+  private final Map<String, String> staticFields;
+  private final String host;
+  private final String trailer;
+  private final byte[] hostCbor;
+  private final byte[] trailerCbor;
+
+  /**
+   * Creates the members.
+   *
+   * @param hostName
+   *          the value of {@code @source_host}
+   * @param tagsProperty
+   *          the comma separated tags, may be {@code null}
+   * @param staticFieldsProperty
+   *          the comma separated {@code name=value} pairs, may be {@code null};
+   *          pairs with one of the {@link #RESERVED_NAMES} are skipped
+   */
+  ConstantMembers(final String hostName, final String tagsProperty, final String staticFieldsProperty) {
+    this.tagsProperty = tagsProperty;
+    this.staticFieldsProperty = staticFieldsProperty;
+    this.tags = (tagsProperty != null) ? parseTags(tagsProperty) : null;
+    this.staticFields = parseStaticFields(staticFieldsProperty);
+
+    StreamingJsonWriter json = new StreamingJsonWriter();
+    host = json.field("@source_host", hostName).toString();
+    json.reset();
+    if (tags != null) {
+      json.beginArray("@tags");
+      for (int i = 0; i < tags.size(); i++) {
+        json.value(tags.getString(i));
+      }
+      json.endArray();
+    }
+    for (Map.Entry<String, String> field : staticFields.entrySet()) {
+      json.field(field.getKey(), field.getValue());
+    }
+    trailer = json.toString();
+
+    CborWriter cbor = new CborWriter();
+    hostCbor = cbor.field("@source_host", hostName).toByteArray();
+    cbor.reset();
+    if (tags != null) {
+      cbor.beginArray("@tags", tags.size());
+      for (int i = 0; i < tags.size(); i++) {
+        cbor.value(tags.getString(i));
+      }
+    }
+    for (Map.Entry<String, String> field : staticFields.entrySet()) {
+      cbor.field(field.getKey(), field.getValue());
+    }
+    trailerCbor = cbor.toByteArray();
+  }
+
+  private static JsonArray parseTags(final String property) {
+    JsonArrayBuilder builder = Json.createArrayBuilder();
+    int last = 0;
+    int index = property.indexOf(',');
+    while (index > 0) {
+      builder.add(property.substring(last, index));
+      last = index + 1;
+      index = property.indexOf(',', last);
+    }
+    builder.add(property.substring(last, property.length()));
+    return builder.build();
+  }
+
+  private static Map<String, String> parseStaticFields(final String property) {
+    if (property == null || property.trim().isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> fields = new LinkedHashMap<>();
+    for (String pair : property.split(",")) {
+      int index = pair.indexOf('=');
+      if (index > 0) {
+        String name = pair.substring(0, index).trim();
+        // a duplicate member would win in tree mode but not when streaming
+        if (!name.isEmpty() && !RESERVED_NAMES.contains(name)) {
+          fields.put(name, pair.substring(index + 1).trim());
+        }
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Indicates whether the members were built from the given configuration.
+   *
+   * @param tagsProperty
+   *          the current value of the tags property
+   * @param staticFieldsProperty
+   *          the current static fields
+   * @return {@code true} if the members can be used as they are
+   */
+  boolean isCurrent(final String tagsProperty, final String staticFieldsProperty) {
+    // usually the very same strings, so equals returns on the identity check
+    return Objects.equals(this.tagsProperty, tagsProperty)
+        && Objects.equals(this.staticFieldsProperty, staticFieldsProperty);
+  }
+
+  /**
+   * @return the escaped {@code @source_host} member
+   */
+  String host() {
+    return host;
+  }
+
+  /**
+   * @return the escaped {@code @tags} and static field members, empty if there
+   *         are none
+   */
+  String trailer() {
+    return trailer;
+  }
+
+  /**
+   * @return the {@code @source_host} member in CBOR
+   */
+  byte[] hostCbor() {
+    return hostCbor;
+  }
+
+  /**
+   * @return the {@code @tags} and static field members in CBOR, empty if there
+   *         are none
+   */
+  byte[] trailerCbor() {
+    return trailerCbor;
+  }
+
+  /**
+   * Adds the tags and the static fields to a document.
+   *
+   * @param builder
+   *          the document
+   */
+  void addTrailer(final JsonObjectBuilder builder) {
+    if (tags != null) {
+      builder.add("@tags", tags);
+    }
+    for (Map.Entry<String, String> field : staticFields.entrySet()) {
+      builder.add(field.getKey(), field.getValue());
+    }
+  }
+}
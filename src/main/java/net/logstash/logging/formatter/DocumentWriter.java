@@ -0,0 +1,62 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+/**
+ * Writes the members of a document in one of the wire formats, so the
+ * formatter builds the same logical document as JSON text or as CBOR.
+ */
+interface DocumentWriter {
+
+  DocumentWriter beginObject();
+
+  DocumentWriter beginObject(String name);
+
+  DocumentWriter endObject();
+
+  DocumentWriter field(String name, String value);
+
+  DocumentWriter field(String name, long value);
+
+  /**
+   * Append a timestamp as a string member.
+   *
+   * @param name
+   *          the name of the member
+   * @param millis
+   *          milliseconds since the epoch
+   * @param formatter
+   *          the formatter of the timestamp
+   * @return this writer
+   */
+  DocumentWriter timestamp(String name, long millis, TimestampFormatter formatter);
+
+  /**
+   * Append the {@code @source_host} member, which was encoded in advance.
+   *
+   * @param members
+   *          the constant members of the document
+   * @return this writer
+   */
+  DocumentWriter host(ConstantMembers members);
+
+  /**
+   * Append the tags and static fields, which were encoded in advance.
+   *
+   * @param members
+   *          the constant members of the document
+   * @return this writer
+   */
+  DocumentWriter trailer(ConstantMembers members);
+}
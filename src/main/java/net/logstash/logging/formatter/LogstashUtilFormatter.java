@@ -13,13 +13,10 @@
  */
 package net.logstash.logging.formatter;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.MissingResourceException;
@@ -27,7 +24,6 @@ import java.util.ResourceBundle;
 import java.util.logging.LogRecord;
 
 import javax.json.Json;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObjectBuilder;
 
@@ -37,12 +33,40 @@ import org.jboss.logmanager.ExtLogRecord;
 /**
  * Log formatter for the JSON format used by logstash
  */
-public class LogstashUtilFormatter extends ExtFormatter {
+public class LogstashUtilFormatter extends ExtFormatter implements ByteFormatter {
+
+  /**
+   * The encoding of the records returned by {@link #formatBytes(ExtLogRecord)}
+   */
+  public enum WireFormat {
+    /**
+     * JSON text in UTF-8, the same as {@link #format(ExtLogRecord)}
+     */
+    JSON,
+    /**
+     * The same document in CBOR (RFC 8949)
+     */
+    CBOR,
+  }
+
   public static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZZ";
   public static final String SYSTEM_PROPERTY_TAGS = LogstashUtilFormatter.class.getName() + ".tags";
   private static final Map<String, Object> CONFIG = new HashMap<>();
   private static JsonBuilderFactory jsonBuilder = Json.createBuilderFactory(CONFIG);
+  private static final TimestampFormatter TIMESTAMP_FORMATTER = new TimestampFormatter();
   private static String hostName;
+  public static final int DEFAULT_STACK_TRACE_CACHE_SIZE = 256;
+  public static final int DEFAULT_MESSAGE_TEMPLATE_CACHE_SIZE = 4096;
+  private volatile boolean streaming = true;
+  private volatile WireFormat wireFormat = WireFormat.JSON;
+  private int stackTraceCacheSize = DEFAULT_STACK_TRACE_CACHE_SIZE;
+  private int maxStackTraceDepth;
+  private String stackTraceExcludes;
+  private boolean foldCommonFrames = true;
+  private volatile StackTraceCache stackTraceCache = new StackTraceCache(DEFAULT_STACK_TRACE_CACHE_SIZE);
+  private volatile String staticFields;
+  private volatile MessageTemplates messageTemplates = new MessageTemplates(DEFAULT_MESSAGE_TEMPLATE_CACHE_SIZE);
+  private volatile ConstantMembers constants;
 
   static {
     try {
@@ -54,84 +78,196 @@ public class LogstashUtilFormatter extends ExtFormatter {
 
   @Override
   public final String format(final ExtLogRecord record) {
-    SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
-    String dateString = dateFormat.format(new Date(record.getMillis()));
-
     String message = formatExtRecord(record);
     if (message == null) {
       return null;
     }
+    if (streaming) {
+      return formatStreaming(record, message);
+    }
+    String dateString = TIMESTAMP_FORMATTER.format(record.getMillis());
     JsonObjectBuilder builder = jsonBuilder.createObjectBuilder().add("@timestamp", dateString).add("@message", message)
         .add("@source", record.getLoggerName()).add("@source_host", hostName).add("@fields", encodeFields(record));
 
-    addTags(builder);
+    constants().addTrailer(builder);
     addMDC(record, builder);
     return builder.build().toString() + System.lineSeparator();
   }
 
-  private void addMDC(final ExtLogRecord record, JsonObjectBuilder builder) {
-    boolean hasMDC = false;
-    JsonObjectBuilder mdcBuilder = jsonBuilder.createObjectBuilder();
-    for (Map.Entry<String, String> entry : record.getMdcCopy().entrySet()) {
-      hasMDC = true;
-      mdcBuilder.add(entry.getKey(), entry.getValue());
+  /**
+   * Formats the record as UTF-8 without creating a string of the document. In
+   * streaming mode the document is encoded from the buffer of the streaming
+   * writer of the calling thread.
+   */
+  @Override
+  public final ByteBuffer formatBytes(final ExtLogRecord record) {
+    if (wireFormat == WireFormat.CBOR) {
+      return formatCbor(record);
     }
-    if (hasMDC) {
-      builder.add("@mdc", mdcBuilder.build());
+    if (!streaming) {
+      String formatted = format(record);
+      return (formatted != null) ? ByteBuffer.wrap(formatted.getBytes(StandardCharsets.UTF_8)) : null;
+    }
+    String message = formatExtRecord(record);
+    if (message == null) {
+      return null;
+    }
+    StreamingJsonWriter json = StreamingJsonWriter.acquire();
+    try {
+      writeDocument(record, message, json);
+      json.raw(System.lineSeparator());
+      return json.encode();
+    } finally {
+      json.release();
+    }
+  }
+
+  private ByteBuffer formatCbor(final ExtLogRecord record) {
+    String message = formatExtRecord(record);
+    if (message == null) {
+      return null;
+    }
+    CborWriter cbor = CborWriter.acquire();
+    try {
+      writeDocument(record, message, cbor);
+      return cbor.encode();
+    } finally {
+      cbor.release();
+    }
+  }
+
+  private String formatStreaming(final ExtLogRecord record, final String message) {
+    StreamingJsonWriter json = StreamingJsonWriter.acquire();
+    try {
+      writeDocument(record, message, json);
+      json.raw(System.lineSeparator());
+      return json.toString();
+    } finally {
+      json.release();
+    }
+  }
+
+  private void writeDocument(final ExtLogRecord record, final String message, final DocumentWriter json) {
+    ConstantMembers members = constants();
+    json.beginObject().timestamp("@timestamp", record.getMillis(), TIMESTAMP_FORMATTER).field("@message", message)
+        .field("@source", record.getLoggerName()).host(members);
+    json.beginObject("@fields");
+    writeFields(record, json);
+    json.endObject();
+    json.trailer(members);
+    writeMDC(record, json);
+    json.endObject();
+  }
+
+  private void writeFields(final LogRecord record, final DocumentWriter json) {
+    Throwable t = record.getThrown();
+    StackTraceCache.Rendered rendered = (t != null) ? stackTraceCache.get(t) : null;
+    json.field("timestamp", record.getMillis());
+    json.field("level", record.getLevel().toString());
+    json.field("line_number", (rendered != null) ? rendered.lineNumber : 0);
+    writeValue(json, "class", record.getSourceClassName());
+    writeValue(json, "method", record.getSourceMethodName());
+    if (t != null) {
+      if (record.getSourceClassName() != null) {
+        json.field("exception_class", t.getClass().getName());
+      }
+      if (t.getMessage() != null) {
+        json.field("exception_message", t.getMessage());
+      }
+      if (rendered.stacktrace != null) {
+        json.field("stacktrace", rendered.stacktrace);
+      }
     }
+    if (record instanceof RepeatedRecord) {
+      RepeatedRecord repeated = (RepeatedRecord) record;
+      json.field("repeat_count", repeated.getRepeatCount());
+      json.field("first_timestamp", repeated.getFirstMillis());
+      json.field("last_timestamp", repeated.getLastMillis());
+    }
+  }
+
+  private void writeValue(final DocumentWriter json, final String key, final String value) {
+    json.field(key, (value != null) ? value : "null");
   }
 
-  private void addTags(JsonObjectBuilder builder) {
+  /**
+   * Returns the members which are the same for every record. They are only
+   * built again if the tags property or the static fields have changed.
+   */
+  private ConstantMembers constants() {
     String tags = System.getProperty(SYSTEM_PROPERTY_TAGS);
-    if (tags != null) {
-      JsonArrayBuilder tagsBuilder = jsonBuilder.createArrayBuilder();
-      int last = 0;
-      int index = tags.indexOf(',');
-      while (index > 0) {
-        tagsBuilder.add(tags.substring(last, index));
-        last = index + 1;
-        index = tags.indexOf(',', last);
+    String fields = staticFields;
+    ConstantMembers members = constants;
+    if (members == null || !members.isCurrent(tags, fields)) {
+      members = new ConstantMembers(hostName, tags, fields);
+      constants = members;
+    }
+    return members;
+  }
+
+  private void writeMDC(final ExtLogRecord record, final DocumentWriter json) {
+    Map<String, ?> mdc = RecordMdc.of(record);
+    if (!mdc.isEmpty()) {
+      json.beginObject("@mdc");
+      for (Map.Entry<String, ?> entry : mdc.entrySet()) {
+        if (entry.getValue() != null) {
+          json.field(entry.getKey(), entry.getValue().toString());
+        }
       }
-      tagsBuilder.add(tags.substring(last, tags.length()));
-      builder.add("@tags", tagsBuilder.build());
+      json.endObject();
+    }
+  }
+
+  private void addMDC(final ExtLogRecord record, JsonObjectBuilder builder) {
+    Map<String, ?> mdc = RecordMdc.of(record);
+    if (!mdc.isEmpty()) {
+      JsonObjectBuilder mdcBuilder = jsonBuilder.createObjectBuilder();
+      for (Map.Entry<String, ?> entry : mdc.entrySet()) {
+        if (entry.getValue() != null) {
+          mdcBuilder.add(entry.getKey(), entry.getValue().toString());
+        }
+      }
+      builder.add("@mdc", mdcBuilder.build());
     }
   }
 
   private String formatExtRecord(final ExtLogRecord record) {
     String format = getMessageFormat(record);
     if (format == null) {
-      return super.formatMessage(record);
+      return null;
     }
     Object[] parameters = record.getParameters();
-    String msg;
     switch (record.getFormatStyle()) {
     case MESSAGE_FORMAT:
-      msg = format.indexOf("{0") >= 0 ? MessageFormat.format(format, parameters) : format;
-      break;
+      return format.indexOf("{0") >= 0 ? messageTemplates.formatMessageFormat(format, parameters) : format;
     case PRINTF:
-      msg = (parameters == null) ? String.format(format) : String.format(format, parameters);
-      break;
+      return messageTemplates.formatPrintf(format, parameters);
     case NO_FORMAT:
     default:
-      msg = format;
-      break;
+      return format;
     }
-    record.setParameters(null);
-    record.setMessage(msg);
-    return super.formatMessage(record);
   }
 
+  /**
+   * Formats the message of a record. Unlike
+   * {@link java.util.logging.Formatter#formatMessage(LogRecord)} this method
+   * neither locks the formatter nor changes the record, so one formatter can be
+   * shared by several handlers and a record can be formatted more than once.
+   *
+   * @param record
+   *          the log record
+   * @return the formatted message, {@code null} if the record has no message
+   */
   @Override
-  public synchronized String formatMessage(final LogRecord record) {
+  public String formatMessage(final LogRecord record) {
     if (record instanceof ExtLogRecord) {
       return formatExtRecord((ExtLogRecord) record);
     }
     String format = getMessageFormat(record);
-    Object[] parameters = record.getParameters();
-    String msg = format.indexOf('{') >= 0 ? MessageFormat.format(format, parameters) : format;
-    record.setParameters(null);
-    record.setMessage(msg);
-    return super.formatMessage(record);
+    if (format == null) {
+      return null;
+    }
+    return format.indexOf('{') >= 0 ? messageTemplates.formatMessageFormat(format, record.getParameters()) : format;
   }
 
   private String getMessageFormat(LogRecord record) {
@@ -158,13 +294,21 @@ public class LogstashUtilFormatter extends ExtFormatter {
    * @return objectBuilder
    */
   protected final JsonObjectBuilder encodeFields(final LogRecord record) {
+    Throwable t = record.getThrown();
+    StackTraceCache.Rendered rendered = (t != null) ? stackTraceCache.get(t) : null;
     JsonObjectBuilder builder = jsonBuilder.createObjectBuilder();
     builder.add("timestamp", record.getMillis());
     builder.add("level", record.getLevel().toString());
-    builder.add("line_number", getLineNumber(record));
+    builder.add("line_number", (rendered != null) ? rendered.lineNumber : 0);
     addSourceClassName(record, builder);
     addSourceMethodName(record, builder);
-    addThrowableInfo(record, builder);
+    addThrowableInfo(record, rendered, builder);
+    if (record instanceof RepeatedRecord) {
+      RepeatedRecord repeated = (RepeatedRecord) record;
+      builder.add("repeat_count", repeated.getRepeatCount());
+      builder.add("first_timestamp", repeated.getFirstMillis());
+      builder.add("last_timestamp", repeated.getLastMillis());
+    }
     return builder;
   }
 
@@ -178,6 +322,12 @@ public class LogstashUtilFormatter extends ExtFormatter {
    */
   protected final void addThrowableInfo(final LogRecord record, final JsonObjectBuilder builder) {
     Throwable t = record.getThrown();
+    addThrowableInfo(record, (t != null) ? stackTraceCache.get(t) : null, builder);
+  }
+
+  private void addThrowableInfo(final LogRecord record, final StackTraceCache.Rendered rendered,
+      final JsonObjectBuilder builder) {
+    Throwable t = record.getThrown();
     if (t != null) {
       if (record.getSourceClassName() != null) {
         builder.add("exception_class", t.getClass().getName());
@@ -185,7 +335,10 @@ public class LogstashUtilFormatter extends ExtFormatter {
       if (t.getMessage() != null) {
         builder.add("exception_message", t.getMessage());
       }
-      addStacktraceElements(record, builder);
+      // print whole stacktrace including message, class and cause
+      if (rendered.stacktrace != null) {
+        builder.add("stacktrace", rendered.stacktrace);
+      }
     }
   }
 
@@ -240,17 +393,211 @@ public class LogstashUtilFormatter extends ExtFormatter {
     addValue(builder, "class", record.getSourceClassName());
   }
 
-  private void addStacktraceElements(final LogRecord record, final JsonObjectBuilder builder) {
-    Throwable t = record.getThrown();
-    // print whole stacktrace including message, class and cause
-    if (t != null && t.getStackTrace().length > 0) {
-      StringWriter sw = new StringWriter();
-      PrintWriter pw = new PrintWriter(sw);
-      pw.println();
-      t.printStackTrace(pw);
-      pw.close();
-      builder.add("stacktrace", sw.toString());
-    }
+  /**
+   * Returns the maximum number of rendered stack traces which are kept for
+   * exceptions logged again.
+   *
+   * @return the size of the cache, {@code 0} if stack traces are not cached
+   */
+  public int getStackTraceCacheSize() {
+    return stackTraceCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of rendered stack traces which are kept. An
+   * exception with the same class, message and frames in its whole chain as a
+   * cached one is not rendered again; the least recently used stack trace is
+   * evicted.
+   *
+   * @param stackTraceCacheSize
+   *          the size of the cache, {@code 0} to render every stack trace
+   */
+  public synchronized void setStackTraceCacheSize(final int stackTraceCacheSize) {
+    this.stackTraceCacheSize = Math.max(stackTraceCacheSize, 0);
+    resetStackTraceCache();
+  }
+
+  /**
+   * Returns the maximum number of frames rendered for every exception of the
+   * chain.
+   *
+   * @return the number of frames, {@code 0} if all frames are rendered
+   */
+  public int getMaxStackTraceDepth() {
+    return maxStackTraceDepth;
+  }
+
+  /**
+   * Sets the maximum number of frames rendered for every exception of the
+   * chain; the remaining frames are replaced by {@code ... N frames omitted}.
+   *
+   * @param maxStackTraceDepth
+   *          the number of frames, {@code 0} to render all frames
+   */
+  public synchronized void setMaxStackTraceDepth(final int maxStackTraceDepth) {
+    this.maxStackTraceDepth = Math.max(maxStackTraceDepth, 0);
+    resetStackTraceCache();
+  }
+
+  /**
+   * Returns the prefixes of the classes whose frames are omitted.
+   *
+   * @return the comma separated prefixes, {@code null} if no frames are
+   *         omitted
+   */
+  public String getStackTraceExcludes() {
+    return stackTraceExcludes;
+  }
+
+  /**
+   * Sets the prefixes of the classes whose frames are omitted, e.g.
+   * {@code io.undertow.,org.jboss.resteasy.,org.jboss.weld.}. Consecutive
+   * omitted frames are replaced by {@code ... N frames omitted}; the frame
+   * which threw the exception is always rendered.
+   *
+   * @param stackTraceExcludes
+   *          the comma separated prefixes of the class names
+   */
+  public synchronized void setStackTraceExcludes(final String stackTraceExcludes) {
+    this.stackTraceExcludes = stackTraceExcludes;
+    resetStackTraceCache();
+  }
+
+  /**
+   * Indicates whether the frames a cause shares with its enclosing trace are
+   * folded into {@code ... N more}, like {@link Throwable#printStackTrace()}
+   * does.
+   *
+   * @return {@code true} if the common frames are folded (the default)
+   */
+  public boolean isFoldCommonFrames() {
+    return foldCommonFrames;
+  }
+
+  /**
+   * Turns on or off the folding of the frames a cause shares with its
+   * enclosing trace.
+   *
+   * @param foldCommonFrames
+   *          {@code true} to fold the common frames
+   */
+  public synchronized void setFoldCommonFrames(final boolean foldCommonFrames) {
+    this.foldCommonFrames = foldCommonFrames;
+    resetStackTraceCache();
+  }
+
+  private void resetStackTraceCache() {
+    stackTraceCache = new StackTraceCache(stackTraceCacheSize, new StackTraceRenderer(maxStackTraceDepth,
+        StackTraceRenderer.parseExcludes(stackTraceExcludes), foldCommonFrames));
+  }
+
+  /**
+   * Returns the number of stack traces found in the cache.
+   *
+   * @return the number of hits since the cache size was set
+   */
+  public long getStackTraceCacheHits() {
+    return stackTraceCache.getHits();
+  }
+
+  /**
+   * Returns the number of stack traces which had to be rendered.
+   *
+   * @return the number of misses since the cache size was set
+   */
+  public long getStackTraceCacheMisses() {
+    return stackTraceCache.getMisses();
+  }
+
+  /**
+   * Returns the maximum number of parsed message templates per format style.
+   *
+   * @return the number of templates
+   */
+  public int getMessageTemplateCacheSize() {
+    return messageTemplates.getMaxSize();
+  }
+
+  /**
+   * Sets the maximum number of parsed {@code MESSAGE_FORMAT} and
+   * {@code PRINTF} templates which are kept per format style.
+   *
+   * @param messageTemplateCacheSize
+   *          the number of templates, {@code 0} to parse every message
+   */
+  public void setMessageTemplateCacheSize(final int messageTemplateCacheSize) {
+    messageTemplates = new MessageTemplates(messageTemplateCacheSize);
+  }
+
+  /**
+   * Returns the fields which are added to every record.
+   *
+   * @return the comma separated {@code name=value} pairs, {@code null} if
+   *         there are none
+   */
+  public String getStaticFields() {
+    return staticFields;
+  }
+
+  /**
+   * Sets fields which are added to every record after the tags, e.g.
+   * {@code environment=production,service=shop}. Fields named like a member
+   * of every document, e.g. {@code @timestamp}, are ignored.
+   *
+   * @param staticFields
+   *          the comma separated {@code name=value} pairs
+   */
+  public void setStaticFields(final String staticFields) {
+    this.staticFields = staticFields;
+  }
+
+  /**
+   * Indicates whether the JSON document is written field by field into a
+   * reusable buffer instead of building a {@link javax.json.JsonObject} tree.
+   *
+   * @return {@code true} if streaming is enabled (the default)
+   */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Turns on or off the streaming writer. Both modes produce the same output.
+   *
+   * @param streaming
+   *          {@code true} to write the document without an intermediate tree
+   */
+  public void setStreaming(final boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Returns the encoding of the records returned by
+   * {@link #formatBytes(ExtLogRecord)}.
+   *
+   * @return the wire format
+   */
+  public WireFormat getWireFormat() {
+    return wireFormat;
+  }
+
+  /**
+   * Sets the encoding of the records returned by
+   * {@link #formatBytes(ExtLogRecord)}. With {@link WireFormat#CBOR} the
+   * {@link java.util.logging.Handler handlers} which take strings still get
+   * the JSON text, the {@code SocketHandler} sends the CBOR documents with a
+   * length prefix.
+   *
+   * @param wireFormat
+   *          the wire format, {@link WireFormat#JSON} by default
+   */
+  public void setWireFormat(final WireFormat wireFormat) {
+    this.wireFormat = (wireFormat != null) ? wireFormat : WireFormat.JSON;
+  }
+
+  @Override
+  public boolean isBinary() {
+    return wireFormat == WireFormat.CBOR;
   }
 
   /**
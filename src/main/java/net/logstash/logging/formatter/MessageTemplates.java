@@ -0,0 +1,253 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.text.AttributedCharacterIterator;
+import java.text.CharacterIterator;
+import java.text.Format;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Formattable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of parsed message templates for the {@code MESSAGE_FORMAT} and
+ * {@code PRINTF} styles. A template which only consists of text and plain
+ * {@code {0}} or {@code %s} arguments is formatted by concatenation; other
+ * templates fall back to {@link MessageFormat} and {@link String#format}. Once
+ * the cache is full new templates are parsed on every use, because a flood of
+ * distinct templates would not benefit from caching anyway.
+ */
+final class MessageTemplates {
+  private final int maxSize;
+  private final Map<String, Template> messageFormats = new ConcurrentHashMap<>();
+  private final Map<String, Template> printfFormats = new ConcurrentHashMap<>();
+
+  /** A parsed template */
+  interface Template {
+    String format(Object[] parameters);
+  }
+
+  /**
+   * Creates a cache.
+   *
+   * @param maxSize
+   *          the maximum number of templates per style, {@code 0} to parse
+   *          every template
+   */
+  MessageTemplates(final int maxSize) {
+    this.maxSize = Math.max(maxSize, 0);
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  int size() {
+    return messageFormats.size() + printfFormats.size();
+  }
+
+  /**
+   * Formats a {@link MessageFormat} pattern.
+   *
+   * @param pattern
+   *          the pattern
+   * @param parameters
+   *          the arguments, may be {@code null}
+   * @return the same text as {@link MessageFormat#format(String, Object...)}
+   */
+  String formatMessageFormat(final String pattern, final Object[] parameters) {
+    return lookup(messageFormats, pattern, MessageTemplates::compileMessageFormat).format(parameters);
+  }
+
+  /**
+   * Formats a {@link java.util.Formatter} pattern.
+   *
+   * @param pattern
+   *          the pattern
+   * @param parameters
+   *          the arguments, may be {@code null}
+   * @return the same text as {@link String#format(String, Object...)}
+   */
+  String formatPrintf(final String pattern, final Object[] parameters) {
+    return lookup(printfFormats, pattern, MessageTemplates::compilePrintf).format(parameters);
+  }
+
+  private Template lookup(final Map<String, Template> cache, final String pattern,
+      final Function<String, Template> compiler) {
+    Template template = cache.get(pattern);
+    if (template == null) {
+      template = compiler.apply(pattern);
+      if (cache.size() < maxSize) {
+        cache.putIfAbsent(pattern, template);
+      }
+    }
+    return template;
+  }
+
+  static Template compileMessageFormat(final String pattern) {
+    final MessageFormat prototype;
+    try {
+      prototype = new MessageFormat(pattern);
+    } catch (IllegalArgumentException e) {
+      // let MessageFormat throw on every use, like without the cache
+      return parameters -> MessageFormat.format(pattern, parameters);
+    }
+    final Locale locale = prototype.getLocale();
+    final Template general = parameters -> (locale.equals(Locale.getDefault(Locale.Category.FORMAT)))
+        ? ((MessageFormat) prototype.clone()).format(parameters)
+        : MessageFormat.format(pattern, parameters);
+    for (Format format : prototype.getFormats()) {
+      if (format != null) {
+        return general;
+      }
+    }
+    // format single character placeholders to find the runs of the arguments
+    final Object[] placeholders = new Object[prototype.getFormatsByArgumentIndex().length];
+    Arrays.fill(placeholders, "?");
+    final AttributedCharacterIterator it = prototype.formatToCharacterIterator(placeholders);
+    final List<String> literals = new ArrayList<>();
+    final List<Integer> arguments = new ArrayList<>();
+    final StringBuilder literal = new StringBuilder();
+    for (char c = it.first(); c != CharacterIterator.DONE; c = it.current()) {
+      final Integer argument = (Integer) it.getAttribute(MessageFormat.Field.ARGUMENT);
+      final int limit = it.getRunLimit(MessageFormat.Field.ARGUMENT);
+      if (argument == null) {
+        while (it.getIndex() < limit) {
+          literal.append(it.current());
+          it.next();
+        }
+        continue;
+      }
+      // adjacent occurrences of the same argument share a run
+      for (int i = it.getIndex(); i < limit; i++) {
+        literals.add(literal.toString());
+        literal.setLength(0);
+        arguments.add(argument);
+      }
+      it.setIndex(limit);
+    }
+    literals.add(literal.toString());
+    return new SimpleMessageFormat(literals.toArray(new String[0]),
+        arguments.stream().mapToInt(Integer::intValue).toArray(), general);
+  }
+
+  static Template compilePrintf(final String pattern) {
+    final Template general = parameters -> (parameters == null) ? String.format(pattern)
+        : String.format(pattern, parameters);
+    final List<String> literals = new ArrayList<>();
+    final StringBuilder literal = new StringBuilder();
+    int start = 0;
+    int index = pattern.indexOf('%');
+    while (index >= 0) {
+      if (index + 1 >= pattern.length()) {
+        return general;
+      }
+      literal.append(pattern, start, index);
+      switch (pattern.charAt(index + 1)) {
+      case 's':
+        literals.add(literal.toString());
+        literal.setLength(0);
+        break;
+      case '%':
+        literal.append('%');
+        break;
+      case 'n':
+        literal.append(System.lineSeparator());
+        break;
+      default:
+        return general;
+      }
+      start = index + 2;
+      index = pattern.indexOf('%', start);
+    }
+    literal.append(pattern, start, pattern.length());
+    literals.add(literal.toString());
+    return new SimplePrintf(literals.toArray(new String[0]), general);
+  }
+
+  /**
+   * A {@link MessageFormat} pattern with plain arguments only. Numbers and
+   * dates are formatted according to the locale, so those are left to the
+   * general template.
+   */
+  private static final class SimpleMessageFormat implements Template {
+    private final String[] literals;
+    private final int[] arguments;
+    private final Template general;
+
+    SimpleMessageFormat(final String[] literals, final int[] arguments, final Template general) {
+      this.literals = literals;
+      this.arguments = arguments;
+      this.general = general;
+    }
+
+    @Override
+    public String format(final Object[] parameters) {
+      final StringBuilder sb = new StringBuilder(literals[0].length() + 16 * arguments.length);
+      for (int i = 0; i < arguments.length; i++) {
+        sb.append(literals[i]);
+        final int argument = arguments[i];
+        if (parameters == null || argument >= parameters.length) {
+          sb.append('{').append(argument).append('}');
+          continue;
+        }
+        final Object value = parameters[argument];
+        if (value instanceof Number || value instanceof Date) {
+          return general.format(parameters);
+        }
+        sb.append(value);
+      }
+      return sb.append(literals[arguments.length]).toString();
+    }
+  }
+
+  /**
+   * A {@link java.util.Formatter} pattern with {@code %s}, {@code %%} and
+   * {@code %n} only.
+   */
+  private static final class SimplePrintf implements Template {
+    private final String[] literals;
+    private final Template general;
+
+    SimplePrintf(final String[] literals, final Template general) {
+      this.literals = literals;
+      this.general = general;
+    }
+
+    @Override
+    public String format(final Object[] parameters) {
+      final int count = literals.length - 1;
+      if (count > 0 && (parameters == null || parameters.length < count)) {
+        // throws the MissingFormatArgumentException
+        return general.format(parameters);
+      }
+      final StringBuilder sb = new StringBuilder(literals[0].length() + 16 * count);
+      for (int i = 0; i < count; i++) {
+        final Object value = parameters[i];
+        if (value instanceof Formattable) {
+          return general.format(parameters);
+        }
+        sb.append(literals[i]).append(value);
+      }
+      return sb.append(literals[count]).toString();
+    }
+  }
+}
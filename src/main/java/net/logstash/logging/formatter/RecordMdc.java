@@ -0,0 +1,104 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Reads the MDC of a record without copying it. {@link ExtLogRecord#getMdcCopy()}
+ * returns a new map on every call, so the map which the record captured from
+ * the logging thread is read from its private field instead. The field is only
+ * used if it holds the same MDC as {@link ExtLogRecord#getMdcCopy()} for a
+ * probe record; otherwise (e.g. another version of the log manager or a
+ * security manager) the public copy is used.
+ */
+final class RecordMdc {
+  private static final MethodHandle MDC_COPY = verified(getter());
+
+  private RecordMdc() {
+  }
+
+  static MethodHandle getter() {
+    try {
+      final Field field = ExtLogRecord.class.getDeclaredField("mdcCopy");
+      if (!Map.class.isAssignableFrom(field.getType())) {
+        return null;
+      }
+      field.setAccessible(true);
+      return MethodHandles.lookup().unreflectGetter(field)
+          .asType(MethodType.methodType(Map.class, ExtLogRecord.class));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks that the getter reads the MDC the record has captured.
+   *
+   * @param getter
+   *          the getter of the field or {@code null}
+   * @return the getter, {@code null} if it does not work as expected
+   */
+  static MethodHandle verified(final MethodHandle getter) {
+    if (getter == null) {
+      return null;
+    }
+    final ExtLogRecord probe = new ExtLogRecord(Level.INFO, null, RecordMdc.class.getName());
+    probe.setMdc(Collections.singletonMap("probe", "value"));
+    try {
+      final Map<?, ?> mdc = (Map<?, ?>) getter.invokeExact(probe);
+      return probe.getMdcCopy().equals(mdc) ? getter : null;
+    } catch (Throwable e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the MDC of a record, which must not be modified. The MDC of the
+   * calling thread is captured by the record if it has not been copied yet,
+   * like {@link ExtLogRecord#getMdcCopy()} does.
+   *
+   * @param record
+   *          the record
+   * @return the MDC, the values are converted with {@code toString()} by the
+   *         caller
+   */
+  static Map<String, ?> of(final ExtLogRecord record) {
+    return of(record, MDC_COPY);
+  }
+
+  @SuppressWarnings("unchecked")
+  static Map<String, ?> of(final ExtLogRecord record, final MethodHandle getter) {
+    if (getter != null) {
+      record.copyMdc();
+      try {
+        final Map<String, ?> mdc = (Map<String, ?>) getter.invokeExact(record);
+        if (mdc != null) {
+          return mdc;
+        }
+      } catch (Throwable e) {
+        // a field getter does not throw, fall back to the copy anyway
+      }
+    }
+    return record.getMdcCopy();
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+/**
+ * A record which stands for repetitions of an identical record that were not
+ * sent one by one. {@link LogstashUtilFormatter} adds the number of
+ * repetitions and their first and last timestamp to {@code @fields}.
+ */
+public interface RepeatedRecord {
+
+  /**
+   * @return the number of repetitions
+   */
+  long getRepeatCount();
+
+  /**
+   * @return the time of the first repetition in milliseconds since the epoch
+   */
+  long getFirstMillis();
+
+  /**
+   * @return the time of the last repetition in milliseconds since the epoch
+   */
+  long getLastMillis();
+}
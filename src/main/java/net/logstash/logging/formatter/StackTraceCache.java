@@ -0,0 +1,292 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of rendered stack traces. A throwable is looked up by its
+ * shape: the class, the string and the frames of every throwable of the chain
+ * (causes and suppressed exceptions), so the same exception logged again and
+ * again from a retry loop is rendered only once.
+ * <p>
+ * Lookups do not take a lock: the shape is collected into a buffer of the
+ * calling thread and only copied when a new stack trace is cached. The least
+ * recently used stack trace is evicted approximately, with a second chance for
+ * the ones which were used since the last eviction.
+ */
+final class StackTraceCache {
+  private static final ThreadLocal<Shape> SHAPES = ThreadLocal.withInitial(Shape::new);
+
+  private final int maxSize;
+  private final StackTraceRenderer renderer;
+  private final Map<Shape, Rendered> cache = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /** A rendered stack trace and the line number of its first frame */
+  static final class Rendered {
+    final String stacktrace;
+    final int lineNumber;
+    // set on every hit, cleared by the eviction
+    private volatile boolean referenced;
+
+    Rendered(final String stacktrace, final int lineNumber) {
+      this.stacktrace = stacktrace;
+      this.lineNumber = lineNumber;
+    }
+  }
+
+  /**
+   * Creates a cache rendering the stack traces like
+   * {@link Throwable#printStackTrace()}.
+   *
+   * @param maxSize
+   *          the maximum number of stack traces, {@code 0} to render every
+   *          stack trace
+   */
+  StackTraceCache(final int maxSize) {
+    this(maxSize, new StackTraceRenderer(0, new String[0], true));
+  }
+
+  /**
+   * Creates a cache.
+   *
+   * @param maxSize
+   *          the maximum number of stack traces, {@code 0} to render every
+   *          stack trace
+   * @param renderer
+   *          renders the stack traces
+   */
+  StackTraceCache(final int maxSize, final StackTraceRenderer renderer) {
+    this.maxSize = Math.max(maxSize, 0);
+    this.renderer = renderer;
+  }
+
+  /**
+   * Returns the rendered stack trace of a throwable.
+   *
+   * @param t
+   *          the throwable
+   * @return the stack trace, {@code null} as stacktrace if the throwable has
+   *         no frames
+   */
+  Rendered get(final Throwable t) {
+    final StackTraceElement[] frames = t.getStackTrace();
+    if (maxSize == 0) {
+      misses.increment();
+      return render(t, frames);
+    }
+    final Shape shape = Shape.acquire(t, frames);
+    try {
+      Rendered rendered = cache.get(shape);
+      if (rendered != null) {
+        hits.increment();
+        if (!rendered.referenced) {
+          rendered.referenced = true;
+        }
+        return rendered;
+      }
+      misses.increment();
+      rendered = render(t, frames);
+      if (cache.putIfAbsent(shape.copy(), rendered) == null) {
+        evict(rendered);
+      }
+      return rendered;
+    } finally {
+      shape.release();
+    }
+  }
+
+  /**
+   * Removes the first entries which were not used since the last eviction,
+   * except the one which has just been added.
+   */
+  private void evict(final Rendered added) {
+    while (cache.size() > maxSize) {
+      boolean removed = false;
+      for (Iterator<Rendered> it = cache.values().iterator(); it.hasNext() && !removed;) {
+        final Rendered rendered = it.next();
+        if (rendered == added) {
+          continue;
+        }
+        if (rendered.referenced) {
+          rendered.referenced = false;
+        } else {
+          it.remove();
+          removed = true;
+        }
+      }
+    }
+  }
+
+  private Rendered render(final Throwable t, final StackTraceElement[] frames) {
+    final int lineNumber = (frames.length > 0 && frames[0] != null) ? frames[0].getLineNumber() : 0;
+    if (frames.length == 0) {
+      return new Rendered(null, lineNumber);
+    }
+    return new Rendered(renderer.render(t, frames), lineNumber);
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * The structure of a throwable chain in the order it is printed: for every
+   * throwable its class name, its string and its frames. The instance of a
+   * thread is refilled for every lookup, a copy is stored in the cache.
+   */
+  private static final class Shape {
+    private Object[] parts;
+    private int length;
+    private int hash;
+    // the throwables seen while collecting, to detect circular references
+    private Throwable[] chain;
+    private int chainLength;
+    private boolean inUse;
+
+    Shape() {
+      this(new Object[48], 0, 0);
+      chain = new Throwable[16];
+    }
+
+    private Shape(final Object[] parts, final int length, final int hash) {
+      this.parts = parts;
+      this.length = length;
+      this.hash = hash;
+    }
+
+    /**
+     * Collects the shape into the instance of the current thread. If it is
+     * already in use (e.g. a throwable which logs in its toString) a new one is
+     * returned.
+     */
+    static Shape acquire(final Throwable t, final StackTraceElement[] frames) {
+      Shape shape = SHAPES.get();
+      if (shape.inUse) {
+        shape = new Shape();
+      }
+      shape.inUse = true;
+      shape.add(t, frames);
+      int h = 1;
+      for (int i = 0; i < shape.length; i++) {
+        final Object part = shape.parts[i];
+        h = 31 * h + ((part instanceof StackTraceElement[]) ? Arrays.hashCode((StackTraceElement[]) part)
+            : (part != null) ? part.hashCode() : 0);
+      }
+      shape.hash = h;
+      return shape;
+    }
+
+    /** drops the references to the throwables, so the thread does not keep them alive */
+    void release() {
+      Arrays.fill(parts, 0, length, null);
+      Arrays.fill(chain, 0, chainLength, null);
+      length = 0;
+      chainLength = 0;
+      inUse = false;
+    }
+
+    Shape copy() {
+      return new Shape(Arrays.copyOf(parts, length), length, hash);
+    }
+
+    private void add(final Throwable t, final StackTraceElement[] frames) {
+      // the name, a class would keep its class loader alive in the cache
+      addPart(t.getClass().getName());
+      addPart(t.toString());
+      if (seen(t)) {
+        // a circular reference is printed without frames
+        addPart(null);
+        return;
+      }
+      addPart(frames);
+      for (Throwable suppressed : t.getSuppressed()) {
+        add(suppressed, suppressed.getStackTrace());
+      }
+      final Throwable cause = t.getCause();
+      if (cause != null) {
+        add(cause, cause.getStackTrace());
+      }
+    }
+
+    private void addPart(final Object part) {
+      if (length == parts.length) {
+        parts = Arrays.copyOf(parts, length * 2);
+      }
+      parts[length++] = part;
+    }
+
+    private boolean seen(final Throwable t) {
+      for (int i = 0; i < chainLength; i++) {
+        if (chain[i] == t) {
+          return true;
+        }
+      }
+      if (chainLength == chain.length) {
+        chain = Arrays.copyOf(chain, chainLength * 2);
+      }
+      chain[chainLength++] = t;
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Shape)) {
+        return false;
+      }
+      final Shape other = (Shape) obj;
+      if (hash != other.hash || length != other.length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        final Object a = parts[i];
+        final Object b = other.parts[i];
+        if (a instanceof StackTraceElement[] && b instanceof StackTraceElement[]) {
+          if (!Arrays.equals((StackTraceElement[]) a, (StackTraceElement[]) b)) {
+            return false;
+          }
+        } else if (a == null ? b != null : !a.equals(b)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
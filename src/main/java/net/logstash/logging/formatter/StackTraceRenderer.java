@@ -0,0 +1,156 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Renders the stack trace of a throwable chain in the format of
+ * {@link Throwable#printStackTrace()}, preceded by a line separator. With the
+ * default settings the output is identical; frames can be limited per
+ * throwable, frames of excluded packages are collapsed and the frames a cause
+ * shares with its enclosing trace are folded into {@code ... n more}.
+ */
+final class StackTraceRenderer {
+  private static final String CAUSE_CAPTION = "Caused by: ";
+  private static final String SUPPRESSED_CAPTION = "Suppressed: ";
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  private final int maxDepth;
+  private final String[] excludes;
+  private final boolean foldCommonFrames;
+
+  /**
+   * Creates a renderer.
+   *
+   * @param maxDepth
+   *          the maximum number of frames rendered per throwable, {@code 0} for
+   *          all frames
+   * @param excludes
+   *          the prefixes of the class names whose frames are omitted
+   * @param foldCommonFrames
+   *          whether the frames a cause shares with its enclosing trace are
+   *          folded
+   */
+  StackTraceRenderer(final int maxDepth, final String[] excludes, final boolean foldCommonFrames) {
+    this.maxDepth = Math.max(maxDepth, 0);
+    this.excludes = excludes.clone();
+    this.foldCommonFrames = foldCommonFrames;
+  }
+
+  /**
+   * Parses a comma separated list of class name prefixes.
+   *
+   * @param excludes
+   *          the list, may be {@code null}
+   * @return the prefixes without blanks
+   */
+  static String[] parseExcludes(final String excludes) {
+    if (excludes == null || excludes.trim().isEmpty()) {
+      return new String[0];
+    }
+    String[] prefixes = excludes.split(",");
+    int n = 0;
+    for (String prefix : prefixes) {
+      if (!prefix.trim().isEmpty()) {
+        prefixes[n++] = prefix.trim();
+      }
+    }
+    return Arrays.copyOf(prefixes, n);
+  }
+
+  String render(final Throwable t, final StackTraceElement[] frames) {
+    final StringBuilder sb = new StringBuilder(256 + frames.length * 64);
+    final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    seen.add(t);
+    sb.append(LINE_SEPARATOR).append(t).append(LINE_SEPARATOR);
+    appendFrames(sb, frames, frames.length, "");
+    appendEnclosed(sb, t, frames, seen, "");
+    return sb.toString();
+  }
+
+  private void appendEnclosed(final StringBuilder sb, final Throwable t, final StackTraceElement[] frames,
+      final Set<Throwable> seen, final String prefix) {
+    for (Throwable suppressed : t.getSuppressed()) {
+      append(sb, suppressed, frames, SUPPRESSED_CAPTION, prefix + "\t", seen);
+    }
+    final Throwable cause = t.getCause();
+    if (cause != null) {
+      append(sb, cause, frames, CAUSE_CAPTION, prefix, seen);
+    }
+  }
+
+  private void append(final StringBuilder sb, final Throwable t, final StackTraceElement[] enclosing,
+      final String caption, final String prefix, final Set<Throwable> seen) {
+    if (!seen.add(t)) {
+      sb.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(t).append(']').append(LINE_SEPARATOR);
+      return;
+    }
+    final StackTraceElement[] frames = t.getStackTrace();
+    int unique = frames.length;
+    if (foldCommonFrames) {
+      int n = enclosing.length;
+      while (unique > 0 && n > 0 && frames[unique - 1].equals(enclosing[n - 1])) {
+        unique--;
+        n--;
+      }
+    }
+    sb.append(prefix).append(caption).append(t).append(LINE_SEPARATOR);
+    appendFrames(sb, frames, unique, prefix);
+    if (unique < frames.length) {
+      sb.append(prefix).append("\t... ").append(frames.length - unique).append(" more").append(LINE_SEPARATOR);
+    }
+    appendEnclosed(sb, t, frames, seen, prefix);
+  }
+
+  private void appendFrames(final StringBuilder sb, final StackTraceElement[] frames, final int count,
+      final String prefix) {
+    final int limit = (maxDepth > 0) ? Math.min(count, maxDepth) : count;
+    int omitted = 0;
+    for (int i = 0; i < limit; i++) {
+      // the frame which threw is always rendered
+      if (i > 0 && isExcluded(frames[i])) {
+        omitted++;
+        continue;
+      }
+      appendOmitted(sb, omitted, prefix);
+      omitted = 0;
+      sb.append(prefix).append("\tat ").append(frames[i]).append(LINE_SEPARATOR);
+    }
+    appendOmitted(sb, omitted + count - limit, prefix);
+  }
+
+  private static void appendOmitted(final StringBuilder sb, final int omitted, final String prefix) {
+    if (omitted > 0) {
+      sb.append(prefix).append("\t... ").append(omitted).append(omitted == 1 ? " frame omitted" : " frames omitted")
+          .append(LINE_SEPARATOR);
+    }
+  }
+
+  private boolean isExcluded(final StackTraceElement frame) {
+    if (excludes.length == 0) {
+      return false;
+    }
+    final String className = frame.getClassName();
+    for (String exclude : excludes) {
+      if (className.startsWith(exclude)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal streaming JSON writer which appends a document field by field into a
+ * reusable character buffer. The escaping rules are the same as the ones of the
+ * javax.json reference implementation, so the output is identical to
+ * {@code JsonObject.toString()}.
+ */
+final class StreamingJsonWriter implements DocumentWriter {
+  private static final int INITIAL_CAPACITY = 1024;
+  /** larger buffers are dropped after use, so one huge record does not pin them */
+  static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final ThreadLocal<StreamingJsonWriter> WRITERS = ThreadLocal.withInitial(StreamingJsonWriter::new);
+
+  private StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+  private char[] chars = new char[INITIAL_CAPACITY];
+  private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_CAPACITY * 3);
+  private boolean comma;
+  private boolean inUse;
+
+  /**
+   * Get the writer of the current thread. If the writer is already in use
+   * (e.g. a recursive call while formatting) a new one is returned.
+   *
+   * @return an empty writer
+   */
+  static StreamingJsonWriter acquire() {
+    StreamingJsonWriter writer = WRITERS.get();
+    if (writer.inUse) {
+      writer = new StreamingJsonWriter();
+    }
+    writer.inUse = true;
+    writer.reset();
+    return writer;
+  }
+
+  /**
+   * Hand the writer back so it can be used for the next record. The buffers
+   * keep the size of the largest record so far, unless they have grown beyond
+   * {@link #MAX_RETAINED_CAPACITY}.
+   */
+  void release() {
+    inUse = false;
+    if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+      buffer = new StringBuilder(INITIAL_CAPACITY);
+    }
+    if (chars.length > MAX_RETAINED_CAPACITY) {
+      // a buffer returned by encode() stays valid, it is only not reused
+      chars = new char[INITIAL_CAPACITY];
+      bytes = ByteBuffer.allocate(INITIAL_CAPACITY * 3);
+    }
+  }
+
+  int capacity() {
+    return buffer.capacity();
+  }
+
+  void reset() {
+    buffer.setLength(0);
+    comma = false;
+  }
+
+  @Override
+  public StreamingJsonWriter beginObject() {
+    separator();
+    buffer.append('{');
+    comma = false;
+    return this;
+  }
+
+  @Override
+  public StreamingJsonWriter beginObject(final String name) {
+    name(name);
+    buffer.append('{');
+    comma = false;
+    return this;
+  }
+
+  @Override
+  public StreamingJsonWriter endObject() {
+    buffer.append('}');
+    comma = true;
+    return this;
+  }
+
+  StreamingJsonWriter beginArray(final String name) {
+    name(name);
+    buffer.append('[');
+    comma = false;
+    return this;
+  }
+
+  StreamingJsonWriter endArray() {
+    buffer.append(']');
+    comma = true;
+    return this;
+  }
+
+  StreamingJsonWriter value(final String value) {
+    requireNonNull(value);
+    separator();
+    appendString(value);
+    comma = true;
+    return this;
+  }
+
+  @Override
+  public StreamingJsonWriter field(final String name, final String value) {
+    requireNonNull(value);
+    name(name);
+    appendString(value);
+    comma = true;
+    return this;
+  }
+
+  @Override
+  public StreamingJsonWriter field(final String name, final long value) {
+    name(name);
+    buffer.append(value);
+    comma = true;
+    return this;
+  }
+
+  /**
+   * Append a timestamp, formatted straight into the buffer. The formatted
+   * timestamp needs no escaping.
+   */
+  @Override
+  public StreamingJsonWriter timestamp(final String name, final long millis, final TimestampFormatter formatter) {
+    name(name);
+    buffer.append('"');
+    formatter.formatTo(millis, buffer);
+    buffer.append('"');
+    comma = true;
+    return this;
+  }
+
+  /**
+   * Append members which were escaped in advance, without the separating
+   * comma.
+   *
+   * @param members
+   *          the members, nothing is appended if empty
+   * @return this writer
+   */
+  StreamingJsonWriter members(final String members) {
+    if (!members.isEmpty()) {
+      separator();
+      buffer.append(members);
+      comma = true;
+    }
+    return this;
+  }
+
+  @Override
+  public StreamingJsonWriter host(final ConstantMembers members) {
+    return members(members.host());
+  }
+
+  @Override
+  public StreamingJsonWriter trailer(final ConstantMembers members) {
+    return members(members.trailer());
+  }
+
+  /**
+   * Append raw text (e.g. a line separator) after the document.
+   *
+   * @param text
+   *          the text to append unescaped
+   * @return this writer
+   */
+  StreamingJsonWriter raw(final String text) {
+    buffer.append(text);
+    return this;
+  }
+
+  StringBuilder buffer() {
+    return buffer;
+  }
+
+  @Override
+  public String toString() {
+    return buffer.toString();
+  }
+
+  /**
+   * Encodes the document as UTF-8 into the byte buffer of this writer, which
+   * is reused for the next document. Unpaired surrogates are replaced with
+   * {@code '?'} like {@link String#getBytes(java.nio.charset.Charset)} does.
+   *
+   * @return the buffer with the document between position and limit
+   */
+  ByteBuffer encode() {
+    final int length = buffer.length();
+    if (chars.length < length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+      bytes = ByteBuffer.allocate(chars.length * 3);
+    }
+    buffer.getChars(0, length, chars, 0);
+    final int n = Utf8.encode(chars, length, bytes.array(), 0);
+    // cast to Buffer so the calls link on Java 8, which lacks the covariant overrides
+    ((Buffer) bytes).clear();
+    ((Buffer) bytes).limit(n);
+    return bytes;
+  }
+
+  private void name(final String name) {
+    requireNonNull(name);
+    separator();
+    appendString(name);
+    buffer.append(':');
+  }
+
+  private void separator() {
+    if (comma) {
+      buffer.append(',');
+    }
+  }
+
+  private void appendString(final String value) {
+    buffer.append('"');
+    escape(value, buffer);
+    buffer.append('"');
+  }
+
+  private static void requireNonNull(final String value) {
+    if (value == null) {
+      throw new NullPointerException("JSON name or value cannot be null");
+    }
+  }
+
+  /**
+   * Escape a string for use inside a JSON string literal.
+   *
+   * @param value
+   *          the unescaped value
+   * @param target
+   *          the buffer to append to
+   */
+  static void escape(final CharSequence value, final StringBuilder target) {
+    final int length = value.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\') {
+        continue;
+      }
+      target.append(value, start, i);
+      start = i + 1;
+      switch (c) {
+      case '"':
+      case '\\':
+        target.append('\\').append(c);
+        break;
+      case '\b':
+        target.append("\\b");
+        break;
+      case '\f':
+        target.append("\\f");
+        break;
+      case '\n':
+        target.append("\\n");
+        break;
+      case '\r':
+        target.append("\\r");
+        break;
+      case '\t':
+        target.append("\\t");
+        break;
+      default:
+        target.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+        break;
+      }
+    }
+    target.append(value, start, length);
+  }
+}
@@ -0,0 +1,183 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Renders timestamps in the format {@link LogstashUtilFormatter#DATE_FORMAT}.
+ * The text up to the seconds and the zone offset are cached for the current
+ * second, so only the milliseconds have to be written for most records. The
+ * cache is an immutable snapshot published through a volatile field, so the
+ * formatter can be used by concurrent callers without locking.
+ */
+final class TimestampFormatter {
+  static final int LENGTH = 28;
+  private static final long MILLIS_PER_SECOND = 1000L;
+  private static final long MILLIS_PER_DAY = 86400000L;
+  private static final int MAX_YEAR = 9999;
+
+  private volatile Second cached;
+
+  /**
+   * Format the timestamp.
+   *
+   * @param millis
+   *          milliseconds since the epoch
+   * @return the formatted timestamp
+   */
+  String format(final long millis) {
+    Second second = second(millis);
+    if (second == null) {
+      return new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT).format(new Date(millis));
+    }
+    char[] text = new char[LENGTH];
+    second.render(millis, text);
+    return new String(text);
+  }
+
+  /**
+   * Format the timestamp and append it to a buffer.
+   *
+   * @param millis
+   *          milliseconds since the epoch
+   * @param target
+   *          the buffer to append to
+   */
+  void formatTo(final long millis, final StringBuilder target) {
+    Second second = second(millis);
+    if (second == null) {
+      target.append(new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT).format(new Date(millis)));
+      return;
+    }
+    int ms = (int) (millis - second.start);
+    target.append(second.prefix, 0, 20).append((char) ('0' + ms / 100)).append((char) ('0' + (ms / 10) % 10))
+        .append((char) ('0' + ms % 10)).append(second.offset);
+  }
+
+  private Second second(final long millis) {
+    Second second = cached;
+    if (second != null && millis >= second.start && millis < second.start + MILLIS_PER_SECOND) {
+      return second;
+    }
+    if (millis < 0) {
+      // the Julian calendar is not supported by the cached path
+      return null;
+    }
+    second = Second.create(millis, TimeZone.getDefault(), cached);
+    if (second != null) {
+      cached = second;
+    }
+    return second;
+  }
+
+  /** the cached text of one second */
+  private static final class Second {
+    private final long start;
+    private final int offsetMillis;
+    /** yyyy-MM-dd'T'HH:mm:ss.000 */
+    private final char[] prefix;
+    /** RFC 822 zone offset */
+    private final char[] offset;
+
+    private Second(long start, int offsetMillis, char[] prefix, char[] offset) {
+      this.start = start;
+      this.offsetMillis = offsetMillis;
+      this.prefix = prefix;
+      this.offset = offset;
+    }
+
+    static Second create(final long millis, final TimeZone zone, final Second previous) {
+      long start = millis - Math.floorMod(millis, MILLIS_PER_SECOND);
+      int offsetMillis = zone.getOffset(start);
+      char[] offset;
+      if (previous != null && previous.offsetMillis == offsetMillis) {
+        offset = previous.offset;
+      } else {
+        offset = renderOffset(offsetMillis);
+      }
+
+      long local = start + offsetMillis;
+      long days = Math.floorDiv(local, MILLIS_PER_DAY);
+      int secondOfDay = (int) (Math.floorMod(local, MILLIS_PER_DAY) / MILLIS_PER_SECOND);
+
+      // civil date from days since epoch (proleptic Gregorian calendar)
+      long z = days + 719468;
+      long era = Math.floorDiv(z, 146097L);
+      long dayOfEra = z - era * 146097;
+      long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+      long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+      long mp = (5 * dayOfYear + 2) / 153;
+      int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+      int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+      long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+      if (year < 1 || year > MAX_YEAR) {
+        return null;
+      }
+
+      char[] prefix = new char[LENGTH - 5];
+      put4(prefix, 0, (int) year);
+      prefix[4] = '-';
+      put2(prefix, 5, month);
+      prefix[7] = '-';
+      put2(prefix, 8, day);
+      prefix[10] = 'T';
+      put2(prefix, 11, secondOfDay / 3600);
+      prefix[13] = ':';
+      put2(prefix, 14, (secondOfDay / 60) % 60);
+      prefix[16] = ':';
+      put2(prefix, 17, secondOfDay % 60);
+      prefix[19] = '.';
+      prefix[20] = '0';
+      prefix[21] = '0';
+      prefix[22] = '0';
+      return new Second(start, offsetMillis, prefix, offset);
+    }
+
+    void render(final long millis, final char[] target) {
+      System.arraycopy(prefix, 0, target, 0, prefix.length);
+      System.arraycopy(offset, 0, target, prefix.length, offset.length);
+      int ms = (int) (millis - start);
+      target[20] = (char) ('0' + ms / 100);
+      target[21] = (char) ('0' + (ms / 10) % 10);
+      target[22] = (char) ('0' + ms % 10);
+    }
+
+    private static char[] renderOffset(final int offsetMillis) {
+      int minutes = offsetMillis / 60000;
+      char[] text = new char[5];
+      if (minutes >= 0) {
+        text[0] = '+';
+      } else {
+        text[0] = '-';
+        minutes = -minutes;
+      }
+      put2(text, 1, minutes / 60);
+      put2(text, 3, minutes % 60);
+      return text;
+    }
+
+    private static void put2(final char[] target, final int index, final int value) {
+      target[index] = (char) ('0' + value / 10);
+      target[index + 1] = (char) ('0' + value % 10);
+    }
+
+    private static void put4(final char[] target, final int index, final int value) {
+      put2(target, index, value / 100);
+      put2(target, index + 2, value % 100);
+    }
+  }
+}
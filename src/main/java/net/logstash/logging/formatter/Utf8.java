@@ -0,0 +1,104 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+/**
+ * UTF-8 encoder of the streaming writers. Unpaired surrogates are replaced with
+ * {@code '?'} like {@link String#getBytes(java.nio.charset.Charset)} does.
+ * The characters are read from an array, a bulk copy out of a string or
+ * builder is much faster than {@code charAt} for every character.
+ */
+final class Utf8 {
+
+  private Utf8() {
+  }
+
+  /**
+   * Returns the number of bytes of the encoded characters.
+   *
+   * @param chars
+   *          the characters
+   * @param length
+   *          the number of characters
+   * @return the number of bytes
+   */
+  static int length(final char[] chars, final int length) {
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      final char c = chars[i];
+      if (c < 0x80) {
+        continue;
+      }
+      if (c < 0x800) {
+        bytes++;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+        // four bytes for two characters
+        bytes += 2;
+        i++;
+      } else if (!Character.isSurrogate(c)) {
+        bytes += 2;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes characters into a byte array, which must have room for
+   * {@link #length(char[], int)} bytes (at most three bytes per character).
+   *
+   * @param chars
+   *          the characters
+   * @param length
+   *          the number of characters
+   * @param target
+   *          the byte array
+   * @param offset
+   *          the index of the first byte
+   * @return the index after the last byte
+   */
+  static int encode(final char[] chars, final int length, final byte[] target, final int offset) {
+    int n = offset;
+    int i = 0;
+    // fast path for ASCII
+    while (i < length && chars[i] < 0x80) {
+      target[n++] = (byte) chars[i++];
+    }
+    for (; i < length; i++) {
+      final char c = chars[i];
+      if (c < 0x80) {
+        target[n++] = (byte) c;
+      } else if (c < 0x800) {
+        target[n++] = (byte) (0xc0 | (c >> 6));
+        target[n++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        final char low = (i + 1 < length) ? chars[i + 1] : 0;
+        if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+          final int codePoint = Character.toCodePoint(c, low);
+          target[n++] = (byte) (0xf0 | (codePoint >> 18));
+          target[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          target[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          target[n++] = (byte) (0x80 | (codePoint & 0x3f));
+          i++;
+        } else {
+          target[n++] = '?';
+        }
+      } else {
+        target[n++] = (byte) (0xe0 | (c >> 12));
+        target[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        target[n++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return n;
+  }
+}
@@ -0,0 +1,238 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Decides whether a record is sent before it is formatted. Records below the
+ * sampling level are sampled with a fixed probability, then every logger and
+ * level has a token bucket which limits the records per second. Records at
+ * {@code SEVERE} and above are never sampled, but they are rate limited like
+ * all other records. The suppressed records are counted per logger and level
+ * for a summary. If there are too many loggers their buckets are evicted, the
+ * counts of the evicted buckets are still included in the next summary.
+ */
+final class AdmissionControl {
+  static final int MAX_BUCKETS = 10000;
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final int rateLimit;
+  private final int burst;
+  private final int samplingRate;
+  private final int samplingLevel;
+  private final Map<String, Map<Level, Bucket>> buckets = new ConcurrentHashMap<>();
+  private final Queue<Summarized> evicted = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Creates the admission stage.
+   *
+   * @param rateLimit
+   *          the records per second per logger and level, {@code 0} for no
+   *          limit
+   * @param burst
+   *          the number of records which can be sent at once, at least one
+   * @param samplingRate
+   *          the percentage of the records below the sampling level which are
+   *          sent
+   * @param samplingLevel
+   *          the level below which records are sampled, at most
+   *          {@code SEVERE}
+   */
+  AdmissionControl(final int rateLimit, final int burst, final int samplingRate, final Level samplingLevel) {
+    this.rateLimit = Math.max(rateLimit, 0);
+    this.burst = Math.max(burst, 1);
+    this.samplingRate = Math.min(Math.max(samplingRate, 0), 100);
+    this.samplingLevel = Math.min(samplingLevel.intValue(), Level.SEVERE.intValue());
+  }
+
+  /**
+   * Decides whether a record is sent.
+   *
+   * @param record
+   *          the record
+   * @return {@code true} if the record is sent, {@code false} if it is
+   *         suppressed
+   */
+  boolean admit(final ExtLogRecord record) {
+    final Level level = record.getLevel();
+    final boolean sample = samplingRate < 100 && level.intValue() < samplingLevel;
+    if (!sample && rateLimit == 0) {
+      return true;
+    }
+    final Bucket bucket = bucket(record.getLoggerName(), level);
+    if (sample && ThreadLocalRandom.current().nextInt(100) >= samplingRate) {
+      bucket.sampled();
+      return false;
+    }
+    return rateLimit == 0 || bucket.acquire(System.nanoTime());
+  }
+
+  private Bucket bucket(final String loggerName, final Level level) {
+    final String name = (loggerName != null) ? loggerName : "";
+    Map<Level, Bucket> levels = buckets.get(name);
+    if (levels == null) {
+      if (buckets.size() >= MAX_BUCKETS) {
+        // the loggers are created dynamically, start over
+        evict();
+      }
+      levels = buckets.computeIfAbsent(name, key -> new ConcurrentHashMap<>());
+    }
+    Bucket bucket = levels.get(level);
+    if (bucket == null) {
+      bucket = levels.computeIfAbsent(level, key -> new Bucket());
+    }
+    return bucket;
+  }
+
+  /**
+   * Removes all buckets, the records they suppressed since the last summary
+   * are included in the next one.
+   */
+  private void evict() {
+    for (Map.Entry<String, Map<Level, Bucket>> logger : buckets.entrySet()) {
+      if (buckets.remove(logger.getKey(), logger.getValue())) {
+        for (Map.Entry<Level, Bucket> level : logger.getValue().entrySet()) {
+          // a record may still be counted by a thread which got the bucket before
+          evicted.add(new Summarized(logger.getKey(), level.getKey(), level.getValue()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the records which were suppressed since the last call and resets
+   * the counts.
+   *
+   * @return the summary, {@code null} if no record was suppressed
+   */
+  Summary summarize() {
+    final Summary summary = new Summary();
+    Summarized summarized;
+    while ((summarized = evicted.poll()) != null) {
+      summarized.bucket.drain(summarized.loggerName, summarized.level, summary);
+    }
+    for (Map.Entry<String, Map<Level, Bucket>> logger : buckets.entrySet()) {
+      for (Map.Entry<Level, Bucket> level : logger.getValue().entrySet()) {
+        level.getValue().drain(logger.getKey(), level.getKey(), summary);
+      }
+    }
+    return (summary.total > 0) ? summary : null;
+  }
+
+  /** The suppressed records of all loggers and levels */
+  static final class Summary {
+    /** the maximum number of loggers and levels listed in the message */
+    static final int MAX_DETAILS = 20;
+
+    private final StringBuilder details = new StringBuilder();
+    private int listed;
+    private int omitted;
+    private long total;
+    private long rateLimited;
+    private long sampled;
+
+    long getTotal() {
+      return total;
+    }
+
+    long getRateLimited() {
+      return rateLimited;
+    }
+
+    long getSampled() {
+      return sampled;
+    }
+
+    private void add(final String loggerName, final Level level, final long limited, final long dropped) {
+      total += limited + dropped;
+      rateLimited += limited;
+      sampled += dropped;
+      if (listed == MAX_DETAILS) {
+        omitted++;
+        return;
+      }
+      listed++;
+      details.append(details.length() == 0 ? "" : ", ").append(loggerName).append(' ').append(level).append(": ");
+      if (limited > 0) {
+        details.append(limited).append(" rate limited");
+      }
+      if (dropped > 0) {
+        details.append(limited > 0 ? ", " : "").append(dropped).append(" sampled");
+      }
+    }
+
+    /**
+     * @return the message of the summary record
+     */
+    String getMessage() {
+      if (omitted > 0) {
+        return "Suppressed " + total + " records (" + details + " and " + omitted + " more)";
+      }
+      return "Suppressed " + total + " records (" + details + ")";
+    }
+  }
+
+  /** An evicted bucket which has not been summarized yet */
+  private static final class Summarized {
+    private final String loggerName;
+    private final Level level;
+    private final Bucket bucket;
+
+    Summarized(final String loggerName, final Level level, final Bucket bucket) {
+      this.loggerName = loggerName;
+      this.level = level;
+      this.bucket = bucket;
+    }
+  }
+
+  /** Token bucket of one logger and level */
+  private final class Bucket {
+    private double tokens = burst;
+    private long lastRefill = System.nanoTime();
+    private long rateLimited;
+    private long sampled;
+
+    synchronized boolean acquire(final long now) {
+      tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rateLimit / NANOS_PER_SECOND);
+      lastRefill = now;
+      if (tokens >= 1) {
+        tokens--;
+        return true;
+      }
+      rateLimited++;
+      return false;
+    }
+
+    synchronized void sampled() {
+      sampled++;
+    }
+
+    synchronized void drain(final String loggerName, final Level level, final Summary summary) {
+      if (rateLimited > 0 || sampled > 0) {
+        summary.add(loggerName, level, rateLimited, sampled);
+        rateLimited = 0;
+        sampled = 0;
+      }
+    }
+  }
+}
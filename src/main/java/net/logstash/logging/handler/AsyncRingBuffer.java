@@ -0,0 +1,313 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+import net.logstash.logging.handler.SocketHandler.OverflowPolicy;
+import net.logstash.logging.handler.SocketHandler.WaitStrategy;
+
+/**
+ * Bounded multi-producer/single-consumer ring buffer with preallocated slots
+ * and a dedicated writer thread. Producers claim a slot with a CAS on the tail
+ * sequence and never take a lock; the writer thread hands the formatted
+ * records to the socket. A record which fails to be written is reported and
+ * skipped, the writer thread keeps draining the buffer.
+ */
+final class AsyncRingBuffer {
+  private static final long PRODUCER_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final int SPIN_TRIES = 100;
+
+  private final Slot[] slots;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private final WaitStrategy waitStrategy;
+  private final OverflowPolicy overflowPolicy;
+  private final Level overflowLevel;
+  private final BiConsumer<String, ExtLogRecord> writer;
+  private final BiConsumer<String, ExtLogRecord> spill;
+  private final Consumer<RuntimeException> failure;
+  private final Thread thread;
+  // held by the thread which takes records out of the buffer, the writer
+  // thread until it exits, then the thread which drains the rest
+  private final AtomicBoolean consuming = new AtomicBoolean();
+  // only written by the consuming thread
+  private volatile long head;
+  private volatile boolean running = true;
+  private volatile boolean writerParked;
+
+  /**
+   * Creates the ring buffer, the writer thread is started with {@link #start()}.
+   *
+   * @param capacity
+   *          the number of slots, rounded up to a power of two
+   * @param waitStrategy
+   *          how the writer thread waits for new records
+   * @param overflowPolicy
+   *          what happens with a record if the buffer is full
+   * @param overflowLevel
+   *          records below this level are dropped with
+   *          {@link OverflowPolicy#DROP_BY_LEVEL}
+   * @param writer
+   *          writes a record, called from the writer thread
+   * @param spill
+   *          publishes a record elsewhere, called with
+   *          {@link OverflowPolicy#SPILL} from the producer thread
+   * @param failure
+   *          reports an exception thrown by the writer
+   * @param threadFactory
+   *          creates the writer thread
+   */
+  AsyncRingBuffer(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy, Level overflowLevel,
+      BiConsumer<String, ExtLogRecord> writer, BiConsumer<String, ExtLogRecord> spill,
+      Consumer<RuntimeException> failure, ThreadFactory threadFactory) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.slots = new Slot[size];
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+      sequences.set(i, i);
+    }
+    this.mask = size - 1;
+    this.waitStrategy = waitStrategy;
+    this.overflowPolicy = overflowPolicy;
+    this.overflowLevel = overflowLevel;
+    this.writer = writer;
+    this.spill = spill;
+    this.failure = failure;
+    this.thread = threadFactory.newThread(this::run);
+  }
+
+  void start() {
+    consuming.set(true);
+    thread.start();
+  }
+
+  int capacity() {
+    return slots.length;
+  }
+
+  /**
+   * Returns the number of records waiting for the writer thread.
+   *
+   * @return the number of records
+   */
+  long size() {
+    return Math.max(tail.get() - head, 0);
+  }
+
+  /**
+   * Hands a record over to the writer thread.
+   *
+   * @param formatted
+   *          the formatted record
+   * @param record
+   *          the record
+   * @return {@code false} if the record has been dropped
+   */
+  boolean publish(final String formatted, final ExtLogRecord record) {
+    if (!running) {
+      return false;
+    }
+    if (tryPublish(formatted, record)) {
+      return true;
+    }
+    switch (overflowPolicy) {
+    case DROP_NEWEST:
+      return false;
+    case SPILL:
+      spill.accept(formatted, record);
+      return true;
+    case DROP_BY_LEVEL:
+      if (record.getLevel().intValue() < overflowLevel.intValue()) {
+        return false;
+      }
+      return publishBlocking(formatted, record);
+    case BLOCK:
+    default:
+      return publishBlocking(formatted, record);
+    }
+  }
+
+  private boolean publishBlocking(final String formatted, final ExtLogRecord record) {
+    while (!tryPublish(formatted, record)) {
+      if (!running) {
+        return false;
+      }
+      LockSupport.parkNanos(this, PRODUCER_BACKOFF_NANOS);
+    }
+    return true;
+  }
+
+  private boolean tryPublish(final String formatted, final ExtLogRecord record) {
+    long sequence;
+    int index;
+    while (true) {
+      sequence = tail.get();
+      index = (int) (sequence & mask);
+      long available = sequences.get(index);
+      if (available < sequence) {
+        // the slot still holds a record which has not been written
+        return false;
+      }
+      if (available == sequence && tail.compareAndSet(sequence, sequence + 1)) {
+        break;
+      }
+    }
+    Slot slot = slots[index];
+    slot.formatted = formatted;
+    slot.record = record;
+    sequences.set(index, sequence + 1);
+    if (writerParked) {
+      LockSupport.unpark(thread);
+    }
+    if (!running) {
+      // the writer thread may have exited before the slot was filled
+      drain();
+    }
+    return true;
+  }
+
+  /**
+   * Stops accepting records and waits until the writer thread has written the
+   * remaining ones.
+   *
+   * @param timeoutMillis
+   *          the maximum time to wait
+   */
+  void close(final long timeoutMillis) {
+    running = false;
+    LockSupport.unpark(thread);
+    if (thread.isAlive() && thread != Thread.currentThread()) {
+      try {
+        thread.join(timeoutMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    // a record published while the writer thread exited
+    drain();
+  }
+
+  private void run() {
+    int idle = 0;
+    try {
+      while (true) {
+        if (consume()) {
+          idle = 0;
+        } else if (!running) {
+          break;
+        } else {
+          idle = await((int) (head & mask), idle);
+        }
+      }
+    } finally {
+      consuming.set(false);
+    }
+    drain();
+  }
+
+  /**
+   * Writes the records which are left in the buffer, unless another thread
+   * is taking them out.
+   */
+  private void drain() {
+    while (consuming.compareAndSet(false, true)) {
+      try {
+        while (consume()) {
+          // until the buffer is empty
+        }
+      } finally {
+        consuming.set(false);
+      }
+      if (sequences.get((int) (head & mask)) != head + 1) {
+        // a record published after this check drains the buffer itself
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes the record at the head, only called by the consuming thread.
+   *
+   * @return {@code false} if there is no record to write
+   */
+  private boolean consume() {
+    int index = (int) (head & mask);
+    if (sequences.get(index) != head + 1) {
+      return false;
+    }
+    Slot slot = slots[index];
+    String formatted = slot.formatted;
+    ExtLogRecord record = slot.record;
+    slot.formatted = null;
+    slot.record = null;
+    sequences.set(index, head + slots.length);
+    head++;
+    try {
+      writer.accept(formatted, record);
+    } catch (RuntimeException e) {
+      // the writer thread must survive, producers would wait for it forever
+      failure.accept(e);
+    }
+    return true;
+  }
+
+  private int await(final int index, final int idle) {
+    switch (waitStrategy) {
+    case BUSY_SPIN:
+      break;
+    case YIELDING:
+      if (idle >= SPIN_TRIES) {
+        Thread.yield();
+      }
+      break;
+    case SLEEPING:
+      if (idle >= 2 * SPIN_TRIES) {
+        LockSupport.parkNanos(this, SLEEP_NANOS);
+      } else if (idle >= SPIN_TRIES) {
+        Thread.yield();
+      }
+      break;
+    case BLOCKING:
+    default:
+      writerParked = true;
+      if (sequences.get(index) != head + 1 && running) {
+        LockSupport.parkNanos(this, PARK_NANOS);
+      }
+      writerParked = false;
+      break;
+    }
+    return (idle < 2 * SPIN_TRIES) ? idle + 1 : idle;
+  }
+
+  /** a preallocated entry of the ring buffer */
+  private static final class Slot {
+    private String formatted;
+    private ExtLogRecord record;
+  }
+}
@@ -0,0 +1,429 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.net.SocketFactory;
+
+/**
+ * An output stream which sends newline delimited records with the Lumberjack
+ * v2 protocol of the Beats input. Every record becomes a JSON frame; the
+ * records are sent in windows, optionally in a compressed frame, once the
+ * window is full or the stream is flushed. Several windows can be in flight,
+ * a reader thread removes them when the server acknowledges them.
+ * <p>
+ * Writing never fails, so no record is lost on the way into the stream; a
+ * broken connection or a missing acknowledgement fails {@link #flush()}. After
+ * the stream has been closed, {@link #unacknowledged()} returns the records
+ * which may not have been processed by the server, to be sent again.
+ */
+final class BeatsOutputStream extends OutputStream {
+  static final byte VERSION = '2';
+  static final byte WINDOW_SIZE = 'W';
+  static final byte COMPRESSED = 'C';
+  static final byte JSON = 'J';
+  static final byte ACK = 'A';
+  private static final long CLOSE_TIMEOUT_MILLIS = 2000;
+
+  private final Socket socket;
+  private final DataOutputStream out;
+  private final int windowSize;
+  private final int maxWindows;
+  private final long ackTimeoutNanos;
+  private final Deflater deflater;
+  private final Thread reader;
+  // only used by the writing thread
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+  private final ByteArrayOutputStream frames = new ByteArrayOutputStream(8192);
+  private List<byte[]> batch = new ArrayList<>();
+  // monitors would pin a virtual thread to its carrier while it waits
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition progress = lock.newCondition();
+  // guarded by lock
+  private final ArrayDeque<Window> inFlight = new ArrayDeque<>();
+  private long inFlightBytes;
+  private long lastProgress;
+  private IOException failure;
+  private boolean closed;
+
+  /** The records of a window and how many of them have been acknowledged */
+  private static final class Window {
+    final List<byte[]> records;
+    int acknowledged;
+    /** the size of the records which have not been acknowledged */
+    long bytes;
+
+    Window(final List<byte[]> records) {
+      this.records = records;
+      for (byte[] record : records) {
+        bytes += record.length;
+      }
+    }
+  }
+
+  /**
+   * Connects to a Beats input.
+   *
+   * @param socketFactory
+   *          the factory of the socket
+   * @param address
+   *          the address of the server
+   * @param connectTimeout
+   *          the connect timeout in milliseconds
+   * @param windowSize
+   *          the maximum number of records in a window
+   * @param maxWindows
+   *          the maximum number of windows waiting for an acknowledgement
+   * @param compressionLevel
+   *          the level of the compressed frames, {@code 0} to send the JSON
+   *          frames uncompressed
+   * @param ackTimeout
+   *          the time in milliseconds the server may take to acknowledge a
+   *          window
+   * @throws IOException
+   *           if the connection could not be established
+   */
+  BeatsOutputStream(final SocketFactory socketFactory, final InetSocketAddress address, final int connectTimeout,
+      final int windowSize, final int maxWindows, final int compressionLevel, final long ackTimeout)
+      throws IOException {
+    this.windowSize = Math.max(windowSize, 1);
+    this.maxWindows = Math.max(maxWindows, 1);
+    this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ackTimeout, 1));
+    socket = socketFactory.createSocket();
+    try {
+      socket.connect(address, connectTimeout);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+      final DataInputStream in = new DataInputStream(socket.getInputStream());
+      reader = new Thread(() -> readAcknowledgements(in), "logstash-beats-" + address);
+      reader.setDaemon(true);
+      reader.start();
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    deflater = (compressionLevel > 0) ? new Deflater(compressionLevel) : null;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    if (b == '\n') {
+      endOfRecord();
+    } else {
+      line.write(b);
+    }
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    int start = off;
+    final int end = off + len;
+    for (int i = off; i < end; i++) {
+      if (b[i] == '\n') {
+        line.write(b, start, i - start);
+        endOfRecord();
+        start = i + 1;
+      }
+    }
+    line.write(b, start, end - start);
+  }
+
+  private void endOfRecord() throws IOException {
+    if (line.size() > 0) {
+      batch.add(line.toByteArray());
+      line.reset();
+    }
+    if (batch.size() >= windowSize && !isFailed()) {
+      sendWindow();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    checkFailure();
+    if (!batch.isEmpty()) {
+      sendWindow();
+    }
+  }
+
+  private void sendWindow() throws IOException {
+    final List<byte[]> records = batch;
+    lock.lock();
+    try {
+      long remaining = ackTimeoutNanos;
+      final long deadline = System.nanoTime() + remaining;
+      while (failure == null && inFlight.size() >= maxWindows && remaining > 0) {
+        try {
+          progress.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for an acknowledgement", e);
+        }
+        remaining = deadline - System.nanoTime();
+      }
+      if (failure == null && inFlight.size() >= maxWindows) {
+        failure = new SocketTimeoutException("No acknowledgement from " + socket.getRemoteSocketAddress());
+      }
+      checkFailure();
+      if (inFlight.isEmpty()) {
+        lastProgress = System.nanoTime();
+      }
+      // added before sending, the acknowledgement may arrive at once
+      final Window window = new Window(records);
+      inFlight.add(window);
+      inFlightBytes += window.bytes;
+      batch = new ArrayList<>();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      frames.reset();
+      final DataOutputStream data = new DataOutputStream(frames);
+      for (int i = 0; i < records.size(); i++) {
+        final byte[] record = records.get(i);
+        data.writeByte(VERSION);
+        data.writeByte(JSON);
+        data.writeInt(i + 1);
+        data.writeInt(record.length);
+        data.write(record);
+      }
+      out.writeByte(VERSION);
+      out.writeByte(WINDOW_SIZE);
+      out.writeInt(records.size());
+      if (deflater != null) {
+        deflater.reset();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(frames.size() / 4 + 64);
+        try (DeflaterOutputStream zlib = new DeflaterOutputStream(compressed, deflater, 8192)) {
+          frames.writeTo(zlib);
+        }
+        out.writeByte(VERSION);
+        out.writeByte(COMPRESSED);
+        out.writeInt(compressed.size());
+        compressed.writeTo(out);
+      } else {
+        frames.writeTo(out);
+      }
+      out.flush();
+    } catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+  }
+
+  private void readAcknowledgements(final DataInputStream in) {
+    try {
+      while (true) {
+        final int version = in.read();
+        if (version < 0) {
+          throw new EOFException("Connection closed by " + socket.getRemoteSocketAddress());
+        }
+        final int type = in.readUnsignedByte();
+        if (version != VERSION || type != ACK) {
+          throw new IOException("Unexpected frame " + (char) version + (char) type);
+        }
+        acknowledge(in.readInt());
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void acknowledge(final int sequence) {
+    lock.lock();
+    try {
+      final Window window = inFlight.peek();
+      if (window == null) {
+        return;
+      }
+      lastProgress = System.nanoTime();
+      if (sequence >= window.records.size()) {
+        inFlight.poll();
+        inFlightBytes -= window.bytes;
+        progress.signalAll();
+      } else {
+        // a partial acknowledgement, the server is still processing the window
+        for (; window.acknowledged < sequence; window.acknowledged++) {
+          final long length = window.records.get(window.acknowledged).length;
+          window.bytes -= length;
+          inFlightBytes -= length;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void fail(final IOException e) {
+    lock.lock();
+    try {
+      if (failure == null && !closed) {
+        failure = e;
+      }
+      progress.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isFailed() {
+    lock.lock();
+    try {
+      return failure != null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    lock.lock();
+    try {
+      if (failure == null && !inFlight.isEmpty() && System.nanoTime() - lastProgress > ackTimeoutNanos) {
+        failure = new SocketTimeoutException("No acknowledgement from " + socket.getRemoteSocketAddress());
+      }
+      if (failure != null) {
+        throw new IOException(failure.getMessage(), failure);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of records which have not been acknowledged yet.
+   *
+   * @return the number of records
+   */
+  int getUnacknowledgedRecords() {
+    lock.lock();
+    try {
+      int count = batch.size();
+      for (Window window : inFlight) {
+        count += window.records.size() - window.acknowledged;
+      }
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the records which have been sent but not
+   * acknowledged yet, without the frames.
+   *
+   * @return the number of bytes
+   */
+  long getUnacknowledgedBytes() {
+    lock.lock();
+    try {
+      return inFlightBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the records which have not been acknowledged by the server, in the
+   * order they were written. Only complete while the stream is closed.
+   *
+   * @return the records terminated by a newline
+   */
+  List<String> unacknowledged() {
+    final List<String> records = new ArrayList<>();
+    lock.lock();
+    try {
+      for (Window window : inFlight) {
+        for (byte[] record : window.records.subList(window.acknowledged, window.records.size())) {
+          records.add(new String(record, StandardCharsets.UTF_8) + "\n");
+        }
+      }
+      for (byte[] record : batch) {
+        records.add(new String(record, StandardCharsets.UTF_8) + "\n");
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (line.size() > 0) {
+      records.add(new String(line.toByteArray(), StandardCharsets.UTF_8) + "\n");
+    }
+    return records;
+  }
+
+  /**
+   * Sends the remaining records and waits a short time for their
+   * acknowledgement before the connection is closed.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    try {
+      if (!isFailed()) {
+        flush();
+        awaitAcknowledgements(CLOSE_TIMEOUT_MILLIS);
+      }
+    } catch (IOException e) {
+      // the records are left unacknowledged
+    } finally {
+      lock.lock();
+      try {
+        closed = true;
+      } finally {
+        lock.unlock();
+      }
+      socket.close();
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+
+  private void awaitAcknowledgements(final long timeoutMillis) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      long remaining;
+      while (failure == null && !inFlight.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+        progress.awaitNanos(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * An output stream which packs newline delimited records into datagrams. A
+ * record is never split: records are collected until the next one would not
+ * fit into the maximum datagram size or the stream is flushed. A record which
+ * is larger than a datagram is sent on its own, in GELF chunks if chunking is
+ * enabled.
+ */
+final class DatagramOutputStream extends OutputStream {
+  static final int MAX_DATAGRAM_SIZE = 65507;
+  static final int MAX_CHUNKS = 128;
+  static final int CHUNK_HEADER_SIZE = 12;
+  private static final String TRUNCATED = "\n\t... truncated";
+
+  private final DatagramSocket socket;
+  private final int maxDatagramSize;
+  private final boolean chunk;
+  private final LongAdder datagramsSent;
+  private final byte[] datagram;
+  private int size;
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+
+  /**
+   * Creates a stream sending datagrams to the given endpoint.
+   *
+   * @param address
+   *          the address of the server
+   * @param port
+   *          the port of the server
+   * @param maxDatagramSize
+   *          the maximum size of a datagram in bytes
+   * @param chunk
+   *          whether records larger than a datagram are sent in GELF chunks
+   * @param datagramsSent
+   *          counts the datagrams sent
+   * @throws IOException
+   *           if the socket could not be created
+   */
+  DatagramOutputStream(final InetAddress address, final int port, final int maxDatagramSize, final boolean chunk,
+      final LongAdder datagramsSent) throws IOException {
+    this.maxDatagramSize = Math.min(Math.max(maxDatagramSize, CHUNK_HEADER_SIZE + 1), MAX_DATAGRAM_SIZE);
+    this.chunk = chunk;
+    this.datagramsSent = datagramsSent;
+    datagram = new byte[this.maxDatagramSize];
+    socket = new DatagramSocket();
+    socket.connect(address, port);
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    record.write(b);
+    if (b == '\n') {
+      endOfRecord();
+    }
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    int start = off;
+    final int end = off + len;
+    for (int i = off; i < end; i++) {
+      if (b[i] == '\n') {
+        record.write(b, start, i + 1 - start);
+        endOfRecord();
+        start = i + 1;
+      }
+    }
+    record.write(b, start, end - start);
+  }
+
+  private void endOfRecord() throws IOException {
+    final int length = record.size();
+    if (size + length > maxDatagramSize) {
+      sendDatagram();
+    }
+    if (length <= maxDatagramSize) {
+      final byte[] bytes = record.toByteArray();
+      System.arraycopy(bytes, 0, datagram, size, length);
+      size += length;
+    } else if (chunk) {
+      sendChunks(record.toByteArray());
+    } else {
+      // the handler keeps oversized records away, sent as they are otherwise
+      send(record.toByteArray(), Math.min(length, MAX_DATAGRAM_SIZE));
+    }
+    record.reset();
+  }
+
+  private void sendDatagram() throws IOException {
+    if (size > 0) {
+      send(datagram, size);
+      size = 0;
+    }
+  }
+
+  /**
+   * Sends a record in chunks of the GELF format: the magic bytes
+   * {@code 0x1e 0x0f}, a message id of 8 bytes, the sequence number and the
+   * number of chunks, followed by the payload.
+   */
+  private void sendChunks(final byte[] bytes) throws IOException {
+    final int payload = maxDatagramSize - CHUNK_HEADER_SIZE;
+    final int chunks = (bytes.length + payload - 1) / payload;
+    if (chunks > MAX_CHUNKS) {
+      throw new IOException("Record of " + bytes.length + " bytes exceeds " + MAX_CHUNKS + " chunks");
+    }
+    final long messageId = ThreadLocalRandom.current().nextLong();
+    final byte[] buffer = new byte[maxDatagramSize];
+    buffer[0] = 0x1e;
+    buffer[1] = 0x0f;
+    for (int i = 0; i < 8; i++) {
+      buffer[2 + i] = (byte) (messageId >>> (56 - 8 * i));
+    }
+    buffer[11] = (byte) chunks;
+    for (int i = 0; i < chunks; i++) {
+      buffer[10] = (byte) i;
+      final int offset = i * payload;
+      final int length = Math.min(payload, bytes.length - offset);
+      System.arraycopy(bytes, offset, buffer, CHUNK_HEADER_SIZE, length);
+      send(buffer, CHUNK_HEADER_SIZE + length);
+    }
+  }
+
+  private void send(final byte[] bytes, final int length) throws IOException {
+    socket.send(new DatagramPacket(bytes, length));
+    datagramsSent.increment();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    sendDatagram();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Returns the number of UTF-8 bytes of a record.
+   *
+   * @param formatted
+   *          the record
+   * @return the number of bytes
+   */
+  static int utf8Length(final CharSequence formatted) {
+    int length = 0;
+    for (int i = 0; i < formatted.length(); i++) {
+      final char c = formatted.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Shortens the {@code stacktrace} of a JSON record so the record fits into
+   * the given number of bytes.
+   *
+   * @param formatted
+   *          the record with a trailing line separator
+   * @param maxBytes
+   *          the maximum size in bytes
+   * @return the shortened record, {@code null} if the record is not JSON, has
+   *         no stacktrace or is still too large without it
+   */
+  static String truncateStacktrace(final String formatted, final int maxBytes) {
+    final String json = formatted.trim();
+    final String separator = formatted.substring(formatted.lastIndexOf('}') + 1);
+    final JsonObject object;
+    try (JsonReader reader = Json.createReader(new StringReader(json))) {
+      object = reader.readObject();
+    } catch (JsonException | IllegalStateException e) {
+      return null;
+    }
+    final JsonObject fields = object.getJsonObject("@fields");
+    final JsonValue value = (fields != null) ? fields.get("stacktrace") : null;
+    if (!(value instanceof JsonString)) {
+      return null;
+    }
+    final String stacktrace = ((JsonString) value).getString();
+    int excess = utf8Length(formatted) - maxBytes;
+    int keep = stacktrace.length();
+    // escaping makes the encoded stacktrace longer than its characters
+    while (excess > 0 && keep > 0) {
+      keep = Math.max(keep - excess - TRUNCATED.length(), 0);
+      final int line = stacktrace.lastIndexOf('\n', keep);
+      if (line > 0) {
+        keep = line;
+      }
+      final String shortened = replace(object, fields, stacktrace.substring(0, keep) + TRUNCATED) + separator;
+      excess = utf8Length(shortened) - maxBytes;
+      if (excess <= 0) {
+        return shortened;
+      }
+    }
+    return null;
+  }
+
+  private static String replace(final JsonObject object, final JsonObject fields, final String stacktrace) {
+    final JsonObjectBuilder fieldsBuilder = Json.createObjectBuilder();
+    for (Map.Entry<String, JsonValue> field : fields.entrySet()) {
+      if (field.getKey().equals("stacktrace")) {
+        fieldsBuilder.add("stacktrace", stacktrace);
+      } else {
+        fieldsBuilder.add(field.getKey(), field.getValue());
+      }
+    }
+    final JsonObjectBuilder builder = Json.createObjectBuilder();
+    for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+      if (entry.getKey().equals("@fields")) {
+        builder.add("@fields", fieldsBuilder);
+      } else {
+        builder.add(entry.getKey(), entry.getValue());
+      }
+    }
+    return builder.build().toString();
+  }
+}
@@ -0,0 +1,248 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+import net.logstash.logging.formatter.RepeatedRecord;
+
+/**
+ * Collapses bursts of identical records. A record is identified by its logger,
+ * level, unformatted message and the shape of its throwable (the class names
+ * and the top frames of the causes); the parameters are ignored. The first
+ * record is sent, the repetitions within the window are only counted and sent
+ * later as a single {@link RepeatedRecord}. The summaries are published by
+ * {@link #expire(boolean)}, which the handler calls from its scheduler, never
+ * from the thread which logs.
+ */
+final class Deduplicator {
+  private static final int MAX_CAUSES = 8;
+
+  private final long window;
+  private final int capacity;
+  private final Consumer<ExtLogRecord> summaries;
+  private final LongSupplier clock;
+  private final Map<Fingerprint, Burst> bursts = new ConcurrentHashMap<>();
+  /** the summaries of the bursts which were replaced by a new burst */
+  private final Queue<ExtLogRecord> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Creates a deduplicator.
+   *
+   * @param window
+   *          the time in milliseconds in which identical records are collapsed
+   * @param capacity
+   *          the maximum number of distinct records tracked at the same time
+   * @param summaries
+   *          publishes the summaries of the bursts with repetitions
+   * @param clock
+   *          the current time in milliseconds
+   */
+  Deduplicator(final long window, final int capacity, final Consumer<ExtLogRecord> summaries,
+      final LongSupplier clock) {
+    this.window = window;
+    this.capacity = capacity;
+    this.summaries = summaries;
+    this.clock = clock;
+  }
+
+  /**
+   * Decides whether a record is sent. If the record starts a new burst, the
+   * summary of the expired burst of the same record is queued for the next
+   * {@link #expire(boolean)}.
+   *
+   * @param record
+   *          the record
+   * @return {@code true} if the record is sent, {@code false} if it is a
+   *         repetition
+   */
+  boolean admit(final ExtLogRecord record) {
+    final Fingerprint fingerprint = new Fingerprint(record);
+    final long now = record.getMillis();
+    final Burst burst = bursts.get(fingerprint);
+    if (burst != null && burst.repeat(now)) {
+      return false;
+    }
+    if (burst == null && bursts.size() >= capacity) {
+      // too many distinct records to track, send them all
+      return true;
+    }
+    // the record is kept for the summary, so it must not depend on the thread
+    record.copyAll();
+    final Burst previous = bursts.put(fingerprint, new Burst(record, now));
+    final ExtLogRecord summary = (previous != null) ? previous.close() : null;
+    if (summary != null) {
+      pending.add(summary);
+    }
+    return true;
+  }
+
+  /**
+   * Publishes the queued summaries, then removes the bursts whose window has
+   * passed and publishes their summaries.
+   *
+   * @param all
+   *          {@code true} to remove all bursts, e.g. when the handler is closed
+   */
+  void expire(final boolean all) {
+    ExtLogRecord summary;
+    while ((summary = pending.poll()) != null) {
+      summaries.accept(summary);
+    }
+    final long now = clock.getAsLong();
+    for (Map.Entry<Fingerprint, Burst> entry : bursts.entrySet()) {
+      final Burst burst = entry.getValue();
+      // a new burst of the same record may have replaced it in the meantime
+      if ((all || now - burst.first >= window) && bursts.remove(entry.getKey(), burst)) {
+        summary = burst.close();
+        if (summary != null) {
+          summaries.accept(summary);
+        }
+      }
+    }
+  }
+
+  /** The identity of a record without its parameters */
+  private static final class Fingerprint {
+    private final String loggerName;
+    private final Level level;
+    private final String message;
+    private final Object[] throwable;
+    private final int hash;
+
+    Fingerprint(final ExtLogRecord record) {
+      loggerName = record.getLoggerName();
+      level = record.getLevel();
+      message = record.getMessage();
+      throwable = shape(record.getThrown());
+      hash = 31 * (31 * (31 * Objects.hashCode(loggerName) + level.hashCode()) + Objects.hashCode(message))
+          + Arrays.hashCode(throwable);
+    }
+
+    private static Object[] shape(final Throwable thrown) {
+      if (thrown == null) {
+        return null;
+      }
+      final List<Object> shape = new ArrayList<>();
+      Throwable t = thrown;
+      for (int i = 0; t != null && i < MAX_CAUSES; i++, t = t.getCause()) {
+        final StackTraceElement[] frames = t.getStackTrace();
+        // the name, a class would keep its class loader alive
+        shape.add(t.getClass().getName());
+        shape.add((frames.length > 0) ? frames[0] : null);
+      }
+      return shape.toArray();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Fingerprint)) {
+        return false;
+      }
+      final Fingerprint other = (Fingerprint) obj;
+      return hash == other.hash && level.equals(other.level) && Objects.equals(loggerName, other.loggerName)
+          && Objects.equals(message, other.message) && Arrays.equals(throwable, other.throwable);
+    }
+  }
+
+  /** The repetitions of a record within the window */
+  private final class Burst {
+    private final ExtLogRecord record;
+    private final long first;
+    private long firstRepeat;
+    private long lastRepeat;
+    private long repeats;
+    private boolean closed;
+
+    Burst(final ExtLogRecord record, final long first) {
+      this.record = record;
+      this.first = first;
+    }
+
+    synchronized boolean repeat(final long now) {
+      if (closed || now - first >= window) {
+        return false;
+      }
+      if (repeats == 0) {
+        firstRepeat = now;
+      }
+      lastRepeat = now;
+      repeats++;
+      return true;
+    }
+
+    /**
+     * Ends the burst.
+     *
+     * @return the summary, {@code null} if there were no repetitions
+     */
+    synchronized ExtLogRecord close() {
+      final boolean repeated = !closed && repeats > 0;
+      closed = true;
+      return repeated ? new RepeatedLogRecord(record, repeats, firstRepeat, lastRepeat) : null;
+    }
+  }
+
+  /** The summary of the repetitions of a record */
+  static final class RepeatedLogRecord extends ExtLogRecord implements RepeatedRecord {
+    private static final long serialVersionUID = 1L;
+    private final long repeatCount;
+    private final long firstMillis;
+    private final long lastMillis;
+
+    RepeatedLogRecord(final ExtLogRecord original, final long repeatCount, final long firstMillis,
+        final long lastMillis) {
+      super(original);
+      this.repeatCount = repeatCount;
+      this.firstMillis = firstMillis;
+      this.lastMillis = lastMillis;
+      setMillis(lastMillis);
+    }
+
+    @Override
+    public long getRepeatCount() {
+      return repeatCount;
+    }
+
+    @Override
+    public long getFirstMillis() {
+      return firstMillis;
+    }
+
+    @Override
+    public long getLastMillis() {
+      return lastMillis;
+    }
+  }
+}
@@ -0,0 +1,393 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of formatted records on disk, used while the endpoint is not
+ * reachable. The log consists of memory-mapped segment files of a fixed size.
+ * Every segment starts with the offset of the next record to replay, followed
+ * by the records as a length and the UTF-8 bytes. A length of {@code 0} marks
+ * the end of the written records. The bytes of a record are written before
+ * its length and the read offset is a single {@code long}, so the spool is
+ * consistent after a crash of the process; records are replayed at least
+ * once.
+ * <p>
+ * A mapped file keeps its disk space until it is unmapped, which the JDK only
+ * does when the buffer is garbage collected. Segments are therefore unmapped
+ * explicitly when they are deleted or the spool is closed, if the JDK allows
+ * it; otherwise the failure is reported once and the garbage collector
+ * releases them.
+ */
+final class DiskSpool {
+  private static final String PREFIX = "spool-";
+  private static final String SUFFIX = ".seg";
+  private static final int HEADER_SIZE = 8;
+  private static final int LENGTH_SIZE = 4;
+  private static final MethodHandle UNMAP;
+  private static final Exception UNMAP_UNAVAILABLE;
+
+  private final File directory;
+  private final int segmentSize;
+  private final long maxSize;
+  private final Consumer<Exception> unmapFailure;
+  // all the following fields are guarded by this
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private long size;
+  private boolean closed;
+  private boolean unmapReported;
+
+  static {
+    MethodHandle unmap = null;
+    Exception unavailable = null;
+    try {
+      unmap = unmapper();
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      unavailable = e;
+    }
+    UNMAP = unmap;
+    UNMAP_UNAVAILABLE = unavailable;
+  }
+
+  /**
+   * Opens the spool and recovers the segments left over by a previous run.
+   *
+   * @param directory
+   *          the directory of the segment files
+   * @param segmentSize
+   *          the size of a segment file in bytes
+   * @param maxSize
+   *          the maximum size of all segment files in bytes
+   * @param unmapFailure
+   *          reports that segments cannot be unmapped, called at most once
+   * @throws IOException
+   *           if the directory or a segment file cannot be opened
+   */
+  DiskSpool(final File directory, final int segmentSize, final long maxSize,
+      final Consumer<Exception> unmapFailure) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSize = maxSize;
+    this.unmapFailure = unmapFailure;
+    if (UNMAP == null) {
+      unmapFailed(UNMAP_UNAVAILABLE);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create spool directory " + directory);
+    }
+    File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        Segment segment = Segment.open(file, sequenceOf(file), 0);
+        segments.add(segment);
+        size += segment.buffer.capacity();
+      }
+    }
+    Segment last = segments.peekLast();
+    if (last != null) {
+      last.recover();
+    }
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @param formatted
+   *          the formatted record
+   * @return {@code false} if the spool is full or closed
+   */
+  synchronized boolean append(final String formatted) {
+    if (closed) {
+      return false;
+    }
+    byte[] bytes = formatted.getBytes(StandardCharsets.UTF_8);
+    int required = LENGTH_SIZE + bytes.length;
+    if (required + LENGTH_SIZE > segmentSize - HEADER_SIZE) {
+      return false;
+    }
+    Segment last = segments.peekLast();
+    if (last == null || last.remaining() < required + LENGTH_SIZE) {
+      if (size + segmentSize > maxSize) {
+        return false;
+      }
+      try {
+        long sequence = (last == null) ? 0 : last.sequence + 1;
+        last = Segment.open(new File(directory, fileName(sequence)), sequence, segmentSize);
+      } catch (IOException e) {
+        return false;
+      }
+      segments.add(last);
+      size += segmentSize;
+    }
+    last.append(bytes);
+    return true;
+  }
+
+  /**
+   * Reads the next records to replay without removing them.
+   *
+   * @param maxRecords
+   *          the maximum number of records
+   * @return the records, empty if all records have been replayed
+   */
+  synchronized List<String> peek(final int maxRecords) {
+    List<String> records = new ArrayList<>();
+    if (closed) {
+      return records;
+    }
+    for (Segment segment : segments) {
+      int position = segment.readPosition();
+      while (records.size() < maxRecords) {
+        int length = segment.lengthAt(position);
+        if (length == 0) {
+          break;
+        }
+        records.add(segment.read(position, length));
+        position += LENGTH_SIZE + length;
+      }
+      if (records.size() == maxRecords) {
+        break;
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Removes replayed records, segments which are replayed completely are
+   * deleted.
+   *
+   * @param count
+   *          the number of records returned by {@link #peek(int)}
+   */
+  synchronized void remove(final int count) {
+    int remaining = count;
+    while (!closed && !segments.isEmpty()) {
+      Segment first = segments.peekFirst();
+      int position = first.readPosition();
+      int length;
+      while (remaining > 0 && (length = first.lengthAt(position)) != 0) {
+        position += LENGTH_SIZE + length;
+        remaining--;
+      }
+      first.commit(position);
+      if (first.lengthAt(position) != 0 || first == segments.peekLast()) {
+        return;
+      }
+      // the writer has moved on to the next segment
+      segments.pollFirst();
+      size -= first.buffer.capacity();
+      unmap(first);
+      first.delete();
+    }
+  }
+
+  /**
+   * Returns whether all records have been replayed.
+   *
+   * @return {@code true} if there is nothing to replay
+   */
+  synchronized boolean isEmpty() {
+    Segment first = segments.peekFirst();
+    return first == null || (first == segments.peekLast() && first.lengthAt(first.readPosition()) == 0);
+  }
+
+  /**
+   * Returns the size of the segment files.
+   *
+   * @return the size in bytes
+   */
+  synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Writes the mapped segments to disk and closes the spool.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Segment segment : segments) {
+      segment.buffer.force();
+      unmap(segment);
+    }
+    segments.clear();
+  }
+
+  /** the buffer of the segment must not be used afterwards */
+  private void unmap(final Segment segment) {
+    if (UNMAP != null) {
+      try {
+        UNMAP.invokeExact((ByteBuffer) segment.buffer);
+      } catch (Throwable e) {
+        unmapFailed((e instanceof Exception) ? (Exception) e : new IllegalStateException(e));
+      }
+    }
+  }
+
+  private void unmapFailed(final Exception e) {
+    if (!unmapReported) {
+      unmapReported = true;
+      unmapFailure.accept(e);
+    }
+  }
+
+  private static MethodHandle unmapper() throws ReflectiveOperationException {
+    final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      // Java 9 and later
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return lookup.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(field.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Java 8
+      try {
+        final Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+        cleaner.setAccessible(true);
+        final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+        clean.setAccessible(true);
+        return MethodHandles.filterReturnValue(lookup.unreflect(cleaner), lookup.unreflect(clean))
+            .asType(MethodType.methodType(void.class, ByteBuffer.class));
+      } catch (ReflectiveOperationException | RuntimeException java8) {
+        java8.addSuppressed(e);
+        throw java8;
+      }
+    }
+  }
+
+  private static String fileName(final long sequence) {
+    return String.format("%s%019d%s", PREFIX, sequence, SUFFIX);
+  }
+
+  private static long sequenceOf(final File file) {
+    String name = file.getName();
+    try {
+      return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** a memory-mapped segment file */
+  private static final class Segment {
+    private final File file;
+    private final long sequence;
+    private final MappedByteBuffer buffer;
+    private int writePosition = HEADER_SIZE;
+
+    private Segment(final File file, final long sequence, final MappedByteBuffer buffer) {
+      this.file = file;
+      this.sequence = sequence;
+      this.buffer = buffer;
+    }
+
+    static Segment open(final File file, final long sequence, final int size) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+        if (size > 0 && raf.length() < size) {
+          // the new file reads as zeros, i.e. without records
+          raf.setLength(size);
+        }
+        long length = raf.length();
+        if (length < HEADER_SIZE + LENGTH_SIZE || length > Integer.MAX_VALUE) {
+          throw new IOException("Invalid spool segment " + file);
+        }
+        // the mapping stays valid after the channel is closed
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        Segment segment = new Segment(file, sequence, buffer);
+        if (segment.readPosition() < HEADER_SIZE) {
+          segment.commit(HEADER_SIZE);
+        }
+        return segment;
+      }
+    }
+
+    /** finds the end of the records written before the spool was closed */
+    void recover() {
+      int position = readPosition();
+      int length;
+      while ((length = lengthAt(position)) != 0) {
+        position += LENGTH_SIZE + length;
+      }
+      writePosition = position;
+    }
+
+    int remaining() {
+      return buffer.capacity() - writePosition;
+    }
+
+    void append(final byte[] bytes) {
+      int position = writePosition;
+      ByteBuffer target = buffer.duplicate();
+      // cast to Buffer so the calls link on Java 8, which lacks the covariant overrides
+      ((Buffer) target).position(position + LENGTH_SIZE);
+      target.put(bytes);
+      // the length is written last, it makes the record visible
+      buffer.putInt(position, bytes.length);
+      writePosition = position + LENGTH_SIZE + bytes.length;
+    }
+
+    int lengthAt(final int position) {
+      if (position + LENGTH_SIZE > buffer.capacity()) {
+        return 0;
+      }
+      int length = buffer.getInt(position);
+      // a torn or corrupt record ends the segment
+      return (length > 0 && length <= buffer.capacity() - position - LENGTH_SIZE) ? length : 0;
+    }
+
+    String read(final int position, final int length) {
+      byte[] bytes = new byte[length];
+      ByteBuffer source = buffer.duplicate();
+      ((Buffer) source).position(position + LENGTH_SIZE);
+      source.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int readPosition() {
+      long position = buffer.getLong(0);
+      return (position < HEADER_SIZE || position > buffer.capacity()) ? HEADER_SIZE : (int) position;
+    }
+
+    void commit(final int position) {
+      buffer.putLong(0, position);
+    }
+
+    void delete() {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A logstash server the {@link SocketHandler} sends records to, with the state
+ * of its connection. All fields are guarded by the handler.
+ */
+final class Endpoint {
+  private final String hostName;
+  private final int port;
+  // resolved by the connecting thread
+  private volatile InetAddress address;
+  private long failures;
+  private int consecutiveFailures;
+  private long retryAt;
+  private boolean retired;
+  /** the writer of the connection, {@code null} if not connected */
+  Writer writer;
+  /** the buffered stream below the writer, for records encoded by the formatter */
+  OutputStream output;
+  /** the stream of the connection */
+  OutputStream stream;
+  /** whether the connection has to be (re)established */
+  boolean initialize = true;
+  /** the number of written records not flushed yet */
+  int pendingRecords;
+  /** the number of characters written but not flushed yet */
+  long unflushed;
+  /** whether a connection is established in the background */
+  boolean connecting;
+
+  /**
+   * Creates an endpoint.
+   *
+   * @param hostName
+   *          the host name, resolved on connect if the address is
+   *          {@code null}
+   * @param address
+   *          the address or {@code null}
+   * @param port
+   *          the port
+   */
+  Endpoint(final String hostName, final InetAddress address, final int port) {
+    this.hostName = hostName;
+    this.address = address;
+    this.port = port;
+  }
+
+  /**
+   * Parses a comma separated list of {@code host:port} pairs. IPv6 addresses
+   * are written in brackets, e.g. {@code [::1]:4560}.
+   *
+   * @param hosts
+   *          the list of hosts
+   * @param defaultPort
+   *          the port of hosts without a port
+   * @return the endpoints
+   * @throws IllegalArgumentException
+   *           if the list contains an invalid entry
+   */
+  static List<Endpoint> parse(final String hosts, final int defaultPort) {
+    List<Endpoint> endpoints = new ArrayList<>();
+    for (String entry : hosts.split(",")) {
+      String host = entry.trim();
+      if (host.isEmpty()) {
+        continue;
+      }
+      int port = defaultPort;
+      int colon = host.lastIndexOf(':');
+      if (colon > 0 && (host.charAt(0) != '[' || host.charAt(colon - 1) == ']')) {
+        try {
+          port = Integer.parseInt(host.substring(colon + 1));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid port in " + host, e);
+        }
+        host = host.substring(0, colon);
+      }
+      if (host.startsWith("[") && host.endsWith("]")) {
+        host = host.substring(1, host.length() - 1);
+      }
+      if (host.isEmpty() || port < 0 || port > 0xFFFF) {
+        throw new IllegalArgumentException("Invalid host " + entry);
+      }
+      endpoints.add(new Endpoint(host, null, port));
+    }
+    return endpoints;
+  }
+
+  /**
+   * Returns the address, the host name is resolved again after a failure.
+   *
+   * @return the address
+   * @throws UnknownHostException
+   *           if the host name cannot be resolved
+   */
+  InetAddress resolve() throws UnknownHostException {
+    if (address == null) {
+      address = InetAddress.getByName(hostName);
+    }
+    return address;
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  /**
+   * Returns whether a new connection may be attempted.
+   *
+   * @param now
+   *          the current time in milliseconds
+   * @return {@code true} if connecting is allowed
+   */
+  boolean mayConnect(final long now) {
+    return !connecting && !retired && now - retryAt >= 0;
+  }
+
+  /**
+   * Returns whether records can be written to the endpoint.
+   *
+   * @return {@code true} if connected
+   */
+  boolean isConnected() {
+    return writer != null && !initialize;
+  }
+
+  /**
+   * Records a failed connect or write.
+   *
+   * @return the number of failures since the last successful connect
+   */
+  int failed() {
+    failures++;
+    if (hostName != null) {
+      address = null;
+    }
+    return ++consecutiveFailures;
+  }
+
+  /**
+   * Records a successful connect, which closes the circuit breaker.
+   */
+  void connected() {
+    consecutiveFailures = 0;
+    retryAt = 0;
+  }
+
+  /**
+   * Sets the time of the next connection attempt.
+   *
+   * @param retryAt
+   *          the time in milliseconds
+   */
+  void retryAt(final long retryAt) {
+    this.retryAt = retryAt;
+  }
+
+  /**
+   * Returns the number of failures since the last successful connect.
+   *
+   * @return the number of failures
+   */
+  int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * Marks the endpoint as no longer used by the handler, a connection which is
+   * established in the background is closed again.
+   */
+  void retire() {
+    retired = true;
+  }
+
+  boolean isRetired() {
+    return retired;
+  }
+
+  /**
+   * Returns the number of failed connects and writes.
+   *
+   * @return the number of failures
+   */
+  long getFailures() {
+    return failures;
+  }
+
+  /**
+   * Returns the number of bytes written to the endpoint which have not been
+   * sent yet: the bytes which have not been flushed, the send queue of
+   * {@code TCP_NIO} and the records which the Beats input has not
+   * acknowledged. A blocking stream has sent everything once it is flushed.
+   *
+   * @return the number of bytes
+   */
+  long outstandingBytes() {
+    long outstanding = unflushed;
+    if (stream instanceof NioTcpOutputStream) {
+      outstanding += ((NioTcpOutputStream) stream).getPendingBytes();
+    } else if (stream instanceof BeatsOutputStream) {
+      outstanding += ((BeatsOutputStream) stream).getUnacknowledgedBytes();
+    }
+    return outstanding;
+  }
+
+  @Override
+  public String toString() {
+    return ((hostName != null) ? hostName : String.valueOf(address)) + ":" + port;
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Concurrent histogram of durations with log-linear buckets: every power of
+ * two is divided into eight buckets, so a percentile is accurate to 12.5%.
+ * Like a {@link java.util.concurrent.atomic.LongAdder} the buckets are
+ * striped: every thread counts in the stripe of its id, so the hot buckets do
+ * not contend. A stripe is allocated when a thread first uses it, afterwards
+ * recording a value does not allocate.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+  private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+  private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos
+   *          the duration in nanoseconds, negative values are recorded as
+   *          {@code 0}
+   */
+  void record(final long nanos) {
+    long value = Math.max(nanos, 0);
+    stripe().incrementAndGet(indexOf(value));
+    max.accumulate(value);
+  }
+
+  private AtomicLongArray stripe() {
+    // the golden ratio spreads consecutive thread ids over the stripes
+    final int index = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 40) & (STRIPES - 1);
+    AtomicLongArray stripe = stripes.get(index);
+    if (stripe == null) {
+      stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS));
+      stripe = stripes.get(index);
+    }
+    return stripe;
+  }
+
+  /**
+   * Returns the number of stripes, the next power of two of the number of
+   * processors but at most 16.
+   */
+  static int stripes(final int processors) {
+    return Integer.highestOneBit(Math.min(Math.max(processors, 1), 16) * 2 - 1);
+  }
+
+  private long[] snapshot() {
+    final long[] snapshot = new long[BUCKETS];
+    for (int s = 0; s < STRIPES; s++) {
+      final AtomicLongArray stripe = stripes.get(s);
+      if (stripe != null) {
+        for (int i = 0; i < BUCKETS; i++) {
+          snapshot[i] += stripe.get(i);
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns the value below or at which the given fraction of the recorded
+   * values lie.
+   *
+   * @param fraction
+   *          the fraction between {@code 0} and {@code 1}, e.g. {@code 0.99}
+   * @return the upper bound of the bucket of the percentile in nanoseconds,
+   *         {@code 0} if nothing has been recorded
+   */
+  long percentile(final double fraction) {
+    long[] snapshot = snapshot();
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max((long) Math.ceil(fraction * total), 1);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Returns the largest recorded value.
+   *
+   * @return the value in nanoseconds
+   */
+  long max() {
+    return max.get();
+  }
+
+  /**
+   * Returns the number of recorded values.
+   *
+   * @return the number of values
+   */
+  long count() {
+    long total = 0;
+    for (long count : snapshot()) {
+      total += count;
+    }
+    return total;
+  }
+
+  void reset() {
+    for (int s = 0; s < STRIPES; s++) {
+      final AtomicLongArray stripe = stripes.get(s);
+      if (stripe != null) {
+        for (int i = 0; i < BUCKETS; i++) {
+          stripe.set(i, 0);
+        }
+      }
+    }
+    max.reset();
+  }
+
+  static int indexOf(final long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long highestValueOf(final int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    if (index == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = SUB_BUCKETS + index % SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,445 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An output stream over a non-blocking {@link SocketChannel}. Written bytes are
+ * copied into pooled direct buffers, a selector thread sends the buffers with
+ * gathering writes. The writing thread never waits for the network.
+ * <p>
+ * The bytes written between two flushes form a unit, usually one record or one
+ * batch, which is only queued for sending by {@link #flush()}. If the collector
+ * is too slow and the unit does not fit into the configured number of queued
+ * bytes, the unit is discarded and the flush fails with a
+ * {@link RejectedException}: nothing of it reaches the wire and the connection
+ * stays usable. After the stream has been closed, {@link #unsent()} returns the
+ * queued units which have not been sent.
+ */
+class NioTcpOutputStream extends OutputStream {
+  static final int CHUNK_SIZE = 16384;
+  private static final int MAX_GATHER = 64;
+  private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  private final SocketChannel channel;
+  private final Selector selector;
+  private final long maxPendingBytes;
+  private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+  private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final AtomicLong sentBytes = new AtomicLong();
+  private final Thread thread;
+  // monitors would pin a virtual thread to its carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  // only used by the selector thread, and by close() after it has stopped
+  private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+  // guarded by lock
+  private ByteBuffer current;
+  // guarded by lock, the filled buffers of the unit which is not flushed yet
+  private final List<ByteBuffer> staged = new ArrayList<>();
+  // guarded by lock
+  private long stagedBytes;
+  // guarded by lock, whether the unit did not fit and is discarded
+  private boolean rejected;
+  // guarded by lock, the number of bytes queued since the stream was opened
+  private long queuedBytes;
+  // guarded by lock, the end offsets of the queued units which are not sent
+  private final ArrayDeque<Long> unitEnds = new ArrayDeque<>();
+  // guarded by lock, the start offset of the first of these units
+  private long firstUnitStart;
+  private volatile IOException failure;
+  private volatile boolean closed;
+  private volatile boolean selecting;
+
+  /**
+   * Thrown by {@link NioTcpOutputStream#flush()} if the bytes written since the
+   * last flush did not fit into the queue. The connection is still usable.
+   */
+  static final class RejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RejectedException(final String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Starts connecting to the endpoint.
+   *
+   * @param address
+   *          the address of the endpoint
+   * @param maxPendingBytes
+   *          the maximum number of bytes waiting to be sent
+   * @throws IOException
+   *           if the channel cannot be opened
+   */
+  NioTcpOutputStream(final SocketAddress address, final long maxPendingBytes) throws IOException {
+    this.maxPendingBytes = maxPendingBytes;
+    this.selector = Selector.open();
+    SocketChannel opened = null;
+    try {
+      opened = SocketChannel.open();
+      opened.configureBlocking(false);
+      opened.socket().setTcpNoDelay(true);
+      if (opened.connect(address)) {
+        opened.register(selector, SelectionKey.OP_READ);
+      } else {
+        opened.register(selector, SelectionKey.OP_CONNECT);
+      }
+    } catch (IOException e) {
+      if (opened != null) {
+        opened.close();
+      }
+      selector.close();
+      throw e;
+    }
+    this.channel = opened;
+    String name = (address instanceof InetSocketAddress) ? ((InetSocketAddress) address).getHostString() : "";
+    this.thread = new Thread(this::run, "logstash-nio-writer " + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    lock.lock();
+    try {
+      checkOpen();
+      if (rejected) {
+        return;
+      }
+      if (pendingBytes.get() + stagedBytes + len > maxPendingBytes) {
+        // the collector does not keep up, the unit is rejected by the next flush
+        discardStaged();
+        rejected = true;
+        return;
+      }
+      stagedBytes += len;
+      int offset = off;
+      int remaining = len;
+      while (remaining > 0) {
+        if (current == null) {
+          current = acquire();
+        }
+        int n = Math.min(remaining, current.remaining());
+        current.put(b, offset, n);
+        offset += n;
+        remaining -= n;
+        if (!current.hasRemaining()) {
+          staged.add(current);
+          current = null;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues the bytes written since the last flush for sending.
+   *
+   * @throws RejectedException
+   *           if the bytes did not fit into the queue and have been discarded
+   * @throws IOException
+   *           if the connection failed
+   */
+  @Override
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      checkOpen();
+      if (rejected) {
+        rejected = false;
+        throw new RejectedException("More than " + maxPendingBytes + " bytes waiting to be sent");
+      }
+      enqueue();
+    } finally {
+      lock.unlock();
+    }
+    if (selecting && selector.isOpen()) {
+      selector.wakeup();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      if (failure == null && !rejected) {
+        enqueue();
+      } else {
+        discardStaged();
+      }
+      closed = true;
+    } finally {
+      lock.unlock();
+    }
+    if (failure == null) {
+      if (selector.isOpen()) {
+        selector.wakeup();
+      }
+      join(TimeUnit.NANOSECONDS.toMillis(CLOSE_TIMEOUT_NANOS) + 100);
+    }
+    closeChannel();
+    // a closed channel stops the selector thread at once
+    join(100);
+  }
+
+  /**
+   * Returns the units which have been queued but not sent, in the order they
+   * were flushed. A unit which has been sent partly is left out, it is counted
+   * by {@link #getTruncatedUnits()}. Only complete while the stream is closed.
+   *
+   * @return the unsent units
+   */
+  List<byte[]> unsent() {
+    final List<byte[]> units = new ArrayList<>();
+    lock.lock();
+    try {
+      if (!closed || thread.isAlive()) {
+        return units;
+      }
+      final long sent = sentBytes.get();
+      trimUnits(sent);
+      final ByteBuffer remaining = ByteBuffer.allocate((int) (queuedBytes - sent));
+      for (ByteBuffer buffer : inFlight) {
+        remaining.put(buffer);
+      }
+      for (ByteBuffer buffer : queue) {
+        remaining.put(buffer);
+      }
+      ((Buffer) remaining).flip();
+      long offset = firstUnitStart;
+      for (long end : unitEnds) {
+        if (offset < sent) {
+          // the rest of a truncated unit
+          ((Buffer) remaining).position((int) (end - sent));
+        } else {
+          final byte[] unit = new byte[(int) (end - offset)];
+          remaining.get(unit);
+          units.add(unit);
+        }
+        offset = end;
+      }
+      return units;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of queued units which have been sent partly, which is
+   * at most one. Only complete while the stream is closed.
+   *
+   * @return the number of units
+   */
+  int getTruncatedUnits() {
+    lock.lock();
+    try {
+      final long sent = sentBytes.get();
+      trimUnits(sent);
+      return !unitEnds.isEmpty() && firstUnitStart < sent ? 1 : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of bytes waiting to be sent.
+   *
+   * @return the number of bytes
+   */
+  long getPendingBytes() {
+    return pendingBytes.get();
+  }
+
+  private void checkOpen() throws IOException {
+    IOException e = failure;
+    if (e != null) {
+      throw new IOException("Connection failed", e);
+    }
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  // guarded by lock
+  private void enqueue() {
+    if (current != null && current.position() > 0) {
+      staged.add(current);
+      current = null;
+    }
+    if (staged.isEmpty()) {
+      return;
+    }
+    trimUnits(sentBytes.get());
+    pendingBytes.addAndGet(stagedBytes);
+    queuedBytes += stagedBytes;
+    unitEnds.add(queuedBytes);
+    for (ByteBuffer buffer : staged) {
+      ((Buffer) buffer).flip();
+      queue.add(buffer);
+    }
+    staged.clear();
+    stagedBytes = 0;
+  }
+
+  // guarded by lock
+  private void discardStaged() {
+    for (ByteBuffer buffer : staged) {
+      release(buffer);
+    }
+    staged.clear();
+    stagedBytes = 0;
+    if (current != null) {
+      release(current);
+      current = null;
+    }
+  }
+
+  // guarded by lock, forgets the units which have been sent
+  private void trimUnits(final long sent) {
+    while (!unitEnds.isEmpty() && unitEnds.peek() <= sent) {
+      firstUnitStart = unitEnds.poll();
+    }
+  }
+
+  private void join(final long millis) {
+    try {
+      thread.join(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private ByteBuffer acquire() {
+    ByteBuffer buffer = pool.poll();
+    return (buffer != null) ? buffer : ByteBuffer.allocateDirect(CHUNK_SIZE);
+  }
+
+  private void release(final ByteBuffer buffer) {
+    if ((long) pool.size() * CHUNK_SIZE < maxPendingBytes) {
+      ((Buffer) buffer).clear();
+      pool.add(buffer);
+    }
+  }
+
+  private void run() {
+    ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    ByteBuffer readBuffer = ByteBuffer.allocate(256);
+    long closeDeadline = 0;
+    try {
+      while (true) {
+        for (ByteBuffer buffer = queue.poll(); buffer != null; buffer = queue.poll()) {
+          inFlight.add(buffer);
+        }
+        boolean connected = channel.isConnected();
+        if (connected && !inFlight.isEmpty()) {
+          int n = 0;
+          for (ByteBuffer buffer : inFlight) {
+            gather[n++] = buffer;
+            if (n == MAX_GATHER) {
+              break;
+            }
+          }
+          long written = channel.write(gather, 0, n);
+          pendingBytes.addAndGet(-written);
+          sentBytes.addAndGet(written);
+          while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+            release(inFlight.poll());
+          }
+          Arrays.fill(gather, 0, n, null);
+        }
+        if (closed) {
+          if (inFlight.isEmpty() && queue.isEmpty()) {
+            return;
+          }
+          if (closeDeadline == 0) {
+            closeDeadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+          } else if (System.nanoTime() - closeDeadline > 0) {
+            return;
+          }
+        }
+        SelectionKey key = channel.keyFor(selector);
+        if (connected) {
+          key.interestOps(inFlight.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        selecting = true;
+        if (queue.isEmpty()) {
+          selector.select(closed ? 10 : 1000);
+        } else {
+          selector.selectNow();
+        }
+        selecting = false;
+        for (SelectionKey selected : selector.selectedKeys()) {
+          if (selected.isValid() && selected.isConnectable() && channel.finishConnect()) {
+            selected.interestOps(SelectionKey.OP_READ);
+          }
+          if (selected.isValid() && selected.isReadable()) {
+            ((Buffer) readBuffer).clear();
+            if (channel.read(readBuffer) < 0) {
+              throw new IOException("Connection closed by peer");
+            }
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      failure = new IOException(e);
+    } finally {
+      closeChannel();
+    }
+  }
+
+  private void closeChannel() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // ignored
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      // ignored
+    }
+  }
+}
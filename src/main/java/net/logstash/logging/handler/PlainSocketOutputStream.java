@@ -0,0 +1,68 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * An output stream over a connected socket which holds no monitor while it
+ * writes. The {@code TcpOutputStream} of the log manager writes inside a
+ * {@code synchronized} block, which pins a virtual thread blocked by a stalled
+ * collector to its carrier thread. The handler buffers and reconnects itself,
+ * so every write is passed to the socket at once.
+ */
+final class PlainSocketOutputStream extends OutputStream {
+  private final Socket socket;
+  private final OutputStream out;
+
+  /**
+   * Creates the stream.
+   *
+   * @param socket
+   *          the connected socket, closed with the stream
+   * @throws IOException
+   *           if the output stream of the socket cannot be opened
+   */
+  PlainSocketOutputStream(final Socket socket) throws IOException {
+    this.socket = socket;
+    try {
+      this.out = socket.getOutputStream();
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    out.write(b);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    out.write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
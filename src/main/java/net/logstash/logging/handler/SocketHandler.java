@@ -13,26 +13,58 @@
  */
 package net.logstash.logging.handler;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.ErrorManager;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
 
 import org.jboss.logmanager.ExtHandler;
 import org.jboss.logmanager.ExtLogRecord;
-import org.jboss.logmanager.handlers.SslTcpOutputStream;
 import org.jboss.logmanager.handlers.TcpOutputStream;
-import org.jboss.logmanager.handlers.UdpOutputStream;
 import org.jboss.logmanager.handlers.UninterruptibleOutputStream;
 
+import net.logstash.logging.formatter.ByteFormatter;
+
 /**
  * A handler used to communicate over a socket.
  *
@@ -56,18 +88,210 @@ public class SocketHandler extends ExtHandler {
      * Transport Layer Security over TCP
      */
     SSL_TCP,
+    /**
+     * Transmission Control Protocol over a non-blocking channel, the
+     * publishing thread never waits for the network
+     */
+    TCP_NIO,
+    /**
+     * Lumberjack v2 protocol of the Beats input with acknowledged windows
+     */
+    BEATS,
+    /**
+     * Stream over a Unix domain socket to a collector on the same host,
+     * requires Java 16
+     */
+    UNIX,
+  }
+
+  /**
+   * How the stream of records is compressed
+   */
+  public enum Compression {
+    /**
+     * Send the records uncompressed
+     */
+    NONE,
+    /**
+     * Send a gzip stream (RFC 1952)
+     */
+    GZIP,
+    /**
+     * Send a zlib stream (RFC 1950)
+     */
+    DEFLATE,
+  }
+
+  /**
+   * What happens with a record which is larger than a datagram of
+   * {@link Protocol#UDP}
+   */
+  public enum OversizePolicy {
+    /**
+     * Shorten the stacktrace of the record until it fits, divert the record to
+     * the subHandler if this is not possible
+     */
+    TRUNCATE,
+    /**
+     * Send the record in GELF chunks
+     */
+    CHUNK,
+    /**
+     * Publish the record to the subHandler
+     */
+    DIVERT,
+  }
+
+  /**
+   * How records are distributed over the {@linkplain #setHosts(String) hosts}
+   */
+  public enum LoadBalancing {
+    /**
+     * Send all records to one host, switch to the next host if it fails
+     */
+    STICKY,
+    /**
+     * Send the records to the hosts in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * Send a record to the host with the least bytes waiting to be sent; with
+     * blocking TCP and autoFlush this is the same as round robin, the bytes are
+     * only tracked with batching, TCP_NIO and BEATS
+     */
+    LEAST_OUTSTANDING_BYTES,
+  }
+
+  /**
+   * How the writer thread waits for new records in asynchronous mode
+   */
+  public enum WaitStrategy {
+    /**
+     * Park the writer thread until a record is published
+     */
+    BLOCKING,
+    /**
+     * Spin, then yield, then sleep for a short time
+     */
+    SLEEPING,
+    /**
+     * Spin, then yield
+     */
+    YIELDING,
+    /**
+     * Spin without pausing (lowest latency, occupies a core)
+     */
+    BUSY_SPIN,
+  }
+
+  /**
+   * What happens with a record if the ring buffer is full in asynchronous mode
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait until there is space in the ring buffer
+     */
+    BLOCK,
+    /**
+     * Drop the new record
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the new record if its level is below the overflow level, otherwise
+     * wait
+     */
+    DROP_BY_LEVEL,
+    /**
+     * Publish the new record to the subHandler
+     */
+    SPILL,
   }
 
   public static final int DEFAULT_PORT = 4560;
+  public static final long DEFAULT_LINGER_MILLIS = 100;
+  public static final long DEFAULT_SEND_QUEUE_SIZE = 4L * 1024 * 1024;
+  public static final int DEFAULT_SPOOL_SEGMENT_SIZE = 8 * 1024 * 1024;
+  public static final long DEFAULT_SPOOL_MAX_SIZE = 128L * 1024 * 1024;
+  public static final int DEFAULT_SPOOL_REPLAY_RATE = 1000;
+  private static final long ASYNC_CLOSE_TIMEOUT = 5000;
+  public static final long DEFAULT_RECONNECT_DELAY = 1000;
+  public static final long DEFAULT_MAX_RECONNECT_DELAY = 60000;
+  public static final int DEFAULT_RECONNECT_JITTER = 50;
+  public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 3;
+  public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  private static final long REPLAY_INTERVAL_MILLIS = 100;
+  private static final int MAX_HELD_RECORDS = 1024;
+  public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+  public static final int DEFAULT_WINDOW_SIZE = 512;
+  public static final int DEFAULT_PIPELINING = 2;
+  public static final long DEFAULT_ACK_TIMEOUT = 10000;
+  public static final int DEFAULT_MAX_DATAGRAM_SIZE = 8192;
+  public static final long DEFAULT_SUMMARY_INTERVAL = 60000;
+  public static final int DEFAULT_DEDUP_CAPACITY = 1024;
+  private static final int COMPRESSION_BUFFER_SIZE = 8192;
 
-  // All the following fields are guarded by this
+  // a lock instead of the monitor, so a virtual thread blocked in a write
+  // does not pin its carrier thread
+  private final ReentrantLock lock = new ReentrantLock();
+  // All the following fields are guarded by lock
   private InetAddress address;
   private String hostName;
   private int port;
   private Protocol protocol;
-  private Writer writer;
-  private boolean initialize;
+  private String hosts;
+  private String socketPath;
+  private LoadBalancing loadBalancing = LoadBalancing.STICKY;
+  private List<Endpoint> endpoints;
+  private int nextEndpoint;
+  private long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+  private long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+  private int reconnectJitter = DEFAULT_RECONNECT_JITTER;
+  private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+  private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
   private TransportErrorManager em;
+  private final SocketHandlerMetrics metrics = new SocketHandlerMetrics(this);
+  private String metricsName;
+  private ObjectName metricsObjectName;
+  private volatile int asyncCapacity;
+  private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  private Level overflowLevel = Level.WARNING;
+  private volatile AsyncRingBuffer ringBuffer;
+  private int batchSize;
+  private int batchRecords;
+  private long lingerMillis = DEFAULT_LINGER_MILLIS;
+  private long sendQueueSize = DEFAULT_SEND_QUEUE_SIZE;
+  private Compression compression = Compression.NONE;
+  private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+  private int windowSize = DEFAULT_WINDOW_SIZE;
+  private int pipelining = DEFAULT_PIPELINING;
+  private long ackTimeout = DEFAULT_ACK_TIMEOUT;
+  private int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+  private OversizePolicy oversizePolicy = OversizePolicy.TRUNCATE;
+  private final Deque<String> redelivery = new ArrayDeque<>();
+  private final Deque<String> held = new ArrayDeque<>();
+  private ScheduledExecutorService scheduler;
+  private ExecutorService connector;
+  private String spoolDirectory;
+  private int spoolSegmentSize = DEFAULT_SPOOL_SEGMENT_SIZE;
+  private long spoolMaxSize = DEFAULT_SPOOL_MAX_SIZE;
+  private int spoolReplayRate = DEFAULT_SPOOL_REPLAY_RATE;
+  private DiskSpool spool;
+  private ScheduledFuture<?> replayTask;
+  private boolean spoolFailed;
+  private volatile AdmissionControl admission;
+  private int rateLimit;
+  private int rateLimitBurst;
+  private int samplingRate = 100;
+  private Level samplingLevel = Level.WARNING;
+  private long summaryInterval = DEFAULT_SUMMARY_INTERVAL;
+  private volatile ScheduledFuture<?> summaryTask;
+  private volatile Deduplicator deduplicator;
+  private long dedupWindow;
+  private int dedupCapacity = DEFAULT_DEDUP_CAPACITY;
+  private volatile ScheduledFuture<?> dedupTask;
+  private boolean virtualThreads;
+  private final byte[] lengthPrefix = new byte[4];
 
   /**
    * Creates a socket handler with an address of
@@ -139,275 +363,2567 @@ public class SocketHandler extends ExtHandler {
     this.address = address;
     this.port = port;
     this.protocol = protocol;
-    initialize = true;
-    writer = null;
     em = new TransportErrorManager();
     setErrorManager(em);
   }
 
   @Override
   protected void doPublish(final ExtLogRecord record) {
+    final long start = System.nanoTime();
+    try {
+      final Deduplicator dedup = deduplicator;
+      if (dedup != null) {
+        if (dedupTask == null) {
+          startDeduplication();
+        }
+        if (!dedup.admit(record)) {
+          metrics.recordsDeduplicated.increment();
+          return;
+        }
+      }
+      final AdmissionControl current = admission;
+      if (current != null && !current.admit(record)) {
+        // rejected before formatting, counted for the summary record
+        metrics.recordsSuppressed.increment();
+        if (summaryTask == null) {
+          startSummary();
+        }
+        return;
+      }
+      publishAdmitted(record);
+    } finally {
+      metrics.publishTime.record(System.nanoTime() - start);
+    }
+  }
+
+  private void publishAdmitted(final ExtLogRecord record) {
+    if (isBinaryFormat()) {
+      publishBinary(record);
+      return;
+    }
+    if (asyncCapacity == 0 && isEncodingDirectly()) {
+      // the bytes are written before the formatter of this thread reuses
+      // its buffer
+      final ByteBuffer encoded = createEncodedMessage(record);
+      if (encoded != null && encoded.hasRemaining()) {
+        write(encoded, record);
+      }
+      return;
+    }
     final String formatted = createFormattedMessage(record);
     if (formatted == null || formatted.isEmpty()) {
       // nothing to write; move along
       return;
     }
+    if (asyncCapacity > 0) {
+      publishAsync(formatted, record);
+    } else {
+      write(formatted, record);
+    }
+  }
+
+  private void startDeduplication() {
+    lock.lock();
     try {
-      synchronized (this) {
-        if (initialize && (em.lastExceptionTimestamp < System.currentTimeMillis() - 5000)) {
-          initialize();
-          if (em.lastException == null) {
-            initialize = false;
-          }
-        }
-        if (writer == null) {
-          for (Handler h : getHandlers()) {
-            h.publish(record);
-          }
-          return;
-        }
-        writer.write(formatted);
-        super.doPublish(record);
+      final Deduplicator dedup = deduplicator;
+      if (dedupTask == null && dedup != null) {
+        dedupTask = scheduler().scheduleWithFixedDelay(() -> dedup.expire(false), dedupWindow, dedupWindow,
+            TimeUnit.MILLISECONDS);
       }
-    } catch (Exception e) {
-      handleExceptionOnPublish(record, e);
+    } finally {
+      lock.unlock();
     }
   }
 
-  private String createFormattedMessage(final ExtLogRecord record) {
-    final Formatter formatter = getFormatter();
+  /**
+   * Publishes the summary of a burst of identical records.
+   */
+  private void publishRepeated(final ExtLogRecord record) {
     try {
-      return formatter.format(record);
-    } catch (Exception e) {
-      reportError("Could not format message", e, ErrorManager.FORMAT_FAILURE);
-      return null;
+      publishAdmitted(record);
+    } catch (RuntimeException e) {
+      reportError("Could not publish the summary of repeated records", e, ErrorManager.WRITE_FAILURE);
     }
   }
 
-  private void handleExceptionOnPublish(final ExtLogRecord record, Exception e) {
-    Handler[] handlers = getHandlers();
-    if (handlers.length > 0) {
-      // if we have a subhandler it will publish the record of the failed
-      // transmission (to disk)
-      for (Handler h : getHandlers()) {
-        h.publish(record);
+  private void startSummary() {
+    lock.lock();
+    try {
+      if (summaryTask == null && summaryInterval > 0) {
+        summaryTask = scheduler().scheduleAtFixedRate(this::publishSummary, summaryInterval, summaryInterval,
+            TimeUnit.MILLISECONDS);
       }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Publishes a record with the number of records which were suppressed by
+   * sampling and rate limiting since the last summary.
+   */
+  private void publishSummary() {
+    final AdmissionControl current = admission;
+    final AdmissionControl.Summary summary = (current != null) ? current.summarize() : null;
+    if (summary == null) {
+      return;
+    }
+    try {
+      final ExtLogRecord record = new ExtLogRecord(Level.WARNING, summary.getMessage(),
+          ExtLogRecord.FormatStyle.NO_FORMAT, SocketHandler.class.getName());
+      record.setLoggerName(SocketHandler.class.getName());
+      record.putMdc("suppressed_records", Long.toString(summary.getTotal()));
+      record.putMdc("rate_limited_records", Long.toString(summary.getRateLimited()));
+      record.putMdc("sampled_records", Long.toString(summary.getSampled()));
+      publishAdmitted(record);
+    } catch (RuntimeException e) {
+      reportError("Could not publish the summary of suppressed records", e, ErrorManager.WRITE_FAILURE);
+    }
+  }
+
+  /**
+   * Publishes a record of a binary format. The ring buffer and the spool hold
+   * strings, so there the record is a string of ISO-8859-1 characters, one
+   * per byte.
+   */
+  private void publishBinary(final ExtLogRecord record) {
+    if (protocol == Protocol.UDP || protocol == Protocol.BEATS) {
+      // datagrams and Lumberjack frames carry text
+      metrics.formatFailures.increment();
+      reportError("Binary formats require a stream protocol", null, ErrorManager.FORMAT_FAILURE);
+      return;
+    }
+    final ByteBuffer encoded = createEncodedMessage(record);
+    if (encoded == null || !encoded.hasRemaining()) {
+      return;
+    }
+    if (asyncCapacity > 0) {
+      publishAsync(new String(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining(),
+          StandardCharsets.ISO_8859_1), record);
     } else {
-      reportError("Error writing log message", e, ErrorManager.WRITE_FAILURE);
+      write(encoded, record);
     }
-    closeSocketHandler();
   }
 
-  @Override
-  public void flush() {
-    synchronized (this) {
-      safeFlush(writer);
+  private void publishAsync(final String formatted, final ExtLogRecord record) {
+    AsyncRingBuffer current = ringBuffer;
+    if (current == null) {
+      current = startRingBuffer();
+    }
+    if (current == null) {
+      write(formatted, record);
+      return;
+    }
+    // the record is read on the writer thread if it has to go to the subHandler
+    record.copyAll();
+    if (!current.publish(formatted, record)) {
+      metrics.recordsDropped.increment();
     }
-    super.flush();
   }
 
-  @Override
-  public void close() {
-    closeSocketHandler();
-    super.close();
+  private AsyncRingBuffer startRingBuffer() {
+    lock.lock();
+    try {
+      if (ringBuffer == null && asyncCapacity > 0) {
+        AsyncRingBuffer created = new AsyncRingBuffer(asyncCapacity, waitStrategy, overflowPolicy, overflowLevel,
+            this::write, (formatted, record) -> {
+              metrics.recordsDiverted.increment();
+              publishToSubHandlers(record);
+            }, e -> {
+              metrics.recordsDropped.increment();
+              reportError("Error writing log message", e, ErrorManager.WRITE_FAILURE);
+            }, threads("logstash-socket-writer"));
+        created.start();
+        ringBuffer = created;
+      }
+      return ringBuffer;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  private void closeSocketHandler() {
-    checkAccess(this);
-    synchronized (this) {
-      safeClose(writer);
-      writer = null;
-      initialize = true;
+  private void stopRingBuffer() {
+    AsyncRingBuffer current;
+    lock.lock();
+    try {
+      current = ringBuffer;
+      ringBuffer = null;
+    } finally {
+      lock.unlock();
+    }
+    if (current != null) {
+      // must not hold the lock, the writer thread needs it to drain the buffer
+      current.close(ASYNC_CLOSE_TIMEOUT);
     }
   }
 
-  /**
-   * Returns the address being used.
-   *
-   * @return the address
-   */
-  public InetAddress getAddress() {
-    return address;
+  private void write(final String formatted, final ExtLogRecord record) {
+    if (isBinaryFormat()) {
+      write(ByteBuffer.wrap(formatted.getBytes(StandardCharsets.ISO_8859_1)), record);
+      return;
+    }
+    Exception failure = null;
+    String datagram = formatted;
+    lock.lock();
+    try {
+      if (protocol == Protocol.UDP) {
+        datagram = fitDatagram(formatted);
+      }
+      // a failed record is sent once more, over a new connection or to the
+      // next host
+      for (int attempt = 0; datagram != null && attempt < 2; attempt++) {
+        final Endpoint endpoint = select();
+        if (endpoint == null) {
+          break;
+        }
+        final long start = System.nanoTime();
+        try {
+          if (!(redelivery.isEmpty() && held.isEmpty())) {
+            redeliver(endpoint);
+          }
+          endpoint.writer.write(datagram);
+          endpoint.unflushed += datagram.length();
+          written(endpoint, start);
+          return;
+        } catch (NioTcpOutputStream.RejectedException e) {
+          // the connection is kept, only this record is diverted
+          failure = e;
+          break;
+        } catch (Exception e) {
+          failure = e;
+          metrics.writeFailures.increment();
+          if (endpointFailed(endpoint)) {
+            // the record is sent again with the unacknowledged records
+            return;
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (datagram == null) {
+      // a spooled record would not fit either
+      divertOversized(record);
+    } else {
+      // a truncated datagram is spooled or held
+      divert(datagram, record, failure);
+    }
   }
 
   /**
-   * Sets the address to connect to.
-   *
-   * @param address
-   *          the address
+   * Writes a record encoded by a {@link ByteFormatter} to the stream below the
+   * writer, skipping the string and the character encoding.
    */
-  public void setAddress(final InetAddress address) {
-    checkAccess(this);
-    synchronized (this) {
-      this.address = address;
-      initialize = true;
+  private void write(final ByteBuffer encoded, final ExtLogRecord record) {
+    final boolean binary = isBinaryFormat();
+    Exception failure = null;
+    lock.lock();
+    try {
+      if (protocol == Protocol.UDP) {
+        // the oversize policy works on strings
+        write(StandardCharsets.UTF_8.decode(encoded).toString(), record);
+        return;
+      }
+      for (int attempt = 0; attempt < 2; attempt++) {
+        final Endpoint endpoint = select();
+        if (endpoint == null) {
+          break;
+        }
+        final long start = System.nanoTime();
+        try {
+          if (!(redelivery.isEmpty() && held.isEmpty())) {
+            redeliver(endpoint);
+          }
+          if (binary) {
+            writeLength(endpoint.output, encoded.remaining());
+          }
+          endpoint.output.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+          endpoint.unflushed += encoded.remaining();
+          written(endpoint, start);
+          return;
+        } catch (NioTcpOutputStream.RejectedException e) {
+          failure = e;
+          break;
+        } catch (Exception e) {
+          failure = e;
+          metrics.writeFailures.increment();
+          if (endpointFailed(endpoint)) {
+            return;
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
     }
+    divert((binary ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8).decode(encoded).toString(), record,
+        failure);
   }
 
   /**
-   * Sets the address to connect to by doing a lookup on the hostname.
-   *
-   * @param hostname
-   *          the host name used to resolve the address
+   * Writes the length which precedes every record of a binary format, as four
+   * bytes in network byte order.
    */
-  public void setHostname(final String hostname) {
-    checkAccess(this);
+  // guarded by lock
+  private void writeLength(final OutputStream out, final int length) throws IOException {
+    lengthPrefix[0] = (byte) (length >>> 24);
+    lengthPrefix[1] = (byte) (length >>> 16);
+    lengthPrefix[2] = (byte) (length >>> 8);
+    lengthPrefix[3] = (byte) length;
+    out.write(lengthPrefix);
+  }
 
-    try {
-        setAddress(InetAddress.getByName(hostname));
-    } catch (UnknownHostException uhe) {
-        this.address = null;
-        this.hostName = hostname;
-        reportError(uhe.getMessage(), uhe, ErrorManager.OPEN_FAILURE);
+  // guarded by lock
+  private void written(final Endpoint endpoint, final long start) throws IOException {
+    if (isBatching()) {
+      addToBatch(endpoint);
+    } else if (isAutoFlush()) {
+      // flush here instead of flush() so a failed write is not only reported
+      flushEndpoint(endpoint);
+    } else {
+      endpoint.pendingRecords++;
     }
+    metrics.writeTime.record(System.nanoTime() - start);
+    metrics.recordsPublished.increment();
   }
 
   /**
-   * Returns the protocol being used.
-   *
-   * @return the protocol
+   * Indicates whether records are encoded by the formatter: it has to be a
+   * {@link ByteFormatter} with a heap buffer and the encoding UTF-8.
    */
-  public Protocol getProtocol() {
-    return protocol;
+  private boolean isEncodingDirectly() {
+    final String encoding = getEncoding();
+    return getFormatter() instanceof ByteFormatter
+        && (encoding == null || "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding));
   }
 
   /**
-   * Sets the protocol to use.
-   *
-   * @param protocol
-   *          the protocol to use
+   * Indicates whether the formatter encodes records in a binary format, which
+   * are sent with a length prefix and never as text.
    */
-  public void setProtocol(final Protocol protocol) {
-    checkAccess(this);
-    synchronized (this) {
-      this.protocol = protocol;
-      initialize = true;
+  private boolean isBinaryFormat() {
+    final Formatter formatter = getFormatter();
+    return formatter instanceof ByteFormatter && ((ByteFormatter) formatter).isBinary();
+  }
+
+  private ByteBuffer createEncodedMessage(final ExtLogRecord record) {
+    try {
+      final ByteBuffer encoded = ((ByteFormatter) getFormatter()).formatBytes(record);
+      if (encoded != null && !encoded.hasArray()) {
+        // direct buffers are copied, the streams take arrays
+        final ByteBuffer copy = ByteBuffer.allocate(encoded.remaining());
+        copy.put(encoded);
+        ((Buffer) copy).flip();
+        return copy;
+      }
+      return encoded;
+    } catch (Exception e) {
+      metrics.formatFailures.increment();
+      reportError("Could not format message", e, ErrorManager.FORMAT_FAILURE);
+      return null;
     }
   }
 
   /**
-   * Returns the port being used.
+   * Applies the oversize policy to a record of {@link Protocol#UDP}.
    *
-   * @return the port
+   * @return the record to send, {@code null} if it must be diverted
    */
-  public int getPort() {
-    return port;
+  // guarded by lock
+  private String fitDatagram(final String formatted) {
+    // a character takes at most three bytes
+    if (formatted.length() * 3 <= maxDatagramSize) {
+      return formatted;
+    }
+    final int length = DatagramOutputStream.utf8Length(formatted);
+    if (length <= maxDatagramSize) {
+      return formatted;
+    }
+    switch (oversizePolicy) {
+    case CHUNK:
+      final int payload = Math.min(maxDatagramSize, DatagramOutputStream.MAX_DATAGRAM_SIZE)
+          - DatagramOutputStream.CHUNK_HEADER_SIZE;
+      return (length <= DatagramOutputStream.MAX_CHUNKS * payload) ? formatted : null;
+    case TRUNCATE:
+      final String truncated = DatagramOutputStream.truncateStacktrace(formatted, maxDatagramSize);
+      if (truncated != null) {
+        metrics.recordsTruncated.increment();
+      }
+      return truncated;
+    case DIVERT:
+    default:
+      return null;
+    }
+  }
+
+  private void divertOversized(final ExtLogRecord record) {
+    if (getHandlers().length > 0) {
+      metrics.recordsDiverted.increment();
+      publishToSubHandlers(record);
+    } else {
+      metrics.recordsDropped.increment();
+      reportError("Record exceeds the maximum datagram size", null, ErrorManager.WRITE_FAILURE);
+    }
   }
 
   /**
-   * Sets the port to connect to.
+   * Returns the endpoint for the next record. Endpoints which are not
+   * connected are skipped, their connection is established in the
+   * background.
    *
-   * @param port
-   *          the port
+   * @return the endpoint or {@code null} if no endpoint is connected
    */
-  public void setPort(final int port) {
-    checkAccess(this);
-    synchronized (this) {
-      this.port = port;
-      initialize = true;
+  // guarded by lock
+  private Endpoint select() {
+    // a backlog left over by a previous run is replayed as well
+    openSpool();
+    final List<Endpoint> all = endpoints();
+    final long now = System.currentTimeMillis();
+    final int size = all.size();
+    final int start = nextEndpoint;
+    for (Endpoint endpoint : all) {
+      if (!endpoint.isConnected()) {
+        connect(endpoint, now);
+      }
     }
-  }
-
-  public void setSubHandler(final Handler handler) {
-    checkAccess(this);
-    synchronized (this) {
-      if (handler != null) {
-        addHandler(handler);
-      } else {
-        Handler[] handlers = getHandlers();
-        for (Handler h : handlers) {
-          removeHandler(h);
+    if (loadBalancing != LoadBalancing.STICKY) {
+      // also breaks the ties of the least outstanding bytes in turn
+      nextEndpoint = (nextEndpoint + 1) % size;
+    }
+    Endpoint least = null;
+    long leastBytes = Long.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      final int index = (start + i) % size;
+      final Endpoint endpoint = all.get(index);
+      if (!endpoint.isConnected()) {
+        continue;
+      }
+      if (loadBalancing != LoadBalancing.LEAST_OUTSTANDING_BYTES) {
+        if (loadBalancing == LoadBalancing.STICKY) {
+          nextEndpoint = index;
         }
+        return endpoint;
+      }
+      final long bytes = endpoint.outstandingBytes();
+      if (bytes < leastBytes) {
+        least = endpoint;
+        leastBytes = bytes;
       }
     }
+    return least;
   }
 
-  public Handler getSubHandler() {
-    Handler[] handlers = getHandlers();
-    return (handlers.length == 0) ? null : handlers[0];
+  /**
+   * Starts to establish the connections of the endpoints which are not
+   * connected, without waiting for them.
+   */
+  void connectEndpoints() {
+    lock.lock();
+    try {
+      final long now = System.currentTimeMillis();
+      for (Endpoint endpoint : endpoints()) {
+        if (!endpoint.isConnected()) {
+          connect(endpoint, now);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
-  /** internal ErrorManager with timestamps */
-  private static class TransportErrorManager extends ErrorManager {
-    private Exception lastException;
-    private long lastExceptionTimestamp = 0;
-    private long exceptionTimestamp = 0;
+  /**
+   * Establishes the connection of an endpoint on the connector, the
+   * publishing thread never waits for a connect. The records held while
+   * connecting are sent once the connection is established.
+   */
+  // guarded by lock
+  private void connect(final Endpoint endpoint, final long now) {
+    if (!endpoint.mayConnect(now)) {
+      // the circuit breaker is open or a connect is in progress, records go
+      // elsewhere without waiting
+      return;
+    }
+    final Supplier<OutputStream> factory = outputStreamFactory(endpoint);
+    endpoint.connecting = true;
+    if (endpoint.getConsecutiveFailures() > 0) {
+      metrics.reconnectAttempts.increment();
+    }
+    connector().execute(() -> {
+      final OutputStream out = factory.get();
+      lock.lock();
+      try {
+        endpoint.connecting = false;
+        if (endpoint.isRetired()) {
+          safeClose(out);
+        } else {
+          open(endpoint, out, System.currentTimeMillis());
+          if (endpoint.isConnected() && !(redelivery.isEmpty() && held.isEmpty())) {
+            redeliver(endpoint);
+          }
+        }
+      } catch (NioTcpOutputStream.RejectedException e) {
+        // the rejected records have been counted as dropped
+      } catch (Exception e) {
+        reportError("Error sending held records", e, ErrorManager.WRITE_FAILURE);
+        metrics.writeFailures.increment();
+        endpointFailed(endpoint);
+      } finally {
+        lock.unlock();
+      }
+    });
+  }
+
+  /**
+   * Returns whether a connection is established in the background.
+   */
+  // guarded by lock
+  private boolean isConnecting() {
+    if (endpoints != null) {
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.connecting) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // guarded by lock
+  private void open(final Endpoint endpoint, final OutputStream out, final long now) {
+    final Writer current = endpoint.writer;
+    if (current != null) {
+      writeTail(current);
+      safeFlush(current);
+      closeEndpoint(endpoint);
+    }
+    if (out != null && initialize(endpoint, out)) {
+      endpoint.initialize = false;
+      endpoint.connected();
+    } else {
+      endpoint.retryAt(now + reconnectDelay(endpoint.failed()));
+    }
+  }
+
+  /**
+   * Returns the time to wait before the next connection attempt. The first
+   * failures are retried at once, then the circuit breaker opens and the delay
+   * grows exponentially. The delay is shortened by a random jitter, so a fleet
+   * of servers does not reconnect in lockstep.
+   *
+   * @param failures
+   *          the number of consecutive failures
+   * @return the delay in milliseconds
+   */
+  // guarded by lock
+  private long reconnectDelay(final int failures) {
+    if (failures < circuitBreakerThreshold) {
+      return 0;
+    }
+    final int doublings = Math.min(failures - circuitBreakerThreshold, 62);
+    final long delay = (reconnectDelay > (maxReconnectDelay >> doublings)) ? maxReconnectDelay
+        : reconnectDelay << doublings;
+    return delay - (long) (ThreadLocalRandom.current().nextDouble() * delay * reconnectJitter / 100);
+  }
+
+  // guarded by lock
+  private List<Endpoint> endpoints() {
+    if (endpoints == null) {
+      final List<Endpoint> parsed = (hosts != null) ? Endpoint.parse(hosts, port) : null;
+      endpoints = (parsed != null && !parsed.isEmpty()) ? parsed
+          : Collections.singletonList(new Endpoint(hostName, address, port));
+      nextEndpoint = 0;
+    }
+    return endpoints;
+  }
+
+  /**
+   * Returns the endpoints records are sent to.
+   *
+   * @return the endpoints
+   */
+  List<Endpoint> getEndpoints() {
+    lock.lock();
+    try {
+      return Collections.unmodifiableList(endpoints());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void resetEndpoints() {
+    lock.lock();
+    try {
+      if (endpoints != null) {
+        for (Endpoint endpoint : endpoints) {
+          endpoint.retire();
+          closeEndpoint(endpoint);
+        }
+        endpoints = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void reinitialize() {
+    lock.lock();
+    try {
+      if (endpoints != null) {
+        for (Endpoint endpoint : endpoints) {
+          endpoint.initialize = true;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private String createFormattedMessage(final ExtLogRecord record) {
+    final Formatter formatter = getFormatter();
+    try {
+      return formatter.format(record);
+    } catch (Exception e) {
+      metrics.formatFailures.increment();
+      reportError("Could not format message", e, ErrorManager.FORMAT_FAILURE);
+      return null;
+    }
+  }
+
+  private void divert(final String formatted, final ExtLogRecord record, final Exception e) {
+    Handler[] handlers = getHandlers();
+    if (spool(formatted)) {
+      // the record is replayed after the connection is established again
+      metrics.recordsSpooled.increment();
+    } else if (handlers.length == 0 && hold(formatted)) {
+      // sent by the connector once the connection is established
+    } else if (handlers.length > 0) {
+      // if we have a subhandler it will publish the record of the failed
+      // transmission (to disk)
+      metrics.recordsDiverted.increment();
+      publishToSubHandlers(record);
+    } else {
+      metrics.recordsDropped.increment();
+      if (e != null) {
+        reportError("Error writing log message", e, ErrorManager.WRITE_FAILURE);
+      }
+    }
+  }
+
+  private boolean spool(final String formatted) {
+    lock.lock();
+    try {
+      DiskSpool current = openSpool();
+      return current != null && current.append(formatted);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Keeps a record in memory while a connection is established in the
+   * background, so the records of a starting handler without a spool or a
+   * subHandler are not lost.
+   *
+   * @return {@code true} if the record is held
+   */
+  private boolean hold(final String formatted) {
+    lock.lock();
+    try {
+      if (held.size() >= MAX_HELD_RECORDS) {
+        return false;
+      }
+      // the connect may have finished since the record was diverted
+      final Endpoint endpoint = isConnecting() ? null : select();
+      if (endpoint == null && !isConnecting()) {
+        return false;
+      }
+      held.add(formatted);
+      if (endpoint != null) {
+        try {
+          redeliver(endpoint);
+        } catch (NioTcpOutputStream.RejectedException e) {
+          // the rejected records have been counted as dropped
+        } catch (Exception e) {
+          metrics.writeFailures.increment();
+          reportError("Error writing log message", e, ErrorManager.WRITE_FAILURE);
+          endpointFailed(endpoint);
+        }
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // guarded by lock
+  private DiskSpool openSpool() {
+    if (spool == null && spoolDirectory != null && !spoolFailed) {
+      try {
+        spool = new DiskSpool(new File(spoolDirectory), spoolSegmentSize, spoolMaxSize,
+            e -> reportError("Could not unmap spool segments, the garbage collector releases their disk space", e,
+                ErrorManager.GENERIC_FAILURE));
+        replayTask = scheduler().scheduleWithFixedDelay(this::replaySpool, REPLAY_INTERVAL_MILLIS,
+            REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (IOException e) {
+        // not retried until the spool is configured again
+        spoolFailed = true;
+        reportError("Could not open spool", e, ErrorManager.OPEN_FAILURE);
+      }
+    }
+    return spool;
+  }
+
+  private void replaySpool() {
+    lock.lock();
+    try {
+      DiskSpool current = spool;
+      if (current == null || current.isEmpty()) {
+        return;
+      }
+      Endpoint endpoint = select();
+      if (endpoint == null) {
+        return;
+      }
+      long perInterval = spoolReplayRate * REPLAY_INTERVAL_MILLIS / 1000;
+      List<String> records = current.peek((int) Math.max(perInterval, 1));
+      try {
+        final boolean binary = isBinaryFormat();
+        for (String formatted : records) {
+          if (binary) {
+            final byte[] bytes = formatted.getBytes(StandardCharsets.ISO_8859_1);
+            writeLength(endpoint.output, bytes.length);
+            endpoint.output.write(bytes);
+          } else {
+            endpoint.writer.write(formatted);
+          }
+        }
+        flushEndpoint(endpoint);
+        // only removed after they have been written
+        current.remove(records.size());
+        metrics.recordsReplayed.add(records.size());
+      } catch (NioTcpOutputStream.RejectedException e) {
+        // replayed again in the next interval
+      } catch (Exception e) {
+        reportError("Error replaying spooled records", e, ErrorManager.WRITE_FAILURE);
+        endpointFailed(endpoint);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void closeSpool() {
+    lock.lock();
+    try {
+      if (replayTask != null) {
+        replayTask.cancel(false);
+        replayTask = null;
+      }
+      if (spool != null) {
+        spool.close();
+        spool = null;
+      }
+      spoolFailed = false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isBatching() {
+    return batchSize > 0 || batchRecords > 0;
+  }
+
+  // guarded by lock
+  private void addToBatch(final Endpoint endpoint) throws IOException {
+    // the record being added is not counted until it has been flushed
+    if (batchRecords > 0 && endpoint.pendingRecords + 1 >= batchRecords) {
+      flushEndpoint(endpoint);
+    } else if (++endpoint.pendingRecords == 1 && lingerMillis > 0) {
+      scheduler().schedule(this::flushLingering, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Flushes the writer of an endpoint. If a {@link Protocol#TCP_NIO} connection
+   * rejects the flushed bytes because its send queue is full, the pending
+   * records are counted as dropped; a record which is written and flushed at
+   * once is left to the caller.
+   */
+  // guarded by lock
+  private void flushEndpoint(final Endpoint endpoint) throws IOException {
+    final int records = endpoint.pendingRecords;
+    endpoint.pendingRecords = 0;
+    endpoint.unflushed = 0;
+    try {
+      endpoint.writer.flush();
+    } catch (NioTcpOutputStream.RejectedException e) {
+      metrics.writeFailures.increment();
+      if (records > 0) {
+        metrics.recordsDropped.add(records);
+        reportError("Lost " + records + " records, the send queue is full", e, ErrorManager.WRITE_FAILURE);
+      }
+      if (compression != Compression.NONE) {
+        // the compressor has already consumed the rejected bytes
+        closeEndpoint(endpoint);
+      }
+      throw e;
+    }
+  }
+
+  private void flushLingering() {
+    lock.lock();
+    try {
+      if (endpoints == null) {
+        return;
+      }
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.pendingRecords == 0 || endpoint.writer == null) {
+          continue;
+        }
+        try {
+          flushEndpoint(endpoint);
+        } catch (NioTcpOutputStream.RejectedException e) {
+          // counted as dropped, the connection is kept
+        } catch (Exception e) {
+          reportError("Error writing log message", e, ErrorManager.WRITE_FAILURE);
+          endpointFailed(endpoint);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the executor for periodic tasks of this handler, e.g. flushing
+   * batches after the linger time.
+   *
+   * @return the scheduler
+   */
+  ScheduledExecutorService scheduler() {
+    lock.lock();
+    try {
+      if (scheduler == null) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(threads("logstash-socket-scheduler"));
+      }
+      return scheduler;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the executor which establishes connections in the background.
+   *
+   * @return the executor
+   */
+  private ExecutorService connector() {
+    lock.lock();
+    try {
+      if (connector == null) {
+        connector = Executors.newCachedThreadPool(threads("logstash-socket-connector"));
+      }
+      return connector;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the factory of the threads of this handler, which creates virtual
+   * threads if enabled and supported.
+   */
+  // guarded by lock
+  private ThreadFactory threads(final String name) {
+    if (virtualThreads) {
+      try {
+        return (ThreadFactory) Class.forName(SocketHandler.class.getPackage().getName() + ".VirtualThreads")
+            .getDeclaredMethod("factory", String.class).invoke(null, name);
+      } catch (ReflectiveOperationException | LinkageError e) {
+        reportError("Virtual threads require Java 21, using platform threads",
+            new UnsupportedOperationException(e), ErrorManager.GENERIC_FAILURE);
+      }
+    }
+    return task -> {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      thread.setContextClassLoader(SocketHandler.class.getClassLoader());
+      return thread;
+    };
+  }
+
+  private void stopScheduler() {
+    ExecutorService current;
+    ExecutorService currentConnector;
+    boolean holding;
+    long timeout;
+    lock.lock();
+    try {
+      currentConnector = connector;
+      connector = null;
+      holding = !held.isEmpty();
+      timeout = connectTimeout;
+    } finally {
+      lock.unlock();
+    }
+    if (currentConnector != null) {
+      currentConnector.shutdown();
+      if (holding) {
+        // the held records are sent once the connects in progress finish,
+        // before the scheduler which lingers them is stopped
+        try {
+          currentConnector.awaitTermination((timeout > 0) ? timeout : ASYNC_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      currentConnector.shutdownNow();
+    }
+    lock.lock();
+    try {
+      current = scheduler;
+      scheduler = null;
+    } finally {
+      lock.unlock();
+    }
+    if (current != null) {
+      current.shutdownNow();
+    }
+    lock.lock();
+    try {
+      summaryTask = null;
+      dedupTask = null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void publishToSubHandlers(final ExtLogRecord record) {
+    for (Handler h : getHandlers()) {
+      h.publish(record);
+    }
+  }
+
+  @Override
+  public void flush() {
+    lock.lock();
+    try {
+      if (endpoints != null) {
+        for (Endpoint endpoint : endpoints) {
+          if (endpoint.writer == null) {
+            continue;
+          }
+          try {
+            flushEndpoint(endpoint);
+          } catch (NioTcpOutputStream.RejectedException e) {
+            // counted as dropped, the connection is kept
+          } catch (Exception e) {
+            reportError("Error on flush", e, ErrorManager.FLUSH_FAILURE);
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    super.flush();
+  }
+
+  @Override
+  public void close() {
+    final Deduplicator dedup = deduplicator;
+    if (dedup != null) {
+      dedup.expire(true);
+    }
+    publishSummary();
+    stopRingBuffer();
+    stopScheduler();
+    closeSocketHandler();
+    closeSpool();
+    unregisterMetrics();
+    super.close();
+  }
+
+  private void closeSocketHandler() {
+    checkAccess(this);
+    resetEndpoints();
+    lock.lock();
+    try {
+      final int lost = redelivery.size() + held.size();
+      if (lost > 0) {
+        metrics.recordsDropped.add(lost);
+        reportError("Lost " + lost + " unsent or unacknowledged records", null, ErrorManager.CLOSE_FAILURE);
+        redelivery.clear();
+        held.clear();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes the connection of an endpoint. The records a Beats server has not
+   * acknowledged and the records a {@link Protocol#TCP_NIO} connection has not
+   * sent are kept to be sent again.
+   *
+   * @return {@code true} if the written records are kept for redelivery
+   */
+  // guarded by lock
+  private boolean closeEndpoint(final Endpoint endpoint) {
+    final OutputStream stream = endpoint.stream;
+    safeClose(endpoint.writer);
+    endpoint.writer = null;
+    endpoint.output = null;
+    endpoint.stream = null;
+    endpoint.pendingRecords = 0;
+    endpoint.unflushed = 0;
+    endpoint.initialize = true;
+    if (stream instanceof BeatsOutputStream) {
+      for (String formatted : ((BeatsOutputStream) stream).unacknowledged()) {
+        if (spool(formatted)) {
+          metrics.recordsSpooled.increment();
+        } else {
+          redelivery.add(formatted);
+        }
+      }
+      return true;
+    }
+    if (stream instanceof NioTcpOutputStream) {
+      keepUnsent((NioTcpOutputStream) stream);
+    }
+    return false;
+  }
+
+  /**
+   * Spools or redelivers the records which a closed {@link Protocol#TCP_NIO}
+   * connection has queued but not sent. A record which has been sent partly
+   * is not sent again, the collector has seen its beginning.
+   */
+  // guarded by lock
+  private void keepUnsent(final NioTcpOutputStream stream) {
+    final int truncated = stream.getTruncatedUnits();
+    if (truncated > 0) {
+      metrics.recordsDropped.add(truncated);
+      reportError("Lost a record which was sent partly", null, ErrorManager.WRITE_FAILURE);
+    }
+    final List<byte[]> units = stream.unsent();
+    if (units.isEmpty()) {
+      return;
+    }
+    if (compression != Compression.NONE) {
+      // the records cannot be told apart in the compressed stream
+      metrics.recordsDropped.add(units.size());
+      reportError("Lost " + units.size() + " unsent compressed writes", null, ErrorManager.WRITE_FAILURE);
+      return;
+    }
+    final boolean binary = isBinaryFormat();
+    final String encoding = getEncoding();
+    final Charset charset = binary ? StandardCharsets.ISO_8859_1
+        : (encoding != null) ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+    for (byte[] unit : units) {
+      int start = 0;
+      while (start < unit.length) {
+        int end;
+        if (binary) {
+          if (unit.length - start < 4) {
+            break;
+          }
+          // a length prefix in network byte order and the document
+          end = Math.min(unit.length, start + 4 + (((unit[start] & 0xff) << 24)
+              | ((unit[start + 1] & 0xff) << 16) | ((unit[start + 2] & 0xff) << 8) | (unit[start + 3] & 0xff)));
+          start += 4;
+        } else {
+          end = start;
+          while (end < unit.length && unit[end++] != '\n') {
+            // up to and including the newline
+          }
+        }
+        final String formatted = new String(unit, start, end - start, charset);
+        if (spool(formatted)) {
+          metrics.recordsSpooled.increment();
+        } else {
+          redelivery.add(formatted);
+        }
+        start = end;
+      }
+    }
+  }
+
+  // guarded by lock
+  private boolean endpointFailed(final Endpoint endpoint) {
+    final boolean redelivered = closeEndpoint(endpoint);
+    endpoint.retryAt(System.currentTimeMillis() + reconnectDelay(endpoint.failed()));
+    return redelivered;
+  }
+
+  /**
+   * Sends the records which have not been acknowledged by a failed Beats
+   * server, then the records held while connecting. Each record is removed
+   * once it is written, from then on the new connection is responsible for
+   * it.
+   */
+  // guarded by lock
+  private void redeliver(final Endpoint endpoint) throws IOException {
+    final boolean binary = isBinaryFormat();
+    String formatted;
+    while ((formatted = redelivery.poll()) != null) {
+      if (binary) {
+        final byte[] bytes = formatted.getBytes(StandardCharsets.ISO_8859_1);
+        writeLength(endpoint.output, bytes.length);
+        endpoint.output.write(bytes);
+      } else {
+        endpoint.writer.write(formatted);
+      }
+      endpoint.pendingRecords++;
+    }
+    flushEndpoint(endpoint);
+    // the held records have not been published yet, they are batched and
+    // counted like new records; the records encoded by the formatter bypass
+    // the writer, so the held ones do as well to keep the order
+    final boolean direct = isEncodingDirectly();
+    while ((formatted = held.poll()) != null) {
+      final long start = System.nanoTime();
+      if (binary || direct) {
+        final byte[] bytes = formatted.getBytes(binary ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        if (binary) {
+          writeLength(endpoint.output, bytes.length);
+        }
+        endpoint.output.write(bytes);
+        endpoint.unflushed += bytes.length;
+      } else {
+        endpoint.writer.write(formatted);
+        endpoint.unflushed += formatted.length();
+      }
+      written(endpoint, start);
+    }
+  }
+
+  /**
+   * Returns the metrics of this handler.
+   *
+   * @return the metrics
+   */
+  public SocketHandlerMetricsMBean getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the name of the metrics MBean.
+   *
+   * @return the name, {@code null} if the MBean is not registered
+   */
+  public String getMetricsName() {
+    return metricsName;
+  }
+
+  /**
+   * Sets the name under which the metrics of this handler are registered as
+   * MBean {@code net.logstash.logging:type=SocketHandler,name=<metricsName>}
+   * with the platform MBean server.
+   *
+   * @param metricsName
+   *          the name, {@code null} to unregister the MBean (the default)
+   */
+  public void setMetricsName(final String metricsName) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      unregisterMetrics();
+      this.metricsName = metricsName;
+      if (metricsName == null) {
+        return;
+      }
+      try {
+        ObjectName name = new ObjectName("net.logstash.logging:type=SocketHandler,name="
+            + ObjectName.quote(metricsName));
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(new StandardMBean(metrics, SocketHandlerMetricsMBean.class), name);
+        metricsObjectName = name;
+      } catch (JMException e) {
+        reportError("Could not register metrics", e, ErrorManager.GENERIC_FAILURE);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void unregisterMetrics() {
+    lock.lock();
+    try {
+      if (metricsObjectName != null) {
+        try {
+          ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+        } catch (JMException e) {
+          reportError("Could not unregister metrics", e, ErrorManager.GENERIC_FAILURE);
+        }
+        metricsObjectName = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long getQueueDepth() {
+    AsyncRingBuffer current = ringBuffer;
+    return (current != null) ? current.size() : 0;
+  }
+
+  long getSpoolSize() {
+    lock.lock();
+    try {
+      return (spool != null) ? spool.size() : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getConnectedHosts() {
+    lock.lock();
+    try {
+      int connected = 0;
+      if (endpoints != null) {
+        for (Endpoint endpoint : endpoints) {
+          if (endpoint.isConnected()) {
+            connected++;
+          }
+        }
+      }
+      return connected;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  String getLastError() {
+    Exception e = em.lastException;
+    return (e != null) ? e.toString() : null;
+  }
+
+  /**
+   * Returns the address being used.
+   *
+   * @return the address
+   */
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * Sets the address to connect to.
+   *
+   * @param address
+   *          the address
+   */
+  public void setAddress(final InetAddress address) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.address = address;
+      this.hostName = null;
+      resetEndpoints();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the address to connect to by doing a lookup on the hostname.
+   *
+   * @param hostname
+   *          the host name used to resolve the address
+   */
+  public void setHostname(final String hostname) {
+    checkAccess(this);
+
+    try {
+        setAddress(InetAddress.getByName(hostname));
+    } catch (UnknownHostException uhe) {
+        lock.lock();
+        try {
+          this.address = null;
+          this.hostName = hostname;
+          resetEndpoints();
+        } finally {
+          lock.unlock();
+        }
+        reportError(uhe.getMessage(), uhe, ErrorManager.OPEN_FAILURE);
+    }
+  }
+
+  /**
+   * Returns the protocol being used.
+   *
+   * @return the protocol
+   */
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  /**
+   * Sets the protocol to use.
+   *
+   * @param protocol
+   *          the protocol to use
+   */
+  public void setProtocol(final Protocol protocol) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.protocol = protocol;
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the port being used.
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Sets the port to connect to.
+   *
+   * @param port
+   *          the port
+   */
+  public void setPort(final int port) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.port = port;
+      resetEndpoints();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the path of the Unix domain socket used with
+   * {@link Protocol#UNIX}.
+   *
+   * @return the path of the socket
+   */
+  public String getSocketPath() {
+    return socketPath;
+  }
+
+  /**
+   * Sets the path of the Unix domain socket used with {@link Protocol#UNIX},
+   * e.g. a socket shared with a collector in the same pod. The host and port
+   * are ignored with this protocol.
+   *
+   * @param socketPath
+   *          the path of the socket
+   */
+  public void setSocketPath(final String socketPath) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.socketPath = socketPath;
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the hosts records are sent to.
+   *
+   * @return the comma separated list of hosts, {@code null} if only the
+   *         address is used
+   */
+  public String getHosts() {
+    return hosts;
+  }
+
+  /**
+   * Sets the hosts records are sent to, as a comma separated list of
+   * {@code host:port} pairs. Hosts without a port use the
+   * {@linkplain #setPort(int) port} of the handler. Each host has its own
+   * connection, the records are distributed according to the
+   * {@linkplain #setLoadBalancing(LoadBalancing) load balancing}. If a host
+   * fails, the records go to the other hosts until it can be connected again.
+   *
+   * @param hosts
+   *          the list of hosts, {@code null} to use only the address
+   * @throws IllegalArgumentException
+   *           if the list contains an invalid entry
+   */
+  public void setHosts(final String hosts) {
+    checkAccess(this);
+    if (hosts != null) {
+      Endpoint.parse(hosts, port);
+    }
+    lock.lock();
+    try {
+      this.hosts = hosts;
+      resetEndpoints();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns how records are distributed over the hosts.
+   *
+   * @return the load balancing strategy
+   */
+  public LoadBalancing getLoadBalancing() {
+    return loadBalancing;
+  }
+
+  /**
+   * Sets how records are distributed over the {@linkplain #setHosts(String)
+   * hosts}.
+   *
+   * @param loadBalancing
+   *          the load balancing strategy, {@link LoadBalancing#STICKY} by
+   *          default
+   */
+  public void setLoadBalancing(final LoadBalancing loadBalancing) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.loadBalancing = loadBalancing;
+      nextEndpoint = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the delay before a failed host is connected again, once the
+   * circuit breaker is open.
+   *
+   * @return the initial reconnect delay in milliseconds
+   */
+  public long getReconnectDelay() {
+    return reconnectDelay;
+  }
+
+  /**
+   * Sets the delay before a failed host is connected again, once the circuit
+   * breaker is open. The delay doubles with every failed attempt up to the
+   * {@linkplain #setMaxReconnectDelay(long) maximum reconnect delay}.
+   *
+   * @param reconnectDelay
+   *          the initial reconnect delay in milliseconds, 1 second by default
+   */
+  public void setReconnectDelay(final long reconnectDelay) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.reconnectDelay = Math.max(reconnectDelay, 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum delay between two attempts to connect a failed host.
+   *
+   * @return the maximum reconnect delay in milliseconds
+   */
+  public long getMaxReconnectDelay() {
+    return maxReconnectDelay;
+  }
+
+  /**
+   * Sets the maximum delay between two attempts to connect a failed host.
+   *
+   * @param maxReconnectDelay
+   *          the maximum reconnect delay in milliseconds, 60 seconds by
+   *          default
+   */
+  public void setMaxReconnectDelay(final long maxReconnectDelay) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.maxReconnectDelay = Math.max(maxReconnectDelay, 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns by how many percent the reconnect delay is shortened at random.
+   *
+   * @return the jitter in percent
+   */
+  public int getReconnectJitter() {
+    return reconnectJitter;
+  }
+
+  /**
+   * Sets by how many percent the reconnect delay is shortened at random, so
+   * many servers do not reconnect at the same time after an outage of
+   * logstash.
+   *
+   * @param reconnectJitter
+   *          the jitter in percent between {@code 0} and {@code 100}, 50 by
+   *          default
+   */
+  public void setReconnectJitter(final int reconnectJitter) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.reconnectJitter = Math.min(Math.max(reconnectJitter, 0), 100);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of consecutive failures after which the circuit breaker
+   * of a host opens.
+   *
+   * @return the number of failures
+   */
+  public int getCircuitBreakerThreshold() {
+    return circuitBreakerThreshold;
+  }
+
+  /**
+   * Sets the number of consecutive failures after which the circuit breaker of
+   * a host opens. Up to this number a failed host is connected again at once,
+   * then only after the reconnect delay. Records are never delayed by a
+   * connect, they go to another host, the spool or the subHandler while the
+   * connection is established in the background. Without a spool and a
+   * subHandler, up to 1024 records are held in memory until then.
+   *
+   * @param circuitBreakerThreshold
+   *          the number of failures, 3 by default
+   */
+  public void setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.circuitBreakerThreshold = Math.max(circuitBreakerThreshold, 1);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the timeout for establishing a TCP connection.
+   *
+   * @return the connect timeout in milliseconds
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets the timeout for establishing a TCP connection.
+   *
+   * @param connectTimeout
+   *          the connect timeout in milliseconds, 5 seconds by default,
+   *          {@code 0} waits forever
+   */
+  public void setConnectTimeout(final int connectTimeout) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.connectTimeout = Math.max(connectTimeout, 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void setSubHandler(final Handler handler) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      if (handler != null) {
+        addHandler(handler);
+      } else {
+        Handler[] handlers = getHandlers();
+        for (Handler h : handlers) {
+          removeHandler(h);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Handler getSubHandler() {
+    Handler[] handlers = getHandlers();
+    return (handlers.length == 0) ? null : handlers[0];
+  }
+
+  /**
+   * Returns the size of the write buffer in bytes.
+   *
+   * @return the batch size, {@code 0} if batching by size is disabled
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the size of the write buffer in bytes. With a batch size greater than
+   * {@code 0} records are collected and sent with a single write once the
+   * buffer is full, the number of {@linkplain #setBatchRecords(int) batch
+   * records} is reached or the {@linkplain #setLingerMillis(long) linger time}
+   * has passed, whichever comes first. Records are not flushed individually
+   * even if auto flush is enabled.
+   *
+   * @param batchSize
+   *          the batch size in bytes, {@code 0} to disable batching by size
+   */
+  public void setBatchSize(final int batchSize) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.batchSize = Math.max(batchSize, 0);
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of records after which a batch is sent.
+   *
+   * @return the number of records, {@code 0} if batching by records is
+   *         disabled
+   */
+  public int getBatchRecords() {
+    return batchRecords;
+  }
+
+  /**
+   * Sets the number of records after which a batch is sent.
+   *
+   * @param batchRecords
+   *          the number of records, {@code 0} to disable batching by records
+   */
+  public void setBatchRecords(final int batchRecords) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.batchRecords = Math.max(batchRecords, 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum time a batched record waits before it is sent.
+   *
+   * @return the linger time in milliseconds
+   */
+  public long getLingerMillis() {
+    return lingerMillis;
+  }
+
+  /**
+   * Sets the maximum time a batched record waits before it is sent.
+   *
+   * @param lingerMillis
+   *          the linger time in milliseconds, {@code 0} to send batches only
+   *          when they are full
+   */
+  public void setLingerMillis(final long lingerMillis) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.lingerMillis = Math.max(lingerMillis, 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum number of bytes waiting to be sent with
+   * {@link Protocol#TCP_NIO}.
+   *
+   * @return the size of the send queue in bytes
+   */
+  public long getSendQueueSize() {
+    return sendQueueSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes waiting to be sent with
+   * {@link Protocol#TCP_NIO}. If the collector is too slow and the queue is
+   * full, records go to the subHandler instead of blocking the caller.
+   *
+   * @param sendQueueSize
+   *          the size of the send queue in bytes
+   */
+  public void setSendQueueSize(final long sendQueueSize) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.sendQueueSize = Math.max(sendQueueSize, NioTcpOutputStream.CHUNK_SIZE);
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the compression of the stream of records.
+   *
+   * @return the compression
+   */
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Sets the compression of the stream of records sent with
+   * {@link Protocol#TCP}, {@link Protocol#SSL_TCP} or {@link Protocol#TCP_NIO}
+   * ({@link Protocol#UDP} is never compressed). The stream is flushed with the
+   * records or batches, so compression works best together with batching.
+   * With {@link Protocol#BEATS} any compression sends the windows in
+   * compressed frames of the Lumberjack protocol.
+   *
+   * @param compression
+   *          the compression, {@code null} for {@link Compression#NONE}
+   */
+  public void setCompression(final Compression compression) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.compression = (compression != null) ? compression : Compression.NONE;
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the compression level.
+   *
+   * @return the level between {@code 0} and {@code 9}
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Sets the compression level, from {@code 1} (fastest) to {@code 9} (best
+   * compression); {@code 0} only frames the records without compressing them.
+   *
+   * @param compressionLevel
+   *          the level between {@code 0} and {@code 9}
+   */
+  public void setCompressionLevel(final int compressionLevel) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.compressionLevel = Math.min(Math.max(compressionLevel, Deflater.NO_COMPRESSION), Deflater.BEST_COMPRESSION);
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum number of records in a window of
+   * {@link Protocol#BEATS}.
+   *
+   * @return the number of records
+   */
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Sets the maximum number of records in a window of {@link Protocol#BEATS}.
+   * A window is sent when it is full or the handler is flushed, and
+   * acknowledged by the server as a whole.
+   *
+   * @param windowSize
+   *          the number of records
+   */
+  public void setWindowSize(final int windowSize) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.windowSize = Math.max(windowSize, 1);
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of windows of {@link Protocol#BEATS} which may wait for
+   * an acknowledgement.
+   *
+   * @return the number of windows
+   */
+  public int getPipelining() {
+    return pipelining;
+  }
+
+  /**
+   * Sets the number of windows of {@link Protocol#BEATS} which may wait for an
+   * acknowledgement. Further windows are sent while the server processes the
+   * previous ones; if all are in flight, sending the next window waits for an
+   * acknowledgement.
+   *
+   * @param pipelining
+   *          the number of windows
+   */
+  public void setPipelining(final int pipelining) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.pipelining = Math.max(pipelining, 1);
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the time a Beats server may take to acknowledge a window.
+   *
+   * @return the timeout in milliseconds
+   */
+  public long getAckTimeout() {
+    return ackTimeout;
+  }
+
+  /**
+   * Sets the time a Beats server may take to acknowledge a window. If it does
+   * not, the connection is closed and the unacknowledged records are sent
+   * again.
+   *
+   * @param ackTimeout
+   *          the timeout in milliseconds
+   */
+  public void setAckTimeout(final long ackTimeout) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.ackTimeout = Math.max(ackTimeout, 1);
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum size of a datagram of {@link Protocol#UDP}.
+   *
+   * @return the size in bytes
+   */
+  public int getMaxDatagramSize() {
+    return maxDatagramSize;
+  }
+
+  /**
+   * Sets the maximum size of a datagram of {@link Protocol#UDP}. Records are
+   * packed into datagrams up to this size and never split; with batching
+   * several records share a datagram. Use {@code 1472} to avoid IP
+   * fragmentation on an Ethernet network.
+   *
+   * @param maxDatagramSize
+   *          the size in bytes, at most {@code 65507}
+   */
+  public void setMaxDatagramSize(final int maxDatagramSize) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.maxDatagramSize = Math.min(Math.max(maxDatagramSize, 64), DatagramOutputStream.MAX_DATAGRAM_SIZE);
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns what happens with a record which is larger than a datagram.
+   *
+   * @return the policy
+   */
+  public OversizePolicy getOversizePolicy() {
+    return oversizePolicy;
+  }
+
+  /**
+   * Sets what happens with a record which is larger than a datagram of
+   * {@link Protocol#UDP}.
+   *
+   * @param oversizePolicy
+   *          the policy, {@code null} for {@link OversizePolicy#TRUNCATE}
+   */
+  public void setOversizePolicy(final OversizePolicy oversizePolicy) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.oversizePolicy = (oversizePolicy != null) ? oversizePolicy : OversizePolicy.TRUNCATE;
+      reinitialize();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the directory of the disk spool.
+   *
+   * @return the directory, {@code null} if records are not spooled
+   */
+  public String getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+  /**
+   * Sets the directory of the disk spool. While the endpoint is not reachable
+   * records are appended to memory-mapped segment files in this directory
+   * instead of going to the subHandler. After the connection is established
+   * again they are replayed in the background at the
+   * {@linkplain #setSpoolReplayRate(int) replay rate}. Records which do not fit
+   * into the spool go to the subHandler.
+   *
+   * @param spoolDirectory
+   *          the directory, {@code null} to disable the spool (the default)
+   */
+  public void setSpoolDirectory(final String spoolDirectory) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      closeSpool();
+      this.spoolDirectory = spoolDirectory;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the size of a segment file of the disk spool.
+   *
+   * @return the size in bytes
+   */
+  public int getSpoolSegmentSize() {
+    return spoolSegmentSize;
+  }
+
+  /**
+   * Sets the size of a segment file of the disk spool, which is also the
+   * maximum size of a single record.
+   *
+   * @param spoolSegmentSize
+   *          the size in bytes, 8 MB by default
+   */
+  public void setSpoolSegmentSize(final int spoolSegmentSize) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      closeSpool();
+      this.spoolSegmentSize = Math.max(spoolSegmentSize, 1024);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum size of the disk spool.
+   *
+   * @return the size in bytes
+   */
+  public long getSpoolMaxSize() {
+    return spoolMaxSize;
+  }
+
+  /**
+   * Sets the maximum size of all segment files of the disk spool.
+   *
+   * @param spoolMaxSize
+   *          the size in bytes, 128 MB by default
+   */
+  public void setSpoolMaxSize(final long spoolMaxSize) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      closeSpool();
+      this.spoolMaxSize = Math.max(spoolMaxSize, 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of spooled records replayed per second.
+   *
+   * @return the replay rate
+   */
+  public int getSpoolReplayRate() {
+    return spoolReplayRate;
+  }
+
+  /**
+   * Sets the number of spooled records replayed per second after the
+   * connection is established again, so the endpoint is not flooded with the
+   * backlog.
+   *
+   * @param spoolReplayRate
+   *          the replay rate, 1000 by default
+   */
+  public void setSpoolReplayRate(final int spoolReplayRate) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.spoolReplayRate = Math.max(spoolReplayRate, 1);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the capacity of the ring buffer used in asynchronous mode.
+   *
+   * @return the capacity, {@code 0} if records are written synchronously
+   */
+  public int getAsyncCapacity() {
+    return asyncCapacity;
+  }
+
+  /**
+   * Sets the capacity of the ring buffer. With a capacity greater than
+   * {@code 0} the publishing threads only format the record and hand it over
+   * to a dedicated writer thread, which does all socket I/O. The capacity is
+   * rounded up to a power of two.
+   *
+   * @param asyncCapacity
+   *          the capacity, {@code 0} to write synchronously (the default)
+   */
+  public void setAsyncCapacity(final int asyncCapacity) {
+    checkAccess(this);
+    this.asyncCapacity = Math.max(asyncCapacity, 0);
+    stopRingBuffer();
+  }
+
+  /**
+   * Returns whether the handler runs its background work on virtual threads.
+   *
+   * @return {@code true} if virtual threads are used
+   */
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Sets whether the writer thread of the asynchronous mode, the connector and
+   * the scheduler are virtual threads. A virtual thread blocked by a slow
+   * collector releases its carrier thread; {@link Protocol#TCP} and
+   * {@link Protocol#SSL_TCP} connections are then written without the
+   * monitor of the log manager's stream. Requires Java 21, on older versions
+   * platform threads are used. The scheduler and connector threads already
+   * started are kept until the handler is closed.
+   *
+   * @param virtualThreads
+   *          {@code true} to use virtual threads, {@code false} by default
+   */
+  public void setVirtualThreads(final boolean virtualThreads) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.virtualThreads = virtualThreads;
+    } finally {
+      lock.unlock();
+    }
+    stopRingBuffer();
+  }
+
+  /**
+   * Returns how the writer thread waits for new records.
+   *
+   * @return the wait strategy
+   */
+  public WaitStrategy getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  /**
+   * Sets how the writer thread waits for new records in asynchronous mode.
+   *
+   * @param waitStrategy
+   *          the wait strategy, {@link WaitStrategy#BLOCKING} by default
+   */
+  public void setWaitStrategy(final WaitStrategy waitStrategy) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.waitStrategy = waitStrategy;
+    } finally {
+      lock.unlock();
+    }
+    stopRingBuffer();
+  }
+
+  /**
+   * Returns what happens with records if the ring buffer is full.
+   *
+   * @return the overflow policy
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets what happens with records if the ring buffer is full in asynchronous
+   * mode.
+   *
+   * @param overflowPolicy
+   *          the overflow policy, {@link OverflowPolicy#BLOCK} by default
+   */
+  public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.overflowPolicy = overflowPolicy;
+    } finally {
+      lock.unlock();
+    }
+    stopRingBuffer();
+  }
+
+  /**
+   * Returns the level below which records are dropped with
+   * {@link OverflowPolicy#DROP_BY_LEVEL}.
+   *
+   * @return the level
+   */
+  public Level getOverflowLevel() {
+    return overflowLevel;
+  }
+
+  /**
+   * Sets the level below which records are dropped with
+   * {@link OverflowPolicy#DROP_BY_LEVEL}.
+   *
+   * @param overflowLevel
+   *          the level, {@code WARNING} by default
+   */
+  public void setOverflowLevel(final Level overflowLevel) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.overflowLevel = overflowLevel;
+    } finally {
+      lock.unlock();
+    }
+    stopRingBuffer();
+  }
+
+  /**
+   * Returns the number of records per second which are sent for every logger
+   * and level.
+   *
+   * @return the records per second, {@code 0} if the records are not rate
+   *         limited
+   */
+  public int getRateLimit() {
+    return rateLimit;
+  }
+
+  /**
+   * Limits the records per second which are sent for every logger and level.
+   * The limit applies to all levels; the suppressed records are neither sent
+   * nor published to the subHandler, but they are reported in a summary
+   * record.
+   *
+   * @param rateLimit
+   *          the records per second, {@code 0} (the default) for no limit
+   */
+  public void setRateLimit(final int rateLimit) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.rateLimit = Math.max(rateLimit, 0);
+      admission = createAdmission();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of records of a logger and level which can be sent at
+   * once before the rate limit applies.
+   *
+   * @return the number of records
+   */
+  public int getRateLimitBurst() {
+    return (rateLimitBurst > 0) ? rateLimitBurst : Math.max(rateLimit, 1);
+  }
+
+  /**
+   * Sets the number of records of a logger and level which can be sent at
+   * once before the rate limit applies.
+   *
+   * @param rateLimitBurst
+   *          the number of records, {@code 0} (the default) for the rate limit
+   */
+  public void setRateLimitBurst(final int rateLimitBurst) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.rateLimitBurst = Math.max(rateLimitBurst, 0);
+      admission = createAdmission();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the percentage of the records below the sampling level which are
+   * sent.
+   *
+   * @return the percentage
+   */
+  public int getSamplingRate() {
+    return samplingRate;
+  }
+
+  /**
+   * Sets the percentage of the records below the sampling level which are
+   * sent, chosen at random.
+   *
+   * @param samplingRate
+   *          the percentage from 0 to 100 (the default, no sampling)
+   */
+  public void setSamplingRate(final int samplingRate) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.samplingRate = Math.min(Math.max(samplingRate, 0), 100);
+      admission = createAdmission();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the level below which records are sampled.
+   *
+   * @return the level
+   */
+  public Level getSamplingLevel() {
+    return samplingLevel;
+  }
+
+  /**
+   * Sets the level below which records are sampled. Records at
+   * {@code SEVERE} and above are never sampled, whatever the level.
+   *
+   * @param samplingLevel
+   *          the level, {@code WARNING} by default
+   */
+  public void setSamplingLevel(final Level samplingLevel) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.samplingLevel = samplingLevel;
+      admission = createAdmission();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the interval of the summary records.
+   *
+   * @return the interval in milliseconds
+   */
+  public long getSummaryInterval() {
+    return summaryInterval;
+  }
+
+  /**
+   * Sets the interval in which a record with the number of suppressed records
+   * is published, if records were suppressed.
+   *
+   * @param summaryInterval
+   *          the interval in milliseconds, {@code 0} for no summary records
+   */
+  public void setSummaryInterval(final long summaryInterval) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.summaryInterval = Math.max(summaryInterval, 0);
+      if (summaryTask != null) {
+        summaryTask.cancel(false);
+        summaryTask = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the time in which identical records are collapsed.
+   *
+   * @return the time in milliseconds, {@code 0} if records are not
+   *         deduplicated
+   */
+  public long getDedupWindow() {
+    return dedupWindow;
+  }
+
+  /**
+   * Sets the time in which identical records are collapsed. The first record
+   * is sent, the repetitions with the same logger, level, unformatted message
+   * and exception are only counted. When the window has passed, a copy of the
+   * first record is sent with the fields {@code repeat_count},
+   * {@code first_timestamp} and {@code last_timestamp} of the repetitions.
+   *
+   * @param dedupWindow
+   *          the time in milliseconds, {@code 0} (the default) to send every
+   *          record
+   */
+  public void setDedupWindow(final long dedupWindow) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.dedupWindow = Math.max(dedupWindow, 0);
+      resetDeduplicator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum number of distinct records which are tracked for
+   * deduplication at the same time.
+   *
+   * @return the number of records
+   */
+  public int getDedupCapacity() {
+    return dedupCapacity;
+  }
+
+  /**
+   * Sets the maximum number of distinct records which are tracked for
+   * deduplication at the same time; further records are sent as they are.
+   *
+   * @param dedupCapacity
+   *          the number of records, {@code 1024} by default
+   */
+  public void setDedupCapacity(final int dedupCapacity) {
+    checkAccess(this);
+    lock.lock();
+    try {
+      this.dedupCapacity = Math.max(dedupCapacity, 1);
+      resetDeduplicator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // guarded by lock
+  private void resetDeduplicator() {
+    final Deduplicator previous = deduplicator;
+    deduplicator = (dedupWindow > 0) ? new Deduplicator(dedupWindow, dedupCapacity, this::publishRepeated,
+        System::currentTimeMillis) : null;
+    if (dedupTask != null) {
+      dedupTask.cancel(false);
+      dedupTask = null;
+    }
+    if (previous != null) {
+      previous.expire(true);
+    }
+  }
+
+  // guarded by lock
+  private AdmissionControl createAdmission() {
+    if (rateLimit == 0 && samplingRate == 100) {
+      return null;
+    }
+    return new AdmissionControl(rateLimit, getRateLimitBurst(), samplingRate, samplingLevel);
+  }
+
+  /** internal ErrorManager with timestamps */
+  private static class TransportErrorManager extends ErrorManager {
+    // errors are reported by the publishing and the background threads
+    private volatile Exception lastException;
+    private volatile long lastExceptionTimestamp;
 
     @Override
     public void error(String msg, Exception ex, int code) {
       lastException = ex;
-      lastExceptionTimestamp = exceptionTimestamp;
-      exceptionTimestamp = System.currentTimeMillis();
+      lastExceptionTimestamp = System.currentTimeMillis();
     }
   }
 
-  private void initialize() {
-    em.lastException = null;
-    final Writer current = this.writer;
-    boolean okay = false;
+  // guarded by lock
+  private boolean initialize(final Endpoint endpoint, final OutputStream out) {
     try {
-      if (current != null) {
-        writeTail(current);
-        safeFlush(current);
-      }
-      final OutputStream out = createOutputStream();
-      if (out == null) {
-        return;
-      }
       final String encoding = getEncoding();
-      final UninterruptibleOutputStream outputStream = new UninterruptibleOutputStream(out);
-      writer = new OutputStreamWriter(outputStream, (encoding != null) ? encoding : "UTF-8");
+      final OutputStream counting = metrics.counting(out);
+      // UDP is never compressed, Beats compresses its own frames
+      final OutputStream compressing = (protocol == Protocol.UDP || protocol == Protocol.BEATS)
+          ? counting
+          : compress(counting, compression, compressionLevel);
+      final OutputStream outputStream = (batchSize > 0)
+          ? new BufferedOutputStream(new UninterruptibleOutputStream(compressing), batchSize)
+          : new UninterruptibleOutputStream(compressing);
+      final Writer writer = new OutputStreamWriter(outputStream, (encoding != null) ? encoding : "UTF-8");
       writeHead(writer);
-      okay = true;
+      endpoint.writer = writer;
+      endpoint.output = outputStream;
+      endpoint.stream = out;
+      return true;
     } catch (UnsupportedEncodingException e) {
       reportError("Error opening", e, ErrorManager.OPEN_FAILURE);
-    } finally {
-      safeClose(current);
-      if (!okay) {
-        safeClose(writer);
-      }
+      safeClose(out);
+      return false;
     }
-
   }
 
-  private OutputStream createOutputStream() {
-    if (address == null) {
-      setHostname(hostName);
+  /**
+   * Wraps the stream of a connection in a compressing stream. Every flush of
+   * the writer is a sync flush of the compressor, so a batch or an
+   * auto-flushed record is decodable as soon as it is sent, while the
+   * dictionary is kept across flushes. Closing the writer finishes the
+   * compressed stream.
+   */
+  private static OutputStream compress(final OutputStream out, final Compression compression, final int level) {
+    try {
+      switch (compression) {
+      case GZIP:
+        return new GZIPOutputStream(out, COMPRESSION_BUFFER_SIZE, true) {
+          {
+            def.setLevel(level);
+          }
+
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              def.end();
+            }
+          }
+        };
+      case DEFLATE:
+        return new DeflaterOutputStream(out, new Deflater(level), COMPRESSION_BUFFER_SIZE, true) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              def.end();
+            }
+          }
+        };
+      case NONE:
+      default:
+        return out;
+      }
+    } catch (IOException e) {
+      // writing the gzip header failed, the connection is reported broken with
+      // the first write
+      return out;
     }
+  }
 
-    if (address != null || port >= 0) {
+  /**
+   * Returns a factory of the connections to an endpoint with the current
+   * settings, which can be called without holding the lock.
+   */
+  // guarded by lock
+  private Supplier<OutputStream> outputStreamFactory(final Endpoint endpoint) {
+    final Protocol protocol = this.protocol;
+    final long sendQueueSize = this.sendQueueSize;
+    final int connectTimeout = this.connectTimeout;
+    final int windowSize = this.windowSize;
+    final int pipelining = this.pipelining;
+    final int beatsCompressionLevel = (compression != Compression.NONE) ? compressionLevel : Deflater.NO_COMPRESSION;
+    final long ackTimeout = this.ackTimeout;
+    final int maxDatagramSize = this.maxDatagramSize;
+    final boolean chunk = oversizePolicy == OversizePolicy.CHUNK;
+    final String socketPath = this.socketPath;
+    final boolean virtualThreads = this.virtualThreads;
+    return () -> {
       try {
+        if (protocol == Protocol.UNIX) {
+          return connectUnix(socketPath);
+        }
+        final InetAddress address = endpoint.resolve();
+        final int port = endpoint.getPort();
         switch (protocol) {
         case SSL_TCP:
-          SslTcpOutputStream sos = new SslTcpOutputStream(address, port);
-          if (sos.isConnected()) {
-            return sos;
-          } else {
-            throw new IOException("Could not establish connection to " + address + ":" + port);
-          }
+          return connectTcp(SSLSocketFactory.getDefault(), address, port, connectTimeout, virtualThreads);
         case UDP:
-          return new UdpOutputStream(address, port);
+          return new DatagramOutputStream(address, port, maxDatagramSize, chunk, metrics.datagramsSent);
+        case TCP_NIO:
+          return new NioTcpOutputStream(new InetSocketAddress(address, port), sendQueueSize);
+        case BEATS:
+          return new BeatsOutputStream(SocketFactory.getDefault(), new InetSocketAddress(address, port),
+              connectTimeout, windowSize, pipelining, beatsCompressionLevel, ackTimeout);
         case TCP:
         default:
-          TcpOutputStream tos = new TcpOutputStream(address, port);
-          if (tos.isConnected()) {
-            return tos;
-          } else {
-            throw new IOException("Could not establish connection to " + address + ":" + port);
-          }
+          return connectTcp(SocketFactory.getDefault(), address, port, connectTimeout, virtualThreads);
         }
       } catch (IOException e) {
         reportError("Failed to create socket output stream", e, ErrorManager.OPEN_FAILURE);
       }
+      return null;
+    };
+  }
+
+  private static OutputStream connectTcp(final SocketFactory socketFactory, final InetAddress address,
+      final int port, final int connectTimeout, final boolean virtualThreads) throws IOException {
+    final TimeoutSocketFactory factory = new TimeoutSocketFactory(socketFactory, address, port, connectTimeout);
+    if (virtualThreads) {
+      // the TcpOutputStream writes holding a monitor, which pins a virtual thread
+      return new PlainSocketOutputStream(factory.createSocket());
+    }
+    TcpOutputStream tos = new TcpOutputStream(factory, false);
+    if (tos.isConnected()) {
+      return tos;
+    }
+    tos.close();
+    IOException e = new IOException("Could not establish connection to " + address + ":" + port);
+    for (Exception cause : tos.getErrors()) {
+      e.initCause(cause);
+      break;
+    }
+    throw e;
+  }
+
+  /**
+   * Connects to a Unix domain socket. The stream is compiled for Java 16 and
+   * loaded by name, so the handler still runs on older versions.
+   */
+  private static OutputStream connectUnix(final String socketPath) throws IOException {
+    if (socketPath == null || socketPath.isEmpty()) {
+      throw new IOException("No socketPath configured for protocol UNIX");
+    }
+    try {
+      return (OutputStream) Class.forName(SocketHandler.class.getPackage().getName() + ".UnixSocketOutputStream")
+          .getDeclaredConstructor(String.class).newInstance(socketPath);
+    } catch (InvocationTargetException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Could not connect to " + socketPath, cause);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      throw new IOException("Unix domain sockets require Java 16", e);
     }
-    return null;
   }
 
   private void writeHead(final Writer writer) {
     try {
       final Formatter formatter = getFormatter();
       if (formatter != null) {
-        writer.write(formatter.getHead(this));
+        final String head = formatter.getHead(this);
+        writer.write(head);
+        if (!head.isEmpty()) {
+          // records encoded by the formatter bypass the writer
+          writer.flush();
+        }
       }
     } catch (Exception e) {
       reportError("Error writing section header", e, ErrorManager.WRITE_FAILURE);
@@ -0,0 +1,204 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a {@link SocketHandler}. The counters are striped, so the
+ * publishing threads do not contend on them.
+ */
+final class SocketHandlerMetrics implements SocketHandlerMetricsMBean {
+  final LongAdder recordsPublished = new LongAdder();
+  final LongAdder bytesSent = new LongAdder();
+  final LongAdder recordsDiverted = new LongAdder();
+  final LongAdder recordsSpooled = new LongAdder();
+  final LongAdder recordsReplayed = new LongAdder();
+  final LongAdder recordsDropped = new LongAdder();
+  final LongAdder formatFailures = new LongAdder();
+  final LongAdder writeFailures = new LongAdder();
+  final LongAdder reconnectAttempts = new LongAdder();
+  final LongAdder recordsTruncated = new LongAdder();
+  final LongAdder datagramsSent = new LongAdder();
+  final LongAdder recordsSuppressed = new LongAdder();
+  final LongAdder recordsDeduplicated = new LongAdder();
+  final LatencyHistogram publishTime = new LatencyHistogram();
+  final LatencyHistogram writeTime = new LatencyHistogram();
+  private final SocketHandler handler;
+
+  SocketHandlerMetrics(final SocketHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Returns a stream which counts the bytes written to the given stream as
+   * sent.
+   *
+   * @param out
+   *          the stream of the socket
+   * @return the counting stream
+   */
+  OutputStream counting(final OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(final int b) throws IOException {
+        out.write(b);
+        bytesSent.increment();
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        bytesSent.add(len);
+      }
+    };
+  }
+
+  @Override
+  public long getRecordsPublished() {
+    return recordsPublished.sum();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public long getRecordsDiverted() {
+    return recordsDiverted.sum();
+  }
+
+  @Override
+  public long getRecordsSpooled() {
+    return recordsSpooled.sum();
+  }
+
+  @Override
+  public long getRecordsReplayed() {
+    return recordsReplayed.sum();
+  }
+
+  @Override
+  public long getRecordsDropped() {
+    return recordsDropped.sum();
+  }
+
+  @Override
+  public long getFormatFailures() {
+    return formatFailures.sum();
+  }
+
+  @Override
+  public long getWriteFailures() {
+    return writeFailures.sum();
+  }
+
+  @Override
+  public long getReconnectAttempts() {
+    return reconnectAttempts.sum();
+  }
+
+  @Override
+  public long getRecordsTruncated() {
+    return recordsTruncated.sum();
+  }
+
+  @Override
+  public long getDatagramsSent() {
+    return datagramsSent.sum();
+  }
+
+  @Override
+  public long getRecordsSuppressed() {
+    return recordsSuppressed.sum();
+  }
+
+  @Override
+  public long getRecordsDeduplicated() {
+    return recordsDeduplicated.sum();
+  }
+
+  @Override
+  public long getQueueDepth() {
+    return handler.getQueueDepth();
+  }
+
+  @Override
+  public long getSpoolSize() {
+    return handler.getSpoolSize();
+  }
+
+  @Override
+  public int getConnectedHosts() {
+    return handler.getConnectedHosts();
+  }
+
+  @Override
+  public String getLastError() {
+    return handler.getLastError();
+  }
+
+  @Override
+  public long getPublishTime50thPercentile() {
+    return publishTime.percentile(0.5);
+  }
+
+  @Override
+  public long getPublishTime99thPercentile() {
+    return publishTime.percentile(0.99);
+  }
+
+  @Override
+  public long getPublishTimeMax() {
+    return publishTime.max();
+  }
+
+  @Override
+  public long getWriteTime50thPercentile() {
+    return writeTime.percentile(0.5);
+  }
+
+  @Override
+  public long getWriteTime99thPercentile() {
+    return writeTime.percentile(0.99);
+  }
+
+  @Override
+  public long getWriteTimeMax() {
+    return writeTime.max();
+  }
+
+  @Override
+  public void reset() {
+    recordsPublished.reset();
+    bytesSent.reset();
+    recordsDiverted.reset();
+    recordsSpooled.reset();
+    recordsReplayed.reset();
+    recordsDropped.reset();
+    formatFailures.reset();
+    writeFailures.reset();
+    reconnectAttempts.reset();
+    recordsTruncated.reset();
+    datagramsSent.reset();
+    recordsSuppressed.reset();
+    recordsDeduplicated.reset();
+    publishTime.reset();
+    writeTime.reset();
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+/**
+ * Management interface with the metrics of a {@link SocketHandler}. The
+ * counters start when the handler is created or the metrics are
+ * {@linkplain #reset() reset}; durations are in nanoseconds.
+ */
+public interface SocketHandlerMetricsMBean {
+
+  /**
+   * @return the number of records written to a logstash server
+   */
+  long getRecordsPublished();
+
+  /**
+   * @return the number of bytes written to the sockets
+   */
+  long getBytesSent();
+
+  /**
+   * @return the number of records published to the subHandler
+   */
+  long getRecordsDiverted();
+
+  /**
+   * @return the number of records appended to the disk spool
+   */
+  long getRecordsSpooled();
+
+  /**
+   * @return the number of spooled records written to a logstash server
+   */
+  long getRecordsReplayed();
+
+  /**
+   * @return the number of records which have been lost
+   */
+  long getRecordsDropped();
+
+  /**
+   * @return the number of records which could not be formatted
+   */
+  long getFormatFailures();
+
+  /**
+   * @return the number of failed writes to a logstash server
+   */
+  long getWriteFailures();
+
+  /**
+   * @return the number of connection attempts after a failure
+   */
+  long getReconnectAttempts();
+
+  /**
+   * @return the number of records whose stacktrace was shortened to fit into
+   *         a datagram
+   */
+  long getRecordsTruncated();
+
+  /**
+   * @return the number of datagrams sent with UDP
+   */
+  long getDatagramsSent();
+
+  /**
+   * @return the number of records which were rejected by sampling or rate
+   *         limiting
+   */
+  long getRecordsSuppressed();
+
+  /**
+   * @return the number of repeated records which were collapsed into a
+   *         summary
+   */
+  long getRecordsDeduplicated();
+
+  /**
+   * @return the number of records waiting in the ring buffer
+   */
+  long getQueueDepth();
+
+  /**
+   * @return the size of the disk spool in bytes
+   */
+  long getSpoolSize();
+
+  /**
+   * @return the number of hosts with an established connection
+   */
+  int getConnectedHosts();
+
+  /**
+   * @return the last error reported by the handler or {@code null}
+   */
+  String getLastError();
+
+  /**
+   * @return the median time spent in {@code doPublish}
+   */
+  long getPublishTime50thPercentile();
+
+  /**
+   * @return the 99th percentile of the time spent in {@code doPublish}
+   */
+  long getPublishTime99thPercentile();
+
+  /**
+   * @return the longest time spent in {@code doPublish}
+   */
+  long getPublishTimeMax();
+
+  /**
+   * @return the median time a record took to be written to a socket
+   */
+  long getWriteTime50thPercentile();
+
+  /**
+   * @return the 99th percentile of the time a record took to be written to a
+   *         socket
+   */
+  long getWriteTime99thPercentile();
+
+  /**
+   * @return the longest time a record took to be written to a socket
+   */
+  long getWriteTimeMax();
+
+  /**
+   * Sets all counters and histograms to zero.
+   */
+  void reset();
+}
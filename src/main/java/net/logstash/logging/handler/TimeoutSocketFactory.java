@@ -0,0 +1,83 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.SocketFactory;
+
+import org.jboss.logmanager.handlers.ClientSocketFactory;
+
+/**
+ * Creates sockets which give up connecting after a timeout, instead of the
+ * connect timeout of the operating system.
+ */
+final class TimeoutSocketFactory implements ClientSocketFactory {
+  private final SocketFactory socketFactory;
+  private final InetAddress address;
+  private final int port;
+  private final int connectTimeout;
+
+  /**
+   * Creates the factory.
+   *
+   * @param socketFactory
+   *          creates the unconnected sockets
+   * @param address
+   *          the address to connect to
+   * @param port
+   *          the port to connect to
+   * @param connectTimeout
+   *          the connect timeout in milliseconds, {@code 0} waits forever
+   */
+  TimeoutSocketFactory(final SocketFactory socketFactory, final InetAddress address, final int port,
+      final int connectTimeout) {
+    this.socketFactory = socketFactory;
+    this.address = address;
+    this.port = port;
+    this.connectTimeout = connectTimeout;
+  }
+
+  @Override
+  public DatagramSocket createDatagramSocket() throws SocketException {
+    return new DatagramSocket();
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    Socket socket = socketFactory.createSocket();
+    try {
+      socket.connect(new InetSocketAddress(address, port), connectTimeout);
+      return socket;
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+}
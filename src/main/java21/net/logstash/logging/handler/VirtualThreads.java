@@ -0,0 +1,42 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the virtual threads of the handler, loaded by name so the handler
+ * still runs on older versions.
+ */
+final class VirtualThreads {
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Returns a factory of virtual threads.
+   *
+   * @param name
+   *          the name of the threads
+   * @return the factory
+   */
+  static ThreadFactory factory(final String name) {
+    final ThreadFactory factory = Thread.ofVirtual().name(name).factory();
+    return task -> {
+      final Thread thread = factory.newThread(task);
+      thread.setContextClassLoader(SocketHandler.class.getClassLoader());
+      return thread;
+    };
+  }
+}
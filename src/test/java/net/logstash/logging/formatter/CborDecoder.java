@@ -0,0 +1,146 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * Decodes the subset of CBOR written by the formatter (maps, arrays, text
+ * strings and integers) into JSON values, so a document can be compared with
+ * the JSON text of the same record.
+ */
+public class CborDecoder {
+  private static final int BREAK = 0xff;
+  private final InputStream in;
+
+  public CborDecoder(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Decodes the next value.
+   *
+   * @return the value
+   * @throws IOException
+   *           if the input ends or contains an unsupported type
+   */
+  public JsonValue read() throws IOException {
+    return read(next());
+  }
+
+  private JsonValue read(int initial) throws IOException {
+    int major = initial >> 5;
+    int info = initial & 0x1f;
+    switch (major) {
+    case 0:
+      return Json.createValue(argument(info));
+    case 1:
+      return Json.createValue(-1 - argument(info));
+    case 3:
+      return Json.createValue(text(info));
+    case 4: {
+      JsonArrayBuilder array = Json.createArrayBuilder();
+      if (info == 31) {
+        for (int b = next(); b != BREAK; b = next()) {
+          array.add(read(b));
+        }
+      } else {
+        for (long i = argument(info); i > 0; i--) {
+          array.add(read());
+        }
+      }
+      return array.build();
+    }
+    case 5: {
+      JsonObjectBuilder object = Json.createObjectBuilder();
+      if (info == 31) {
+        for (int b = next(); b != BREAK; b = next()) {
+          object.add(key(b), read());
+        }
+      } else {
+        for (long i = argument(info); i > 0; i--) {
+          object.add(key(next()), read());
+        }
+      }
+      return object.build();
+    }
+    default:
+      throw new IOException("Unsupported major type " + major);
+    }
+  }
+
+  private String key(int initial) throws IOException {
+    if (initial >> 5 != 3) {
+      throw new IOException("Key is not a text string: " + Integer.toHexString(initial));
+    }
+    return text(initial & 0x1f);
+  }
+
+  private String text(int info) throws IOException {
+    long length = argument(info);
+    byte[] bytes = new byte[(int) length];
+    for (int n = 0; n < length;) {
+      int read = in.read(bytes, n, (int) length - n);
+      if (read < 0) {
+        throw new IOException("Truncated text string");
+      }
+      n += read;
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private long argument(int info) throws IOException {
+    if (info < 24) {
+      return info;
+    }
+    int bytes;
+    switch (info) {
+    case 24:
+      bytes = 1;
+      break;
+    case 25:
+      bytes = 2;
+      break;
+    case 26:
+      bytes = 4;
+      break;
+    case 27:
+      bytes = 8;
+      break;
+    default:
+      throw new IOException("Unsupported additional information " + info);
+    }
+    BigInteger value = BigInteger.ZERO;
+    for (int i = 0; i < bytes; i++) {
+      value = value.shiftLeft(8).or(BigInteger.valueOf(next()));
+    }
+    return value.longValueExact();
+  }
+
+  private int next() throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new IOException("Unexpected end of input");
+    }
+    return b;
+  }
+}
@@ -13,20 +13,30 @@
  */
 package net.logstash.logging.formatter;
 
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
 
 import org.jboss.logmanager.ExtLogRecord;
 import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+import org.jboss.logmanager.MDC;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -247,4 +257,211 @@ public class LogstashUtilFormatterTest {
     String result = instance.format(extLogRecord);
     assertEquals(fullLogMessage, result);
   }
+
+  /**
+   * Test that the streaming writer and the JSON object tree produce the same output.
+   */
+  @Test
+  public void testFormatStreamingMatchesTree() {
+    ExtLogRecord extLogRecord = new ExtLogRecord(Level.WARNING, "quote \" backslash \\ tab \t ctrl \u0001 \u00e9 \u20ac",
+        FormatStyle.NO_FORMAT, record.getLoggerName());
+    extLogRecord.setLoggerName(record.getLoggerName());
+    extLogRecord.setSourceClassName(null);
+    extLogRecord.setSourceMethodName(null);
+    extLogRecord.setMillis(record.getMillis());
+    extLogRecord.setThrown(new IllegalStateException("line\nbreak", ex));
+    MDC.put("user", "\"joe\"");
+    MDC.put("request", "42");
+    try {
+      LogstashUtilFormatter tree = new LogstashUtilFormatter();
+      tree.setStreaming(false);
+      assertTrue(instance.isStreaming());
+      assertFalse(tree.isStreaming());
+      assertEquals(tree.format(extLogRecord), instance.format(extLogRecord));
+      assertEquals(tree.format(record), instance.format(record));
+    } finally {
+      MDC.clear();
+    }
+  }
+
+  /**
+   * Test that the MDC captured by the record is written and that the buffers of a huge record are not retained.
+   */
+  @Test
+  public void testMdcAndScratchBuffers() {
+    ExtLogRecord extLogRecord = new ExtLogRecord(Level.INFO, "mdc", FormatStyle.NO_FORMAT, record.getLoggerName());
+    extLogRecord.setLoggerName(record.getLoggerName());
+    Map<String, Object> mdc = new HashMap<>();
+    mdc.put("user", "joe");
+    mdc.put("count", 3);
+    extLogRecord.setMdc(mdc);
+    String formatted = instance.format(extLogRecord);
+    assertTrue(formatted.contains("\"user\":\"joe\""), formatted);
+    assertTrue(formatted.contains("\"count\":\"3\""), formatted);
+    assertEquals(mdc.size(), extLogRecord.getMdcCopy().size());
+    LogstashUtilFormatter tree = new LogstashUtilFormatter();
+    tree.setStreaming(false);
+    assertEquals(tree.format(extLogRecord), formatted);
+
+    char[] huge = new char[StreamingJsonWriter.MAX_RETAINED_CAPACITY * 2];
+    Arrays.fill(huge, 'x');
+    ExtLogRecord hugeRecord = new ExtLogRecord(Level.INFO, new String(huge), FormatStyle.NO_FORMAT,
+        record.getLoggerName());
+    hugeRecord.setLoggerName(record.getLoggerName());
+    assertTrue(instance.formatBytes(hugeRecord).remaining() > huge.length);
+    StreamingJsonWriter json = StreamingJsonWriter.acquire();
+    try {
+      assertTrue(json.capacity() <= StreamingJsonWriter.MAX_RETAINED_CAPACITY, "retained " + json.capacity());
+    } finally {
+      json.release();
+    }
+  }
+
+  /**
+   * Test that the CBOR document of a record decodes to the same structure as its JSON text.
+   */
+  @Test
+  public void testCborMatchesJson() throws Exception {
+    LogstashUtilFormatter cbor = new LogstashUtilFormatter();
+    cbor.setWireFormat(LogstashUtilFormatter.WireFormat.CBOR);
+    cbor.setStaticFields("env=test,region=\u00e9u");
+    instance.setStaticFields("env=test,region=\u00e9u");
+    assertTrue(cbor.isBinary());
+    assertFalse(instance.isBinary());
+    String[] messages = { "plain", "quote \" \u00e9 \u20ac \ud83d\ude00 unpaired \ud83d", "",
+        new String(new char[70000]).replace('\0', 'x') };
+    MDC.put("user", "joe");
+    try {
+      for (String message : messages) {
+        ExtLogRecord extLogRecord = new ExtLogRecord(Level.WARNING, message, FormatStyle.NO_FORMAT,
+            record.getLoggerName());
+        extLogRecord.setLoggerName(record.getLoggerName());
+        extLogRecord.setMillis(-1);
+        extLogRecord.setThrown(ex);
+        ByteBuffer encoded = cbor.formatBytes(extLogRecord);
+        JsonValue decoded = new CborDecoder(
+            new ByteArrayInputStream(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining()))
+                .read();
+        int size = encoded.remaining();
+        // the UTF-8 of the JSON text, unpaired surrogates are replaced in both encodings
+        ByteBuffer json = instance.formatBytes(extLogRecord);
+        assertTrue(size < json.remaining());
+        JsonObject expected = Json.createReader(new StringReader(StandardCharsets.UTF_8.decode(json).toString()))
+            .readObject();
+        assertEquals(expected, decoded, message.length() > 100 ? "long" : message);
+      }
+    } finally {
+      MDC.clear();
+    }
+    // text handlers still get JSON
+    assertEquals(instance.format(record), cbor.format(record));
+  }
+
+  /**
+   * Test that the records encoded by the formatter are the UTF-8 bytes of the formatted string.
+   */
+  @Test
+  public void testFormatBytesMatchesFormat() {
+    String[] messages = { "plain", "\u00e9 \u20ac \ud83d\ude00", "unpaired \ud83d surrogate", "" };
+    for (String message : messages) {
+      ExtLogRecord extLogRecord = new ExtLogRecord(Level.INFO, message, FormatStyle.NO_FORMAT, record.getLoggerName());
+      extLogRecord.setLoggerName(record.getLoggerName());
+      extLogRecord.setMillis(record.getMillis());
+      extLogRecord.setThrown(ex);
+      byte[] expected = instance.format(extLogRecord).getBytes(StandardCharsets.UTF_8);
+      ByteBuffer encoded = instance.formatBytes(extLogRecord);
+      byte[] actual = new byte[encoded.remaining()];
+      encoded.get(actual);
+      assertArrayEquals(expected, actual, message);
+    }
+    LogstashUtilFormatter tree = new LogstashUtilFormatter();
+    tree.setStreaming(false);
+    ExtLogRecord extLogRecord = new ExtLogRecord(Level.INFO, "tree", FormatStyle.NO_FORMAT, record.getLoggerName());
+    extLogRecord.setLoggerName(record.getLoggerName());
+    extLogRecord.setMillis(record.getMillis());
+    assertEquals(ByteBuffer.wrap(tree.format(extLogRecord).getBytes(StandardCharsets.UTF_8)),
+        tree.formatBytes(extLogRecord));
+  }
+
+  /**
+   * Test that the static fields follow the tags and that a changed tags property is picked up.
+   */
+  @Test
+  public void testStaticFieldsAndChangedTags() {
+    ExtLogRecord extLogRecord = new ExtLogRecord(Level.INFO, "static", FormatStyle.NO_FORMAT, record.getLoggerName());
+    extLogRecord.setLoggerName(record.getLoggerName());
+    extLogRecord.setMillis(record.getMillis());
+    LogstashUtilFormatter tree = new LogstashUtilFormatter();
+    tree.setStreaming(false);
+    for (LogstashUtilFormatter formatter : new LogstashUtilFormatter[] { instance, tree }) {
+      formatter.setStaticFields("environment = test, service=\"shop\",invalid");
+      assertEquals("environment = test, service=\"shop\",invalid", formatter.getStaticFields());
+    }
+    String formatted = instance.format(extLogRecord);
+    assertEquals(tree.format(extLogRecord), formatted);
+    assertTrue(formatted.contains("\"@tags\":[\"foo\",\"bar\"],\"environment\":\"test\",\"service\":\"\\\"shop\\\"\"}"),
+        formatted);
+
+    System.setProperty(LogstashUtilFormatter.SYSTEM_PROPERTY_TAGS, "changed");
+    try {
+      formatted = instance.format(extLogRecord);
+      assertEquals(tree.format(extLogRecord), formatted);
+      assertTrue(formatted.contains("\"@tags\":[\"changed\"],"), formatted);
+    } finally {
+      System.setProperty(LogstashUtilFormatter.SYSTEM_PROPERTY_TAGS, "foo,bar");
+    }
+    instance.setStaticFields(null);
+    assertFalse(instance.format(extLogRecord).contains("environment"));
+  }
+
+  /**
+   * Test that static fields cannot replace the members of every document, in streaming and in tree mode.
+   */
+  @Test
+  public void testStaticFieldsWithReservedNames() {
+    ExtLogRecord extLogRecord = new ExtLogRecord(Level.INFO, "reserved", FormatStyle.NO_FORMAT,
+        record.getLoggerName());
+    extLogRecord.setLoggerName(record.getLoggerName());
+    extLogRecord.setMillis(record.getMillis());
+    LogstashUtilFormatter tree = new LogstashUtilFormatter();
+    tree.setStreaming(false);
+    for (LogstashUtilFormatter formatter : new LogstashUtilFormatter[] { instance, tree }) {
+      formatter.setStaticFields("@timestamp=never,@message=replaced,@tags=none,@source_host=other,service=shop");
+      String formatted = formatter.format(extLogRecord);
+      JsonObject object = Json.createReader(new StringReader(formatted)).readObject();
+      assertEquals("reserved", object.getString("@message"), formatted);
+      assertEquals("foo", object.getJsonArray("@tags").getString(0), formatted);
+      assertEquals("shop", object.getString("service"), formatted);
+      assertFalse(formatted.contains("never") || formatted.contains("replaced") || formatted.contains("other"),
+          formatted);
+      formatter.setStaticFields(null);
+    }
+    instance.setStaticFields("@timestamp=never,service=shop");
+    tree.setStaticFields("@timestamp=never,service=shop");
+    assertEquals(tree.format(extLogRecord), instance.format(extLogRecord));
+    instance.setStaticFields(null);
+  }
+
+  /**
+   * Test that formatting leaves the record as it is, so it can be formatted again.
+   */
+  @Test
+  public void testFormatDoesNotChangeRecord() {
+    Object[] parameters = { "joe", 3 };
+    ExtLogRecord extLogRecord = new ExtLogRecord(Level.INFO, "User {0} failed {1} times", FormatStyle.MESSAGE_FORMAT,
+        record.getLoggerName());
+    extLogRecord.setLoggerName(record.getLoggerName());
+    extLogRecord.setParameters(parameters);
+    String first = instance.format(extLogRecord);
+    assertEquals(first, instance.format(extLogRecord));
+    assertTrue(first.contains("\"@message\":\"User joe failed 3 times\""), first);
+    assertEquals("User {0} failed {1} times", extLogRecord.getMessage());
+    assertSame(parameters, extLogRecord.getParameters());
+
+    LogRecord logRecord = new LogRecord(Level.INFO, "User {0}");
+    logRecord.setParameters(parameters);
+    assertEquals("User joe", instance.formatMessage(logRecord));
+    assertEquals("User {0}", logRecord.getMessage());
+    assertNull(instance.formatMessage(new LogRecord(Level.INFO, null)));
+  }
 }
@@ -0,0 +1,88 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.text.MessageFormat;
+import java.util.Date;
+import java.util.Formattable;
+import java.util.Formatter;
+import java.util.MissingFormatArgumentException;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageTemplatesTest {
+  private static final Object[][] PARAMETERS = { null, {}, { "joe" }, { "joe", null, "x" }, { 1234567, "joe" },
+      { new Date(0), 2.5 }, { new Object[0] } };
+
+  @Test
+  public void testMessageFormatMatchesJdk() {
+    MessageTemplates templates = new MessageTemplates(16);
+    String[] patterns = { "User {0} logged in", "{0}{0}{1} {0}", "'{0}' is {0}", "it''s {1} and {0}", "{2}",
+        "{0,number,#.#} and {1}", "{0} at {1,date}", "'quoted' {0}'" };
+    for (String pattern : patterns) {
+      for (Object[] parameters : PARAMETERS) {
+        for (int i = 0; i < 2; i++) {
+          String expected;
+          try {
+            expected = MessageFormat.format(pattern, parameters);
+          } catch (IllegalArgumentException e) {
+            assertThrows(IllegalArgumentException.class, () -> templates.formatMessageFormat(pattern, parameters));
+            continue;
+          }
+          assertEquals(expected, templates.formatMessageFormat(pattern, parameters), pattern);
+        }
+      }
+    }
+    assertThrows(IllegalArgumentException.class, () -> templates.formatMessageFormat("{0", new Object[] { "a" }));
+  }
+
+  @Test
+  public void testPrintfMatchesJdk() {
+    MessageTemplates templates = new MessageTemplates(16);
+    String[] patterns = { "User %s logged in", "%s%s 100%% %n", "no arguments", "%d users", "%s took %.2f ms",
+        "trailing %" };
+    Object[][] parameters = { { "joe", 1 }, { null, "x" }, { 3, 1.5 } };
+    for (String pattern : patterns) {
+      for (Object[] p : parameters) {
+        String expected;
+        try {
+          expected = String.format(pattern, p);
+        } catch (IllegalArgumentException e) {
+          assertThrows(e.getClass(), () -> templates.formatPrintf(pattern, p));
+          continue;
+        }
+        assertEquals(expected, templates.formatPrintf(pattern, p), pattern);
+      }
+    }
+    assertEquals("no arguments", templates.formatPrintf("no arguments", null));
+    assertThrows(MissingFormatArgumentException.class, () -> templates.formatPrintf("%s and %s", new Object[] { 1 }));
+
+    Formattable formattable = (Formatter formatter, int flags, int width, int precision) -> formatter.format("custom");
+    assertEquals("is custom", templates.formatPrintf("is %s", new Object[] { formattable }));
+  }
+
+  @Test
+  public void testCacheIsBounded() {
+    MessageTemplates templates = new MessageTemplates(2);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i + " joe", templates.formatMessageFormat(i + " {0}", new Object[] { "joe" }));
+      assertEquals(i + " joe", templates.formatPrintf(i + " %s", new Object[] { "joe" }));
+    }
+    assertEquals(4, templates.size());
+    MessageTemplates disabled = new MessageTemplates(0);
+    assertEquals("joe", disabled.formatMessageFormat("{0}", new Object[] { "joe" }));
+    assertEquals(0, disabled.size());
+  }
+}
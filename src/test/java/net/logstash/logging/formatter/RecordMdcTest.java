@@ -0,0 +1,66 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.MDC;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordMdcTest {
+
+  private static ExtLogRecord record() {
+    MDC.put("user", "joe");
+    try {
+      ExtLogRecord record = new ExtLogRecord(Level.INFO, "mdc", RecordMdcTest.class.getName());
+      record.copyMdc();
+      return record;
+    } finally {
+      MDC.remove("user");
+    }
+  }
+
+  @Test
+  public void testFieldIsVerified() {
+    MethodHandle getter = RecordMdc.getter();
+    assertNotNull(getter, "the log manager of the build has the field");
+    assertSame(getter, RecordMdc.verified(getter));
+    ExtLogRecord record = record();
+    Map<String, ?> mdc = RecordMdc.of(record, getter);
+    assertEquals(record.getMdcCopy(), mdc);
+    assertSame(mdc, RecordMdc.of(record, getter), "the field is read without copying");
+  }
+
+  @Test
+  public void testFallbackToCopy() {
+    // a getter which does not read the MDC of the record is rejected
+    MethodHandle wrong = MethodHandles.dropArguments(MethodHandles.constant(Map.class, Collections.emptyMap()), 0,
+        ExtLogRecord.class);
+    assertEquals(MethodType.methodType(Map.class, ExtLogRecord.class), wrong.type());
+    assertNull(RecordMdc.verified(wrong));
+    assertNull(RecordMdc.verified(null));
+
+    ExtLogRecord record = record();
+    Map<String, ?> mdc = RecordMdc.of(record, null);
+    assertEquals(Collections.singletonMap("user", "joe"), mdc);
+    assertEquals(mdc, RecordMdc.of(record));
+  }
+}
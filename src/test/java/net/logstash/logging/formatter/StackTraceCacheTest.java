@@ -0,0 +1,143 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StackTraceCacheTest {
+
+  private static Exception retry(String message) {
+    // every call creates a new exception with the same frames
+    return new IllegalStateException(message, new RuntimeException("cause"));
+  }
+
+  private static String printed(Throwable t) {
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    pw.println();
+    t.printStackTrace(pw);
+    pw.close();
+    return sw.toString();
+  }
+
+  @Test
+  public void testSameShapeIsRenderedOnce() {
+    StackTraceCache cache = new StackTraceCache(16);
+    for (int i = 0; i < 3; i++) {
+      Exception e = retry("failed");
+      StackTraceCache.Rendered rendered = cache.get(e);
+      assertEquals(printed(e), rendered.stacktrace);
+      assertEquals(e.getStackTrace()[0].getLineNumber(), rendered.lineNumber);
+    }
+    assertEquals(1, cache.getMisses());
+    assertEquals(2, cache.getHits());
+
+    // a different message, cause or frame is a different shape
+    cache.get(retry("other"));
+    cache.get(new IllegalStateException("failed", new RuntimeException("other cause")));
+    Exception suppressed = retry("failed");
+    suppressed.addSuppressed(new RuntimeException("suppressed"));
+    assertEquals(printed(suppressed), cache.get(suppressed).stacktrace);
+    assertEquals(4, cache.getMisses());
+  }
+
+  @Test
+  public void testCircularCause() {
+    StackTraceCache cache = new StackTraceCache(16);
+    RuntimeException a = new RuntimeException("a");
+    RuntimeException b = new RuntimeException("b", a);
+    a.initCause(b);
+    assertEquals(printed(a), cache.get(a).stacktrace);
+    assertEquals(printed(b), cache.get(b).stacktrace);
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    StackTraceCache cache = new StackTraceCache(2);
+    // the same call site, so only the messages differ
+    for (String message : new String[] { "1", "2", "1", "3", "1", "2" }) {
+      cache.get(retry(message));
+    }
+    assertEquals(2, cache.size());
+    // "3" evicted "2", which was the least recently used
+    assertEquals(2, cache.getHits());
+    assertEquals(4, cache.getMisses());
+  }
+
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    StackTraceCache cache = new StackTraceCache(8);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 2000; i++) {
+            Exception e = retry(String.valueOf(i % 16));
+            assertEquals(printed(e), cache.get(e).stacktrace);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(8000, cache.getHits() + cache.getMisses());
+    assertTrue(cache.size() <= 8, "size=" + cache.size());
+  }
+
+  @Test
+  public void testWithoutFramesOrCache() {
+    StackTraceCache cache = new StackTraceCache(0);
+    Exception e = new Exception("no frames");
+    e.setStackTrace(new StackTraceElement[0]);
+    assertNull(cache.get(e).stacktrace);
+    assertEquals(0, cache.get(e).lineNumber);
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void testFormatterCountsHits() {
+    LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+    assertEquals(LogstashUtilFormatter.DEFAULT_STACK_TRACE_CACHE_SIZE, formatter.getStackTraceCacheSize());
+    String[] formatted = new String[2];
+    for (int i = 0; i < 2; i++) {
+      ExtLogRecord record = new ExtLogRecord(Level.SEVERE, "retry", getClass().getName());
+      record.setLoggerName("testFormatterCountsHits");
+      record.setMillis(0);
+      record.setThrown(retry("failed"));
+      formatted[i] = formatter.format(record);
+    }
+    assertEquals(formatted[0], formatted[1]);
+    assertEquals(1, formatter.getStackTraceCacheMisses());
+    assertEquals(1, formatter.getStackTraceCacheHits());
+    formatter.setStackTraceCacheSize(0);
+    assertEquals(0, formatter.getStackTraceCacheHits());
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StackTraceRendererTest {
+  private static final String NL = System.lineSeparator();
+
+  private static StackTraceElement frame(String className, int line) {
+    return new StackTraceElement(className, "call", className + ".java", line);
+  }
+
+  private static Exception exception() {
+    Exception e = new IllegalStateException("failed");
+    e.setStackTrace(new StackTraceElement[] { frame("com.example.Service", 1), frame("io.undertow.Handler", 2),
+        frame("io.undertow.Handler", 3), frame("com.example.Filter", 4), frame("java.lang.Thread", 5) });
+    return e;
+  }
+
+  private static String render(StackTraceRenderer renderer, Throwable t) {
+    return renderer.render(t, t.getStackTrace());
+  }
+
+  @Test
+  public void testExcludedFramesAreCollapsed() {
+    StackTraceRenderer renderer = new StackTraceRenderer(0,
+        StackTraceRenderer.parseExcludes(" io.undertow., ,java.lang."), true);
+    assertEquals(NL + "java.lang.IllegalStateException: failed" + NL
+        + "\tat com.example.Service.call(com.example.Service.java:1)" + NL
+        + "\t... 2 frames omitted" + NL
+        + "\tat com.example.Filter.call(com.example.Filter.java:4)" + NL
+        + "\t... 1 frame omitted" + NL, render(renderer, exception()));
+
+    // the frame which threw is never omitted
+    Exception e = exception();
+    e.setStackTrace(new StackTraceElement[] { frame("io.undertow.Handler", 2) });
+    assertTrue(render(renderer, e).contains("\tat io.undertow.Handler.call"));
+  }
+
+  @Test
+  public void testDepthIsLimitedPerThrowable() {
+    StackTraceRenderer renderer = new StackTraceRenderer(2, new String[0], true);
+    Exception e = exception();
+    Exception cause = exception();
+    e.initCause(cause);
+    String rendered = render(renderer, e);
+    assertEquals(NL + "java.lang.IllegalStateException: failed" + NL
+        + "\tat com.example.Service.call(com.example.Service.java:1)" + NL
+        + "\tat io.undertow.Handler.call(io.undertow.Handler.java:2)" + NL
+        + "\t... 3 frames omitted" + NL
+        + "Caused by: java.lang.IllegalStateException: failed" + NL
+        + "\t... 5 more" + NL, rendered);
+  }
+
+  @Test
+  public void testCommonFramesAreFoldedOrRendered() {
+    Exception e = exception();
+    Exception cause = new RuntimeException("cause");
+    StackTraceElement[] frames = e.getStackTrace().clone();
+    frames[0] = frame("com.example.Repository", 9);
+    cause.setStackTrace(frames);
+    e.initCause(cause);
+
+    String folded = render(new StackTraceRenderer(0, new String[0], true), e);
+    assertTrue(folded.endsWith("Caused by: java.lang.RuntimeException: cause" + NL
+        + "\tat com.example.Repository.call(com.example.Repository.java:9)" + NL + "\t... 4 more" + NL));
+
+    String unfolded = render(new StackTraceRenderer(0, new String[0], false), e);
+    assertFalse(unfolded.contains("more"));
+    assertTrue(unfolded.endsWith("\tat java.lang.Thread.call(java.lang.Thread.java:5)" + NL));
+  }
+
+  @Test
+  public void testFormatterSettings() {
+    LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+    assertTrue(formatter.isFoldCommonFrames());
+    formatter.setStackTraceExcludes("io.undertow.");
+    formatter.setMaxStackTraceDepth(4);
+    formatter.setStackTraceCacheSize(8);
+    assertEquals("io.undertow.", formatter.getStackTraceExcludes());
+    assertEquals(4, formatter.getMaxStackTraceDepth());
+    assertEquals(8, formatter.getStackTraceCacheSize());
+
+    ExtLogRecord record = new ExtLogRecord(Level.SEVERE, "failed", getClass().getName());
+    record.setLoggerName("testFormatterSettings");
+    record.setThrown(exception());
+    String formatted = formatter.format(record);
+    assertTrue(formatted.contains("\\t... 2 frames omitted"), formatted);
+    assertTrue(formatted.contains("\\t... 1 frame omitted"), formatted);
+    assertFalse(formatted.contains("java.lang.Thread.call"), formatted);
+  }
+}
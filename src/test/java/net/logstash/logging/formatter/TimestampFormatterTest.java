@@ -0,0 +1,89 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimestampFormatterTest {
+
+  private final TimeZone defaultZone = TimeZone.getDefault();
+
+  @AfterEach
+  public void tearDown() {
+    TimeZone.setDefault(defaultZone);
+  }
+
+  private static String expected(long millis) {
+    return new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT).format(new Date(millis));
+  }
+
+  private static void assertFormat(TimestampFormatter formatter, long millis) {
+    String expected = expected(millis);
+    assertEquals(expected, formatter.format(millis), "millis=" + millis);
+    StringBuilder sb = new StringBuilder("x");
+    formatter.formatTo(millis, sb);
+    assertEquals("x" + expected, sb.toString(), "millis=" + millis);
+  }
+
+  /**
+   * Test of format method against SimpleDateFormat for random timestamps.
+   */
+  @Test
+  public void testRandomTimestamps() {
+    Random random = new Random(4711);
+    for (String zone : new String[] { "UTC", "Europe/Berlin", "America/St_Johns", "Asia/Kolkata", "Pacific/Chatham",
+        "America/Los_Angeles" }) {
+      TimeZone.setDefault(TimeZone.getTimeZone(zone));
+      TimestampFormatter formatter = new TimestampFormatter();
+      for (int i = 0; i < 10000; i++) {
+        assertFormat(formatter, (long) (random.nextDouble() * 4102444800000L));
+      }
+    }
+  }
+
+  /**
+   * Test of format method for consecutive timestamps around a DST transition.
+   */
+  @Test
+  public void testDaylightSavingTransition() {
+    TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+    TimestampFormatter formatter = new TimestampFormatter();
+    // 2024-03-31T01:59:58+0100
+    long start = 1711846798000L;
+    for (long millis = start; millis < start + 5000; millis += 7) {
+      assertFormat(formatter, millis);
+    }
+  }
+
+  /**
+   * Test of format method for timestamps which are not cached.
+   */
+  @Test
+  public void testUncachedTimestamps() {
+    TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+    TimestampFormatter formatter = new TimestampFormatter();
+    assertFormat(formatter, 0L);
+    assertFormat(formatter, -1L);
+    assertFormat(formatter, -12219292800001L);
+    assertFormat(formatter, 253402300800000L);
+    assertFormat(formatter, System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Utf8Test {
+
+  @Test
+  public void testSameBytesAsString() {
+    String[] values = { "", "ascii", "\u00e4\u00f6\u00fc \u20ac", "emoji \ud83d\ude00 end", "unpaired \ud83d end",
+        "unpaired \ude00 end", "high \ud83d\ud83d\ude00", "trailing \ud83d" };
+    for (String value : values) {
+      char[] chars = value.toCharArray();
+      byte[] expected = value.getBytes(StandardCharsets.UTF_8);
+      assertEquals(expected.length, Utf8.length(chars, chars.length), value);
+      byte[] target = new byte[2 + chars.length * 3];
+      int end = Utf8.encode(chars, chars.length, target, 2);
+      assertEquals(2 + expected.length, end, value);
+      assertArrayEquals(expected, Arrays.copyOfRange(target, 2, end), value);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControlTest {
+
+  private static ExtLogRecord record(String loggerName) {
+    ExtLogRecord record = new ExtLogRecord(Level.INFO, "message", FormatStyle.NO_FORMAT, loggerName);
+    record.setLoggerName(loggerName);
+    return record;
+  }
+
+  @Test
+  public void testEvictedBucketsAreSummarized() {
+    AdmissionControl admission = new AdmissionControl(1, 1, 100, Level.INFO);
+    int loggers = AdmissionControl.MAX_BUCKETS + 10;
+    for (int i = 0; i < loggers; i++) {
+      ExtLogRecord record = record("logger" + i);
+      assertTrue(admission.admit(record));
+      assertFalse(admission.admit(record));
+    }
+    AdmissionControl.Summary summary = admission.summarize();
+    assertNotNull(summary);
+    assertEquals(loggers, summary.getTotal());
+    assertEquals(loggers, summary.getRateLimited());
+    assertNull(admission.summarize());
+  }
+
+  @Test
+  public void testSummaryListsLimitedDetails() {
+    AdmissionControl admission = new AdmissionControl(1, 1, 100, Level.INFO);
+    int loggers = AdmissionControl.Summary.MAX_DETAILS + 5;
+    for (int i = 0; i < loggers; i++) {
+      ExtLogRecord record = record("logger" + i);
+      admission.admit(record);
+      admission.admit(record);
+    }
+    String message = admission.summarize().getMessage();
+    assertTrue(message.startsWith("Suppressed " + loggers + " records ("), message);
+    assertTrue(message.endsWith(" and 5 more)"), message);
+    assertEquals(AdmissionControl.Summary.MAX_DETAILS, message.split(" rate limited").length - 1, message);
+  }
+}
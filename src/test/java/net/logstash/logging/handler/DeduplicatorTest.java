@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.logstash.logging.formatter.RepeatedRecord;
+
+public class DeduplicatorTest {
+  private final AtomicLong clock = new AtomicLong();
+  private final List<ExtLogRecord> summaries = new ArrayList<>();
+
+  private ExtLogRecord record(int attempt) {
+    ExtLogRecord record = new ExtLogRecord(Level.SEVERE, "Attempt {0} failed", FormatStyle.MESSAGE_FORMAT,
+        getClass().getName());
+    record.setLoggerName("DeduplicatorTest");
+    record.setParameters(new Object[] { attempt });
+    record.setMillis(clock.get());
+    return record;
+  }
+
+  @Test
+  public void testRepetitionsAreSummarizedWhenExpired() {
+    Deduplicator dedup = new Deduplicator(1000, 16, summaries::add, clock::get);
+    assertTrue(dedup.admit(record(0)));
+    for (int i = 1; i <= 5; i++) {
+      clock.addAndGet(100);
+      assertFalse(dedup.admit(record(i)));
+    }
+    dedup.expire(false);
+    assertTrue(summaries.isEmpty(), "the window has not passed");
+
+    clock.set(1000);
+    dedup.expire(false);
+    assertEquals(1, summaries.size());
+    RepeatedRecord repeated = (RepeatedRecord) summaries.get(0);
+    assertEquals(5, repeated.getRepeatCount());
+    assertEquals(100, repeated.getFirstMillis());
+    assertEquals(500, repeated.getLastMillis());
+    assertEquals("Attempt {0} failed", summaries.get(0).getMessage());
+
+    // a burst without repetitions has no summary
+    assertTrue(dedup.admit(record(6)));
+    clock.addAndGet(1000);
+    dedup.expire(false);
+    assertEquals(1, summaries.size());
+  }
+
+  @Test
+  public void testSummaryOfReplacedBurstIsQueued() {
+    Deduplicator dedup = new Deduplicator(1000, 16, summaries::add, clock::get);
+    assertTrue(dedup.admit(record(0)));
+    clock.set(10);
+    assertFalse(dedup.admit(record(1)));
+    // the window has passed before the expiry ran, the record starts a new burst
+    clock.set(1500);
+    assertTrue(dedup.admit(record(2)));
+    assertTrue(summaries.isEmpty(), "the summary must not be published by the logging thread");
+    clock.set(1600);
+    assertFalse(dedup.admit(record(3)));
+
+    dedup.expire(false);
+    assertEquals(1, summaries.size());
+    assertEquals(1, ((RepeatedRecord) summaries.get(0)).getRepeatCount());
+    dedup.expire(true);
+    assertEquals(2, summaries.size());
+    assertEquals(1600, ((RepeatedRecord) summaries.get(1)).getLastMillis());
+  }
+
+  @Test
+  public void testCapacity() {
+    Deduplicator dedup = new Deduplicator(1000, 1, summaries::add, clock::get);
+    assertTrue(dedup.admit(record(0)));
+    ExtLogRecord other = new ExtLogRecord(Level.SEVERE, "other", getClass().getName());
+    other.setLoggerName("DeduplicatorTest");
+    assertTrue(dedup.admit(other));
+    assertTrue(dedup.admit(other), "records beyond the capacity are not tracked");
+    assertFalse(dedup.admit(record(1)));
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiskSpoolTest {
+
+  @TempDir
+  File directory;
+
+  private static String record(int i) {
+    return "{\"@message\":\"spooled record " + i + " ä€\"}\n";
+  }
+
+  private static void unmapFailed(Exception e) {
+    throw new AssertionError("segments must be unmapped", e);
+  }
+
+  private static List<String> drain(DiskSpool spool, int batch) {
+    List<String> replayed = new ArrayList<>();
+    while (!spool.isEmpty()) {
+      List<String> records = spool.peek(batch);
+      replayed.addAll(records);
+      spool.remove(records.size());
+    }
+    return replayed;
+  }
+
+  @Test
+  public void testAppendAndReplayAcrossSegments() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 1024, 64 * 1024, DiskSpoolTest::unmapFailed);
+    assertTrue(spool.isEmpty());
+    for (int i = 0; i < 200; i++) {
+      assertTrue(spool.append(record(i)));
+    }
+    assertTrue(directory.list().length > 1);
+    assertEquals(record(0), spool.peek(1).get(0));
+    assertEquals(record(0), spool.peek(1).get(0), "peek must not remove records");
+
+    List<String> replayed = drain(spool, 7);
+    assertEquals(200, replayed.size());
+    for (int i = 0; i < 200; i++) {
+      assertEquals(record(i), replayed.get(i));
+    }
+    // only the segment which is still written remains
+    assertEquals(1, directory.list().length);
+    assertEquals(1024, spool.size());
+    spool.close();
+  }
+
+  @Test
+  public void testBoundedSize() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 1024, 4096, DiskSpoolTest::unmapFailed);
+    int appended = 0;
+    while (spool.append(record(appended))) {
+      appended++;
+    }
+    assertTrue(appended > 0);
+    assertEquals(4096, spool.size());
+    assertFalse(spool.append(record(appended)));
+    StringBuilder tooLarge = new StringBuilder();
+    for (int i = 0; i < 1024; i++) {
+      tooLarge.append('x');
+    }
+    drain(spool, 100);
+    assertFalse(spool.append(tooLarge.toString()), "a record must fit into a segment");
+    assertTrue(spool.append(record(0)));
+    spool.close();
+  }
+
+  @Test
+  public void testRecoverReadOffset() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 1024, 64 * 1024, DiskSpoolTest::unmapFailed);
+    for (int i = 0; i < 50; i++) {
+      spool.append(record(i));
+    }
+    List<String> records = spool.peek(20);
+    spool.remove(records.size());
+    // not closed, as if the process had been killed
+    DiskSpool recovered = new DiskSpool(directory, 1024, 64 * 1024, DiskSpoolTest::unmapFailed);
+    recovered.append(record(50));
+    List<String> replayed = drain(recovered, 100);
+    assertEquals(31, replayed.size());
+    for (int i = 0; i < replayed.size(); i++) {
+      assertEquals(record(20 + i), replayed.get(i));
+    }
+    recovered.close();
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    long previous = -1;
+    for (long value = 0; value < 100000; value++) {
+      int index = LatencyHistogram.indexOf(value);
+      long highest = LatencyHistogram.highestValueOf(index);
+      assertTrue(highest >= value, "value=" + value);
+      // the width of a bucket is at most 1/8 of its values
+      assertTrue(highest - value <= value / 8, "value=" + value);
+      if (highest != previous) {
+        assertEquals(previous + 1, value, "buckets must not leave gaps");
+        previous = highest;
+      }
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.percentile(0.5));
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(1000000, histogram.max());
+    long median = histogram.percentile(0.5);
+    assertTrue(median >= 500000 && median <= 500000 * 9 / 8, "median=" + median);
+    long p99 = histogram.percentile(0.99);
+    assertTrue(p99 >= 990000 && p99 <= 1000000, "p99=" + p99);
+    assertEquals(1000000, histogram.percentile(1.0));
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.max());
+  }
+
+  @Test
+  public void testStripes() throws Exception {
+    assertEquals(1, LatencyHistogram.stripes(1));
+    assertEquals(4, LatencyHistogram.stripes(3));
+    assertEquals(4, LatencyHistogram.stripes(4));
+    assertEquals(16, LatencyHistogram.stripes(64));
+    LatencyHistogram histogram = new LatencyHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread(() -> {
+        for (long i = 1; i <= 10000; i++) {
+          histogram.record(i);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // the stripes of all threads are summed up
+    assertEquals(80000, histogram.count());
+    long median = histogram.percentile(0.5);
+    assertTrue(median >= 5000 && median <= 5000 * 9 / 8, "median=" + median);
+    histogram.reset();
+    assertEquals(0, histogram.count());
+  }
+}
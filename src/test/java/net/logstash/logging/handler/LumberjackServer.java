@@ -0,0 +1,142 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In-process stand-in for the Beats input: accepts one connection after the
+ * other, decodes the windows of the Lumberjack v2 protocol and acknowledges
+ * them unless it is told to stall.
+ */
+final class LumberjackServer implements Closeable {
+  private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+  private final List<String> events = new CopyOnWriteArrayList<>();
+  private volatile boolean acknowledge = true;
+  private volatile int connections;
+
+  LumberjackServer() throws IOException {
+    Thread thread = new Thread(this::accept, "lumberjack-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  InetAddress getAddress() {
+    return serverSocket.getInetAddress();
+  }
+
+  /**
+   * @return the events received in acknowledged windows
+   */
+  List<String> getEvents() {
+    return events;
+  }
+
+  int getConnections() {
+    return connections;
+  }
+
+  void setAcknowledge(boolean acknowledge) {
+    this.acknowledge = acknowledge;
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try (Socket socket = serverSocket.accept()) {
+        connections++;
+        read(new DataInputStream(socket.getInputStream()), new DataOutputStream(socket.getOutputStream()));
+      } catch (IOException e) {
+        // closed by the client or the test
+      }
+    }
+  }
+
+  private void read(DataInputStream in, DataOutputStream out) throws IOException {
+    while (true) {
+      int version = in.read();
+      if (version < 0) {
+        return;
+      }
+      expect(version, BeatsOutputStream.VERSION);
+      expect(in.readUnsignedByte(), BeatsOutputStream.WINDOW_SIZE);
+      int windowSize = in.readInt();
+      List<String> window = new ArrayList<>();
+      DataInputStream frames = in;
+      while (window.size() < windowSize) {
+        expect(frames.readUnsignedByte(), BeatsOutputStream.VERSION);
+        int type = frames.readUnsignedByte();
+        if (type == BeatsOutputStream.COMPRESSED) {
+          byte[] compressed = new byte[in.readInt()];
+          in.readFully(compressed);
+          frames = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+          continue;
+        }
+        expect(type, BeatsOutputStream.JSON);
+        int sequence = frames.readInt();
+        if (sequence != window.size() + 1) {
+          throw new IOException("Unexpected sequence " + sequence);
+        }
+        byte[] payload = new byte[frames.readInt()];
+        frames.readFully(payload);
+        window.add(new String(payload, StandardCharsets.UTF_8));
+      }
+      if (!acknowledge) {
+        // stall: read the next windows, but never acknowledge them
+        drain(in);
+        return;
+      }
+      events.addAll(window);
+      out.writeByte(BeatsOutputStream.VERSION);
+      out.writeByte(BeatsOutputStream.ACK);
+      out.writeInt(windowSize);
+      out.flush();
+    }
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[4096];
+    while (in.read(buffer) >= 0) {
+      // discard
+    }
+  }
+
+  private static void expect(int actual, byte expected) throws IOException {
+    if (actual != expected) {
+      throw new EOFException("Expected " + (char) expected + " but got " + (char) actual);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+}
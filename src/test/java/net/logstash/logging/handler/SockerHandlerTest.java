@@ -1,15 +1,57 @@
 package net.logstash.logging.handler;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
 import org.jboss.logmanager.handlers.ConsoleHandler;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
+import static net.logstash.logging.handler.SocketHandler.DEFAULT_PORT;
 
+import net.logstash.logging.formatter.CborDecoder;
 import net.logstash.logging.formatter.LogstashUtilFormatter;
+import net.logstash.logging.handler.SocketHandler.Compression;
+import net.logstash.logging.handler.SocketHandler.LoadBalancing;
+import net.logstash.logging.handler.SocketHandler.OverflowPolicy;
+import net.logstash.logging.handler.SocketHandler.OversizePolicy;
 import net.logstash.logging.handler.SocketHandler.Protocol;
+import net.logstash.logging.handler.SocketHandler.WaitStrategy;
 
 public class SockerHandlerTest {
 
@@ -62,4 +104,874 @@ public class SockerHandlerTest {
 
   }
 
+  @Test
+  public void testAsyncSocketHandler() throws Exception {
+    final int threads = 4;
+    final int records = 500;
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+      try {
+        Future<Integer> received = executor.submit(() -> countLines(server));
+        SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort());
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setAutoFlush(true);
+        handler.setAsyncCapacity(100);
+        handler.setWaitStrategy(WaitStrategy.SLEEPING);
+        handler.setOverflowPolicy(OverflowPolicy.BLOCK);
+        assertEquals(100, handler.getAsyncCapacity());
+        assertEquals(WaitStrategy.SLEEPING, handler.getWaitStrategy());
+        assertEquals(OverflowPolicy.BLOCK, handler.getOverflowPolicy());
+
+        List<Future<?>> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+          producers.add(executor.submit(() -> {
+            for (int i = 0; i < records; i++) {
+              ExtLogRecord record = new ExtLogRecord(Level.INFO, "async " + i, getClass().getName());
+              record.setLoggerName("testAsyncSocketHandler");
+              handler.doPublish(record);
+            }
+          }));
+        }
+        for (Future<?> producer : producers) {
+          producer.get(30, TimeUnit.SECONDS);
+        }
+        handler.close();
+        assertEquals(threads * records, received.get(30, TimeUnit.SECONDS).intValue());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testAsyncSocketHandlerWithoutConnection() throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ConsoleHandler target = new ConsoleHandler();
+    target.setAutoFlush(true);
+    target.setOutputStream(os);
+    target.setFormatter(new LogstashUtilFormatter());
+
+    int port;
+    try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = unused.getLocalPort();
+    }
+    SocketHandler handler = new SocketHandler(Protocol.TCP, InetAddress.getLoopbackAddress(), port);
+    handler.setFormatter(new LogstashUtilFormatter());
+    handler.setAsyncCapacity(16);
+    handler.setOverflowPolicy(OverflowPolicy.SPILL);
+    handler.setSubHandler(target);
+    for (int i = 0; i < 100; i++) {
+      ExtLogRecord record = new ExtLogRecord(Level.INFO, "spilled", getClass().getName());
+      record.setLoggerName("testAsyncSocketHandlerWithoutConnection");
+      handler.doPublish(record);
+    }
+    handler.close();
+    String log = new String(os.toByteArray(), StandardCharsets.UTF_8);
+    assertEquals(100, log.split("\"@message\":\"spilled\"", -1).length - 1);
+  }
+
+  @Test
+  public void testAsyncWriterSurvivesFailures() throws Exception {
+    List<String> messages = new CopyOnWriteArrayList<>();
+    Handler target = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        if ("poison".equals(record.getMessage())) {
+          throw new IllegalStateException("poison");
+        }
+        messages.add(record.getMessage());
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    int port;
+    try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = unused.getLocalPort();
+    }
+    SocketHandler handler = new SocketHandler(Protocol.TCP, InetAddress.getLoopbackAddress(), port);
+    handler.setFormatter(new LogstashUtilFormatter());
+    handler.setAsyncCapacity(4);
+    handler.setOverflowPolicy(OverflowPolicy.BLOCK);
+    handler.setSubHandler(target);
+    assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      for (int i = 0; i < 100; i++) {
+        ExtLogRecord record = new ExtLogRecord(Level.INFO, (i % 10 == 0) ? "poison" : "survived", getClass().getName());
+        record.setLoggerName("testAsyncWriterSurvivesFailures");
+        handler.doPublish(record);
+      }
+      handler.close();
+    });
+    assertEquals(90, messages.size());
+    assertEquals(10, handler.getMetrics().getRecordsDropped());
+  }
+
+  @Test
+  public void testNioSocketHandler() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<Integer> received = executor.submit(() -> countLines(server));
+        SocketHandler handler = new SocketHandler(Protocol.TCP_NIO, server.getInetAddress(), server.getLocalPort());
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setAutoFlush(true);
+        for (int i = 0; i < 1000; i++) {
+          ExtLogRecord record = new ExtLogRecord(Level.INFO, "nio " + i, getClass().getName());
+          record.setLoggerName("testNioSocketHandler");
+          handler.doPublish(record);
+        }
+        handler.close();
+        assertEquals(1000, received.get(10, TimeUnit.SECONDS).intValue());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testNioSocketHandlerWithStalledCollector() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      // the collector accepts the connection but never reads
+      Future<Socket> stalled = executor.submit(() -> server.accept());
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      ConsoleHandler target = new ConsoleHandler();
+      target.setAutoFlush(true);
+      target.setOutputStream(os);
+      target.setFormatter(new LogstashUtilFormatter());
+      SocketHandler handler = new SocketHandler(Protocol.TCP_NIO, server.getInetAddress(), server.getLocalPort());
+      handler.setFormatter(new LogstashUtilFormatter());
+      handler.setAutoFlush(true);
+      handler.setSendQueueSize(65536);
+      handler.setSubHandler(target);
+      StringBuilder message = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+        message.append("stalled collector ");
+      }
+      assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+        for (int i = 0; i < 20000; i++) {
+          ExtLogRecord record = new ExtLogRecord(Level.INFO, message.toString(), getClass().getName());
+          record.setLoggerName("testNioSocketHandlerWithStalledCollector");
+          handler.doPublish(record);
+        }
+      });
+      // the collector catches up, the queued records are sent before the
+      // connection is closed
+      Socket socket = stalled.get(10, TimeUnit.SECONDS);
+      Future<Long> received = executor.submit(() -> {
+        long lines = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = socket.getInputStream()) {
+          for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            for (int i = 0; i < n; i++) {
+              if (buffer[i] == '\n') {
+                lines++;
+              }
+            }
+          }
+        }
+        return lines;
+      });
+      handler.close();
+      long lines = received.get(10, TimeUnit.SECONDS);
+      long diverted = 0;
+      for (byte b : os.toByteArray()) {
+        if (b == '\n') {
+          diverted++;
+        }
+      }
+      SocketHandlerMetricsMBean metrics = handler.getMetrics();
+      assertTrue(diverted > 0);
+      assertEquals(metrics.getRecordsPublished(), lines);
+      assertEquals(metrics.getRecordsDiverted(), diverted);
+      assertEquals(0, metrics.getRecordsDropped());
+      assertEquals(20000, lines + diverted, "every record must be received or diverted");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSpoolAndReplay(@TempDir File spoolDirectory) throws Exception {
+    int port;
+    try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = unused.getLocalPort();
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ConsoleHandler target = new ConsoleHandler();
+    target.setAutoFlush(true);
+    target.setOutputStream(os);
+    target.setFormatter(new LogstashUtilFormatter());
+    SocketHandler handler = new SocketHandler(Protocol.TCP, InetAddress.getLoopbackAddress(), port);
+    try {
+      handler.setFormatter(new LogstashUtilFormatter());
+      handler.setAutoFlush(true);
+      handler.setSubHandler(target);
+      handler.setSpoolDirectory(spoolDirectory.getPath());
+      handler.setSpoolReplayRate(100);
+      assertEquals(spoolDirectory.getPath(), handler.getSpoolDirectory());
+      assertEquals(100, handler.getSpoolReplayRate());
+      for (int i = 0; i < 50; i++) {
+        ExtLogRecord record = new ExtLogRecord(Level.INFO, "spooled " + i, getClass().getName());
+        record.setLoggerName("testSpoolAndReplay");
+        handler.doPublish(record);
+      }
+      assertEquals(0, os.size(), "records must go to the spool instead of the subHandler");
+
+      try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+          Future<List<String>> received = executor.submit(() -> readLines(server, 50));
+          List<String> lines = received.get(20, TimeUnit.SECONDS);
+          assertEquals(50, lines.size());
+          for (int i = 0; i < 50; i++) {
+            assertTrue(lines.get(i).contains("\"@message\":\"spooled " + i + "\""));
+          }
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+    } finally {
+      handler.close();
+    }
+  }
+
+  @Test
+  public void testRoundRobinHosts() throws Exception {
+    try (ServerSocket first = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ServerSocket second = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+        Future<Integer> receivedFirst = executor.submit(() -> countLines(first));
+        Future<Integer> receivedSecond = executor.submit(() -> countLines(second));
+        SocketHandler handler = new SocketHandler(Protocol.TCP, InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setAutoFlush(true);
+        String hosts = "127.0.0.1:" + first.getLocalPort() + ", 127.0.0.1:" + second.getLocalPort();
+        handler.setHosts(hosts);
+        handler.setLoadBalancing(LoadBalancing.ROUND_ROBIN);
+        assertEquals(hosts, handler.getHosts());
+        assertEquals(LoadBalancing.ROUND_ROBIN, handler.getLoadBalancing());
+        assertEquals(2, handler.getEndpoints().size());
+        connect(handler, 2);
+        for (int i = 0; i < 100; i++) {
+          ExtLogRecord record = new ExtLogRecord(Level.INFO, "balanced " + i, getClass().getName());
+          record.setLoggerName("testRoundRobinHosts");
+          handler.doPublish(record);
+        }
+        handler.close();
+        assertEquals(50, receivedFirst.get(10, TimeUnit.SECONDS).intValue());
+        assertEquals(50, receivedSecond.get(10, TimeUnit.SECONDS).intValue());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testStickyHostsFailover() throws Exception {
+    int unavailable;
+    try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      unavailable = unused.getLocalPort();
+    }
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<Integer> received = executor.submit(() -> countLines(server));
+        SocketHandler handler = new SocketHandler(Protocol.TCP, InetAddress.getLoopbackAddress(), server.getLocalPort());
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setAutoFlush(true);
+        // the second host uses the port of the handler
+        handler.setHosts("127.0.0.1:" + unavailable + ",127.0.0.1");
+        for (int i = 0; i < 100; i++) {
+          ExtLogRecord record = new ExtLogRecord(Level.INFO, "failover " + i, getClass().getName());
+          record.setLoggerName("testStickyHostsFailover");
+          handler.doPublish(record);
+        }
+        // the records are held until the second host is connected
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handler.getEndpoints().get(0).getFailures() == 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertTrue(handler.getEndpoints().get(0).getFailures() > 0);
+        assertEquals(0, handler.getEndpoints().get(1).getFailures());
+        handler.close();
+        assertEquals(100, received.get(10, TimeUnit.SECONDS).intValue());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testCircuitBreakerAndReconnect() throws Exception {
+    int port;
+    try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = unused.getLocalPort();
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ConsoleHandler target = new ConsoleHandler();
+    target.setAutoFlush(true);
+    target.setOutputStream(os);
+    target.setFormatter(new LogstashUtilFormatter());
+    SocketHandler handler = new SocketHandler(Protocol.TCP, InetAddress.getLoopbackAddress(), port);
+    try {
+      handler.setFormatter(new LogstashUtilFormatter());
+      handler.setAutoFlush(true);
+      handler.setSubHandler(target);
+      handler.setCircuitBreakerThreshold(2);
+      handler.setReconnectDelay(100);
+      handler.setMaxReconnectDelay(200);
+      handler.setReconnectJitter(20);
+      assertEquals(2, handler.getCircuitBreakerThreshold());
+      assertEquals(100, handler.getReconnectDelay());
+      assertEquals(200, handler.getMaxReconnectDelay());
+      assertEquals(20, handler.getReconnectJitter());
+      for (int i = 0; i < 1000; i++) {
+        ExtLogRecord record = new ExtLogRecord(Level.INFO, "diverted", getClass().getName());
+        record.setLoggerName("testCircuitBreakerAndReconnect");
+        handler.doPublish(record);
+      }
+      String log = new String(os.toByteArray(), StandardCharsets.UTF_8);
+      assertEquals(1000, log.split("\"@message\":\"diverted\"", -1).length - 1);
+      // the open circuit breaker keeps the records from connecting again
+      assertTrue(handler.getEndpoints().get(0).getFailures() < 10);
+
+      try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+          Future<List<String>> received = executor.submit(() -> readLines(server, 1));
+          assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            while (!received.isDone()) {
+              ExtLogRecord record = new ExtLogRecord(Level.INFO, "reconnected", getClass().getName());
+              record.setLoggerName("testCircuitBreakerAndReconnect");
+              handler.doPublish(record);
+              Thread.sleep(10);
+            }
+          });
+          assertTrue(received.get().get(0).contains("\"@message\":\"reconnected\""));
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+    } finally {
+      handler.close();
+    }
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<Integer> received = executor.submit(() -> countLines(server));
+        SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort());
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setAutoFlush(true);
+        handler.setMetricsName("testMetrics");
+        ObjectName name = new ObjectName("net.logstash.logging:type=SocketHandler,name=\"testMetrics\"");
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(mbeanServer.isRegistered(name));
+        connect(handler, 1);
+        for (int i = 0; i < 100; i++) {
+          ExtLogRecord record = new ExtLogRecord(Level.INFO, "measured " + i, getClass().getName());
+          record.setLoggerName("testMetrics");
+          handler.doPublish(record);
+        }
+        SocketHandlerMetricsMBean metrics = handler.getMetrics();
+        assertEquals(100L, mbeanServer.getAttribute(name, "RecordsPublished"));
+        assertEquals(1, metrics.getConnectedHosts());
+        assertEquals(0, metrics.getRecordsDiverted());
+        assertEquals(0, metrics.getReconnectAttempts());
+        assertTrue(metrics.getBytesSent() > 100 * "measured 0".length());
+        assertTrue(metrics.getPublishTime50thPercentile() > 0);
+        assertTrue(metrics.getPublishTimeMax() >= metrics.getPublishTime99thPercentile());
+        assertTrue(metrics.getWriteTime99thPercentile() > 0);
+        mbeanServer.invoke(name, "reset", null, null);
+        assertEquals(0, metrics.getRecordsPublished());
+        handler.close();
+        assertFalse(mbeanServer.isRegistered(name));
+        assertEquals(100, received.get(10, TimeUnit.SECONDS).intValue());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidHosts() throws Exception {
+    try (SocketHandler handler = new SocketHandler(Protocol.TCP, "127.0.0.1", DEFAULT_PORT)) {
+      assertThrows(IllegalArgumentException.class, () -> handler.setHosts("logstash:port"));
+      assertThrows(IllegalArgumentException.class, () -> handler.setHosts("logstash:70000"));
+      handler.setHosts("[::1]:5000, logstash");
+      assertEquals("::1:5000", handler.getEndpoints().get(0).toString());
+      assertEquals("logstash:" + DEFAULT_PORT, handler.getEndpoints().get(1).toString());
+    }
+  }
+
+  @Test
+  public void testCompressedSocketHandler() throws Exception {
+    for (Compression compression : new Compression[] { Compression.GZIP, Compression.DEFLATE }) {
+      try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+          Future<byte[]> received = executor.submit(() -> readBytes(server));
+          SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort());
+          handler.setFormatter(new LogstashUtilFormatter());
+          handler.setAutoFlush(true);
+          handler.setBatchSize(8192);
+          handler.setCompression(compression);
+          handler.setCompressionLevel(9);
+          assertEquals(compression, handler.getCompression());
+          assertEquals(9, handler.getCompressionLevel());
+          for (int i = 0; i < 200; i++) {
+            ExtLogRecord record = new ExtLogRecord(Level.INFO, "compressed " + i, getClass().getName());
+            record.setLoggerName("testCompressedSocketHandler");
+            handler.doPublish(record);
+          }
+          long bytesSent = handler.getMetrics().getBytesSent();
+          handler.close();
+          byte[] compressed = received.get(10, TimeUnit.SECONDS);
+          assertEquals(compressed.length, handler.getMetrics().getBytesSent());
+          assertTrue(bytesSent <= compressed.length);
+          InputStream in = new ByteArrayInputStream(compressed);
+          in = (compression == Compression.GZIP) ? new GZIPInputStream(in) : new InflaterInputStream(in);
+          ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+          byte[] buffer = new byte[4096];
+          for (int n; (n = in.read(buffer)) > 0;) {
+            decompressed.write(buffer, 0, n);
+          }
+          String log = new String(decompressed.toByteArray(), StandardCharsets.UTF_8);
+          assertEquals(200, log.split("\"@message\":\"compressed ", -1).length - 1, compression.name());
+          assertTrue(compressed.length * 4 < decompressed.size(), compression.name());
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBeatsSocketHandler() throws Exception {
+    try (LumberjackServer server = new LumberjackServer()) {
+      SocketHandler handler = new SocketHandler(Protocol.BEATS, server.getAddress(), server.getPort());
+      handler.setFormatter(new LogstashUtilFormatter());
+      handler.setAutoFlush(true);
+      handler.setBatchRecords(25);
+      handler.setWindowSize(10);
+      handler.setPipelining(3);
+      handler.setCompression(Compression.DEFLATE);
+      assertEquals(10, handler.getWindowSize());
+      assertEquals(3, handler.getPipelining());
+      for (int i = 0; i < 100; i++) {
+        ExtLogRecord record = new ExtLogRecord(Level.INFO, "beats " + i, getClass().getName());
+        record.setLoggerName("testBeatsSocketHandler");
+        handler.doPublish(record);
+      }
+      handler.close();
+      List<String> events = server.getEvents();
+      assertEquals(100, events.size());
+      for (int i = 0; i < 100; i++) {
+        assertTrue(events.get(i).contains("\"@message\":\"beats " + i + "\""), events.get(i));
+      }
+      assertEquals(100, handler.getMetrics().getRecordsPublished());
+    }
+  }
+
+  @Test
+  public void testBeatsRedeliversUnacknowledgedRecords() throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ConsoleHandler target = new ConsoleHandler();
+    target.setAutoFlush(true);
+    target.setOutputStream(os);
+    target.setFormatter(new LogstashUtilFormatter());
+    try (LumberjackServer server = new LumberjackServer()) {
+      server.setAcknowledge(false);
+      SocketHandler handler = new SocketHandler(Protocol.BEATS, server.getAddress(), server.getPort());
+      handler.setFormatter(new LogstashUtilFormatter());
+      handler.setAutoFlush(true);
+      handler.setPipelining(1);
+      handler.setAckTimeout(200);
+      handler.setSubHandler(target);
+      assertEquals(200, handler.getAckTimeout());
+      connect(handler, 1);
+      for (int i = 0; i < 2; i++) {
+        // the second record waits for the acknowledgement of the first
+        handler.doPublish(beatsRecord(i));
+      }
+      server.setAcknowledge(true);
+      // the connection is established in the background meanwhile
+      handler.doPublish(beatsRecord(2));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!handler.getEndpoints().get(0).isConnected() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      handler.doPublish(beatsRecord(3));
+      handler.close();
+      List<String> events = server.getEvents();
+      assertEquals(3, events.size(), events.toString());
+      assertTrue(events.get(0).contains("\"@message\":\"beats 0\""));
+      assertTrue(events.get(1).contains("\"@message\":\"beats 1\""));
+      assertTrue(events.get(2).contains("\"@message\":\"beats 3\""));
+      assertEquals(2, server.getConnections());
+      String log = new String(os.toByteArray(), StandardCharsets.UTF_8);
+      assertTrue(log.contains("\"@message\":\"beats 2\""), log);
+      assertEquals(1, handler.getMetrics().getRecordsDiverted());
+    }
+  }
+
+  @Test
+  public void testLeastOutstandingBytesAvoidsStalledBeatsHost() throws Exception {
+    try (LumberjackServer acknowledging = new LumberjackServer(); LumberjackServer stalled = new LumberjackServer()) {
+      stalled.setAcknowledge(false);
+      SocketHandler handler = new SocketHandler(Protocol.BEATS, acknowledging.getAddress(), acknowledging.getPort());
+      handler.setFormatter(new LogstashUtilFormatter());
+      handler.setAutoFlush(true);
+      handler.setPipelining(100);
+      handler.setAckTimeout(10000);
+      handler.setHosts("127.0.0.1:" + acknowledging.getPort() + ",127.0.0.1:" + stalled.getPort());
+      handler.setLoadBalancing(LoadBalancing.LEAST_OUTSTANDING_BYTES);
+      connect(handler, 2);
+      Endpoint first = handler.getEndpoints().get(0);
+      Endpoint second = handler.getEndpoints().get(1);
+      for (int i = 0; i < 20; i++) {
+        handler.doPublish(beatsRecord(i));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (first.outstandingBytes() > 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(1);
+        }
+      }
+      // a tie sends one record to the stalled host, it is never acknowledged
+      assertTrue(second.outstandingBytes() > 0);
+      assertTrue(acknowledging.getEvents().size() >= 19, acknowledging.getEvents().toString());
+      handler.close();
+    }
+  }
+
+  private ExtLogRecord beatsRecord(int i) {
+    ExtLogRecord record = new ExtLogRecord(Level.INFO, "beats " + i, getClass().getName());
+    record.setLoggerName("testBeatsRedeliversUnacknowledgedRecords");
+    return record;
+  }
+
+  @Test
+  public void testUdpPacksRecordsIntoDatagrams() throws Exception {
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      server.setSoTimeout(5000);
+      try (SocketHandler handler = new SocketHandler(Protocol.UDP, server.getLocalAddress(), server.getLocalPort())) {
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setAutoFlush(true);
+        handler.setBatchRecords(10);
+        handler.setLingerMillis(0);
+        assertEquals(SocketHandler.DEFAULT_MAX_DATAGRAM_SIZE, handler.getMaxDatagramSize());
+        connect(handler, 1);
+        for (int i = 0; i < 20; i++) {
+          ExtLogRecord record = new ExtLogRecord(Level.INFO, "packed " + i, getClass().getName());
+          record.setLoggerName("testUdpPacksRecordsIntoDatagrams");
+          handler.doPublish(record);
+        }
+        for (int d = 0; d < 2; d++) {
+          String datagram = new String(receive(server), StandardCharsets.UTF_8);
+          String[] lines = datagram.split("\n");
+          assertEquals(10, lines.length);
+          for (int i = 0; i < 10; i++) {
+            assertTrue(lines[i].startsWith("{") && lines[i].trim().endsWith("}"), lines[i]);
+            assertTrue(lines[i].contains("\"@message\":\"packed " + (d * 10 + i) + "\""), lines[i]);
+          }
+        }
+        assertEquals(2, handler.getMetrics().getDatagramsSent());
+      }
+    }
+  }
+
+  @Test
+  public void testUdpOversizePolicies() throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ConsoleHandler target = new ConsoleHandler();
+    target.setAutoFlush(true);
+    target.setOutputStream(os);
+    target.setFormatter(new LogstashUtilFormatter());
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      server.setSoTimeout(5000);
+      try (SocketHandler handler = new SocketHandler(Protocol.UDP, server.getLocalAddress(), server.getLocalPort())) {
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setAutoFlush(true);
+        handler.setSubHandler(target);
+        handler.setMaxDatagramSize(1024);
+        assertEquals(OversizePolicy.TRUNCATE, handler.getOversizePolicy());
+        connect(handler, 1);
+
+        handler.doPublish(oversizedRecord());
+        byte[] truncated = receive(server);
+        assertTrue(truncated.length <= 1024);
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(truncated))) {
+          String stacktrace = reader.readObject().getJsonObject("@fields").getString("stacktrace");
+          assertTrue(stacktrace.endsWith("... truncated"), stacktrace);
+        }
+        assertEquals(1, handler.getMetrics().getRecordsTruncated());
+
+        handler.setOversizePolicy(OversizePolicy.CHUNK);
+        connect(handler, 1);
+        handler.doPublish(oversizedRecord());
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        int chunks = -1;
+        for (int i = 0; i != chunks; i++) {
+          byte[] chunk = receive(server);
+          assertEquals(0x1e, chunk[0]);
+          assertEquals(0x0f, chunk[1]);
+          assertEquals(i, chunk[10]);
+          chunks = chunk[11];
+          reassembled.write(chunk, 12, chunk.length - 12);
+        }
+        assertTrue(chunks > 1);
+        String record = new String(reassembled.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(record.contains("\"@message\":\"oversized\""));
+        assertTrue(record.trim().endsWith("}"));
+
+        handler.setOversizePolicy(OversizePolicy.DIVERT);
+        connect(handler, 1);
+        handler.doPublish(oversizedRecord());
+        assertTrue(new String(os.toByteArray(), StandardCharsets.UTF_8).contains("\"@message\":\"oversized\""));
+        assertEquals(1, handler.getMetrics().getRecordsDiverted());
+      }
+    }
+  }
+
+  private ExtLogRecord oversizedRecord() {
+    ExtLogRecord record = new ExtLogRecord(Level.SEVERE, "oversized", getClass().getName());
+    record.setLoggerName("testUdpOversizePolicies");
+    record.setSourceClassName(getClass().getName());
+    Exception exception = new IllegalStateException("failure");
+    StackTraceElement[] trace = new StackTraceElement[100];
+    for (int i = 0; i < trace.length; i++) {
+      trace[i] = new StackTraceElement("net.logstash.Frame" + i, "method", "Frame.java", i + 1);
+    }
+    exception.setStackTrace(trace);
+    record.setThrown(exception);
+    return record;
+  }
+
+  /**
+   * Connects the handler, records published before are held or diverted.
+   */
+  private static void connect(SocketHandler handler, int hosts) throws Exception {
+    handler.connectEndpoints();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (handler.getMetrics().getConnectedHosts() < hosts && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(hosts, handler.getMetrics().getConnectedHosts());
+  }
+
+  private static byte[] receive(DatagramSocket server) throws Exception {
+    DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+    server.receive(packet);
+    return Arrays.copyOf(packet.getData(), packet.getLength());
+  }
+
+  private static byte[] readBytes(ServerSocket server) throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) > 0;) {
+        os.write(buffer, 0, n);
+      }
+    }
+    return os.toByteArray();
+  }
+
+  private static int countLines(ServerSocket server) throws Exception {
+    int lines = 0;
+    try (Socket socket = server.accept();
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+      while (reader.readLine() != null) {
+        lines++;
+      }
+    }
+    return lines;
+  }
+
+  @Test
+  public void testBatchingSocketHandler() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<List<String>> received = executor.submit(() -> readLines(server, 25));
+        try (SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort())) {
+          handler.setFormatter(new LogstashUtilFormatter());
+          handler.setAutoFlush(true);
+          handler.setBatchSize(65536);
+          handler.setBatchRecords(10);
+          handler.setLingerMillis(50);
+          assertEquals(65536, handler.getBatchSize());
+          assertEquals(10, handler.getBatchRecords());
+          assertEquals(50, handler.getLingerMillis());
+          for (int i = 0; i < 25; i++) {
+            ExtLogRecord record = new ExtLogRecord(Level.INFO, "batched " + i, getClass().getName());
+            record.setLoggerName("testBatchingSocketHandler");
+            handler.doPublish(record);
+          }
+          // the last 5 records are sent after the linger time without closing the handler
+          List<String> lines = received.get(10, TimeUnit.SECONDS);
+          assertEquals(25, lines.size());
+          assertTrue(lines.get(24).contains("\"@message\":\"batched 24\""));
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testSamplingAndRateLimiting() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<List<String>> received = executor.submit(() -> readLines(server, 6));
+        try (SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort())) {
+          handler.setFormatter(new LogstashUtilFormatter());
+          handler.setAutoFlush(true);
+          handler.setRateLimit(1);
+          handler.setRateLimitBurst(5);
+          handler.setSamplingRate(0);
+          handler.setSamplingLevel(Level.OFF);
+          handler.setSummaryInterval(100);
+          assertEquals(5, handler.getRateLimitBurst());
+          assertEquals(Level.OFF, handler.getSamplingLevel());
+          for (int i = 0; i < 20; i++) {
+            handler.doPublish(limitedRecord(Level.WARNING, "sampled " + i));
+          }
+          // errors are never sampled, but rate limited
+          for (int i = 0; i < 8; i++) {
+            handler.doPublish(limitedRecord(Level.SEVERE, "error " + i));
+          }
+          List<String> lines = received.get(10, TimeUnit.SECONDS);
+          assertEquals(6, lines.size());
+          assertTrue(lines.get(0).contains("\"@message\":\"error 0\""), lines.get(0));
+          assertTrue(lines.get(4).contains("\"@message\":\"error 4\""), lines.get(4));
+          String summary = lines.get(5);
+          assertTrue(summary.contains("Suppressed 23 records"), summary);
+          assertTrue(summary.contains("testSamplingAndRateLimiting WARNING: 20 sampled"), summary);
+          assertTrue(summary.contains("testSamplingAndRateLimiting SEVERE: 3 rate limited"), summary);
+          assertTrue(summary.contains("\"suppressed_records\":\"23\""), summary);
+          assertEquals(23, handler.getMetrics().getRecordsSuppressed());
+          assertEquals(0, handler.getMetrics().getRecordsDiverted());
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testDeduplication() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<List<String>> received = executor.submit(() -> readLines(server, 3));
+        try (SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort())) {
+          handler.setFormatter(new LogstashUtilFormatter());
+          handler.setAutoFlush(true);
+          handler.setDedupWindow(1000);
+          assertEquals(1000, handler.getDedupWindow());
+          for (int i = 0; i < 51; i++) {
+            // the parameters differ, the unformatted message and the exception are the same
+            ExtLogRecord record = new ExtLogRecord(Level.SEVERE, "Attempt {0} failed", FormatStyle.MESSAGE_FORMAT,
+                getClass().getName());
+            record.setLoggerName("testDeduplication");
+            record.setParameters(new Object[] { i });
+            record.setThrown(new IllegalStateException("connection refused"));
+            handler.doPublish(record);
+          }
+          ExtLogRecord other = new ExtLogRecord(Level.SEVERE, "Giving up", getClass().getName());
+          other.setLoggerName("testDeduplication");
+          handler.doPublish(other);
+
+          List<String> lines = received.get(10, TimeUnit.SECONDS);
+          assertEquals(3, lines.size());
+          assertTrue(lines.get(0).contains("\"@message\":\"Attempt 0 failed\""), lines.get(0));
+          assertFalse(lines.get(0).contains("repeat_count"), lines.get(0));
+          assertTrue(lines.get(1).contains("\"@message\":\"Giving up\""), lines.get(1));
+          JsonObject fields = Json.createReader(new StringReader(lines.get(2))).readObject().getJsonObject("@fields");
+          assertEquals(50, fields.getInt("repeat_count"));
+          assertTrue(fields.getJsonNumber("first_timestamp").longValue() <= fields.getJsonNumber("last_timestamp")
+              .longValue());
+          assertEquals("connection refused", fields.getString("exception_message"));
+          assertEquals(50, handler.getMetrics().getRecordsDeduplicated());
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void testCborFrames() throws Exception {
+    for (int asyncCapacity : new int[] { 0, 64 }) {
+      try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+          Future<List<JsonObject>> received = executor.submit(() -> readFrames(server, 3));
+          try (SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort())) {
+            LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+            formatter.setWireFormat(LogstashUtilFormatter.WireFormat.CBOR);
+            handler.setFormatter(formatter);
+            handler.setAutoFlush(true);
+            handler.setAsyncCapacity(asyncCapacity);
+            for (int i = 0; i < 3; i++) {
+              ExtLogRecord record = new ExtLogRecord(Level.INFO, "cbor \u00e9 " + i, getClass().getName());
+              record.setLoggerName("testCborFrames");
+              handler.doPublish(record);
+            }
+            List<JsonObject> documents = received.get(10, TimeUnit.SECONDS);
+            assertEquals(3, documents.size());
+            for (int i = 0; i < 3; i++) {
+              assertEquals("cbor \u00e9 " + i, documents.get(i).getString("@message"));
+              assertEquals("INFO", documents.get(i).getJsonObject("@fields").getString("level"));
+            }
+          }
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+    }
+  }
+
+  private static List<JsonObject> readFrames(ServerSocket server, int count) throws Exception {
+    List<JsonObject> documents = new ArrayList<>();
+    try (Socket socket = server.accept();
+        DataInputStream in = new DataInputStream(socket.getInputStream())) {
+      while (documents.size() < count) {
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        documents.add((JsonObject) new CborDecoder(new ByteArrayInputStream(frame)).read());
+      }
+    }
+    return documents;
+  }
+
+  private ExtLogRecord limitedRecord(Level level, String message) {
+    ExtLogRecord record = new ExtLogRecord(level, message, getClass().getName());
+    record.setLoggerName("testSamplingAndRateLimiting");
+    return record;
+  }
+
+  private static List<String> readLines(ServerSocket server, int count) throws Exception {
+    List<String> lines = new ArrayList<>();
+    try (Socket socket = server.accept();
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while (lines.size() < count && (line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
 }
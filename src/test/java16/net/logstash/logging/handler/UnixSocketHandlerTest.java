@@ -0,0 +1,86 @@
+package net.logstash.logging.handler;
+
+import java.io.BufferedReader;
+import java.net.InetAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import net.logstash.logging.handler.SocketHandler.Protocol;
+
+public class UnixSocketHandlerTest {
+
+  @Test
+  public void testUnixSocket(@TempDir Path dir) throws Exception {
+    Path path = dir.resolve("logstash.sock");
+    try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(path));
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<List<String>> received = executor.submit(() -> readLines(server, 10));
+        try (SocketHandler handler = new SocketHandler(Protocol.UNIX, InetAddress.getLoopbackAddress(), 0)) {
+          handler.setFormatter(new LogstashUtilFormatter());
+          handler.setSocketPath(path.toString());
+          handler.setBatchSize(4096);
+          assertEquals(path.toString(), handler.getSocketPath());
+          for (int i = 0; i < 10; i++) {
+            handler.doPublish(record("record " + i));
+          }
+          handler.flush();
+          List<String> lines = received.get(10, TimeUnit.SECONDS);
+          assertEquals(10, lines.size());
+          assertTrue(lines.get(0).contains("\"@message\":\"record 0\""), lines.get(0));
+          assertTrue(lines.get(9).contains("\"@message\":\"record 9\""), lines.get(9));
+
+          // the collector was restarted, the handler connects again
+          received = executor.submit(() -> readLines(server, 1));
+          for (int i = 0; i < 100 && !received.isDone(); i++) {
+            handler.doPublish(record("after restart"));
+            handler.flush();
+            Thread.sleep(50);
+          }
+          lines = received.get(10, TimeUnit.SECONDS);
+          assertTrue(lines.get(0).contains("\"@message\":\"after restart\""), lines.get(0));
+          assertTrue(handler.getMetrics().getReconnectAttempts() > 0);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private ExtLogRecord record(String message) {
+    ExtLogRecord record = new ExtLogRecord(Level.INFO, message, getClass().getName());
+    record.setLoggerName("testUnixSocket");
+    return record;
+  }
+
+  private static List<String> readLines(ServerSocketChannel server, int count) throws Exception {
+    List<String> lines = new ArrayList<>();
+    try (SocketChannel channel = server.accept();
+        BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8))) {
+      String line;
+      while (lines.size() < count && (line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+}
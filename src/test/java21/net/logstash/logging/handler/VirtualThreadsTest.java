@@ -0,0 +1,91 @@
+package net.logstash.logging.handler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import net.logstash.logging.handler.SocketHandler.OverflowPolicy;
+import net.logstash.logging.handler.SocketHandler.Protocol;
+
+public class VirtualThreadsTest {
+
+  @Test
+  public void testStalledCollector() throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    List<RecordedEvent> pinned = new CopyOnWriteArrayList<>();
+    try (RecordingStream recording = new RecordingStream();
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      // a virtual thread which blocks while holding a monitor keeps its carrier
+      recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+      recording.onEvent("jdk.VirtualThreadPinned", pinned::add);
+      recording.startAsync();
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        // the collector accepts the connection, but never reads
+        Future<Socket> accepted = executor.submit(server::accept);
+        SocketHandler handler = new SocketHandler(Protocol.TCP, server.getInetAddress(), server.getLocalPort());
+        try {
+          handler.setFormatter(new LogstashUtilFormatter());
+          handler.setAutoFlush(true);
+          handler.setVirtualThreads(true);
+          handler.setAsyncCapacity(1024);
+          handler.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+          assertTrue(handler.isVirtualThreads());
+          String payload = "x".repeat(1024);
+          // fill the socket buffers until the writer thread blocks
+          publish(handler, payload, 5000);
+          Thread.sleep(200);
+          int baseline = threads.getThreadCount();
+          for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            publish(handler, payload, 1000);
+            // the publishing thread never waits for the stalled collector
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            Thread.sleep(50);
+            assertTrue(threads.getThreadCount() <= baseline, "platform threads grew from " + baseline);
+          }
+          for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            // only platform threads are listed
+            assertFalse(thread.getName().startsWith("logstash-socket-"), thread.getName());
+          }
+          assertTrue(handler.getMetrics().getRecordsDropped() > 0);
+        } finally {
+          // unblock the writer thread before the handler is closed
+          accepted.get(10, TimeUnit.SECONDS).close();
+          handler.close();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      // waits until the recorded events have been consumed
+      recording.stop();
+    }
+    assertTrue(pinned.isEmpty(), () -> "pinned: " + pinned.get(0).getStackTrace());
+  }
+
+  private void publish(SocketHandler handler, String payload, int count) {
+    for (int i = 0; i < count; i++) {
+      ExtLogRecord record = new ExtLogRecord(Level.INFO, payload, getClass().getName());
+      record.setLoggerName("testStalledCollector");
+      handler.doPublish(record);
+    }
+  }
+}